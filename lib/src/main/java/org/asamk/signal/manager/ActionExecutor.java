@@ -0,0 +1,176 @@
+package org.asamk.signal.manager;
+
+import org.asamk.signal.manager.actions.HandleAction;
+import org.asamk.signal.manager.jobs.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes the actions resulting from received messages in the background, so the receive thread never has to wait
+ * for network requests like profile fetches or sync messages.
+ * <p>
+ * An action that is equal to an action still waiting in the queue is coalesced with it, e.g. multiple contact sync
+ * requests in a burst only result in one contact sync message.
+ * Actions that fail with an IOException are retried with exponential backoff.
+ */
+public class ActionExecutor {
+
+    private final static Logger logger = LoggerFactory.getLogger(ActionExecutor.class);
+
+    private static final int MAX_CONCURRENT_ACTIONS = 4;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long INITIAL_RETRY_DELAY = TimeUnit.SECONDS.toMillis(5);
+    private static final long SHUTDOWN_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+
+    private final Context context;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService retryScheduler;
+
+    private final Set<HandleAction> queuedActions = new HashSet<>();
+    private final AtomicInteger runningCount = new AtomicInteger();
+    private final AtomicInteger retryingCount = new AtomicInteger();
+    private final AtomicLong executedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    public ActionExecutor(final Context context) {
+        this.context = context;
+        this.executor = Executors.newFixedThreadPool(MAX_CONCURRENT_ACTIONS, r -> {
+            final var thread = new Thread(r, "action-executor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final var thread = new Thread(r, "action-executor-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void enqueueActions(Collection<HandleAction> actions) {
+        for (var action : actions) {
+            enqueueAction(action, 1);
+        }
+        if (!actions.isEmpty()) {
+            logger.debug("Action queue depth: {}, running: {}", getQueueDepth(), getRunningCount());
+        }
+    }
+
+    /**
+     * @return the number of actions waiting for execution, including actions waiting for a retry
+     */
+    public int getQueueDepth() {
+        synchronized (queuedActions) {
+            return queuedActions.size() + retryingCount.get();
+        }
+    }
+
+    public int getRunningCount() {
+        return runningCount.get();
+    }
+
+    public long getExecutedCount() {
+        return executedCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    private void enqueueAction(final HandleAction action, final int attempt) {
+        synchronized (queuedActions) {
+            if (!queuedActions.add(action)) {
+                coalescedCount.incrementAndGet();
+                return;
+            }
+        }
+        try {
+            executor.execute(() -> runAction(action, attempt));
+        } catch (RejectedExecutionException e) {
+            synchronized (queuedActions) {
+                queuedActions.remove(action);
+            }
+            logger.warn("Action executor already closed, dropping action {}", action.getClass().getSimpleName());
+        }
+    }
+
+    private void runAction(final HandleAction action, final int attempt) {
+        synchronized (queuedActions) {
+            queuedActions.remove(action);
+        }
+        runningCount.incrementAndGet();
+        try {
+            action.execute(context);
+            executedCount.incrementAndGet();
+        } catch (Throwable e) {
+            if ((e instanceof AssertionError || e instanceof RuntimeException)
+                    && e.getCause() instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (e instanceof IOException && attempt < MAX_ATTEMPTS && !retryScheduler.isShutdown()) {
+                final var delay = INITIAL_RETRY_DELAY << (attempt - 1);
+                logger.debug("Message action {} failed, retrying in {}ms: {}",
+                        action.getClass().getSimpleName(),
+                        delay,
+                        e.getMessage());
+                scheduleRetry(action, attempt + 1, delay);
+                return;
+            }
+            failedCount.incrementAndGet();
+            logger.warn("Message action failed.", e);
+        } finally {
+            runningCount.decrementAndGet();
+        }
+    }
+
+    private void scheduleRetry(final HandleAction action, final int attempt, final long delay) {
+        retryingCount.incrementAndGet();
+        try {
+            retryScheduler.schedule(() -> {
+                retryingCount.decrementAndGet();
+                enqueueAction(action, attempt);
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            retryingCount.decrementAndGet();
+            failedCount.incrementAndGet();
+            logger.warn("Action executor already closed, not retrying action {}", action.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Waits for already queued actions to finish, pending retries are dropped.
+     */
+    public void close() {
+        final var droppedRetries = retryScheduler.shutdownNow().size();
+        if (droppedRetries > 0) {
+            logger.debug("Dropped {} pending action retries", droppedRetries);
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.warn("Pending message actions didn't finish in time, aborting.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
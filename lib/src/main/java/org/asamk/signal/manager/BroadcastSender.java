@@ -0,0 +1,382 @@
+package org.asamk.signal.manager;
+
+import org.asamk.signal.manager.api.BroadcastResult;
+import org.asamk.signal.manager.helper.RegisteredUsersProvider;
+import org.asamk.signal.manager.helper.SendHelper;
+import org.asamk.signal.manager.storage.SignalAccount;
+import org.asamk.signal.manager.storage.broadcasts.BroadcastInfo;
+import org.asamk.signal.manager.storage.recipients.RecipientId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.signalservice.api.messages.SendMessageResult;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment;
+import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
+import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
+import org.whispersystems.signalservice.api.util.UuidUtil;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos;
+import org.whispersystems.signalservice.internal.push.util.AttachmentPointerUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Sends the same message to a large number of individual recipients.
+ * <p>
+ * A broadcast is persisted in the {@link org.asamk.signal.manager.storage.broadcasts.BroadcastStore} before the first
+ * message is sent and the result for each recipient is recorded as it arrives, so an interrupted broadcast is resumed
+ * with the recipients that haven't been sent to yet. The attachments are uploaded only once when the broadcast is
+ * created. The numbers are checked for registration in batches and the messages are sent with the bounded
+ * concurrency of the {@link SendExecutor}. After a network failure, e.g. due to rate limiting, sending is paused with
+ * exponential backoff.
+ */
+public class BroadcastSender {
+
+    private final static Logger logger = LoggerFactory.getLogger(BroadcastSender.class);
+
+    private static final int LOOKUP_BATCH_SIZE = 1000;
+    private static final long INITIAL_BACKOFF = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(5);
+
+    private final SignalAccount account;
+    private final SendHelper sendHelper;
+    private final SendExecutor sendExecutor;
+    private final RegisteredUsersProvider registeredUsersProvider;
+    private final ExecutorService executor;
+
+    private final List<Manager.BroadcastListener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<Long, CompletableFuture<Void>> runningBroadcasts = new HashMap<>();
+    private volatile double maxMessagesPerSecond = 0;
+
+    public BroadcastSender(
+            final SignalAccount account,
+            final SendHelper sendHelper,
+            final SendExecutor sendExecutor,
+            final RegisteredUsersProvider registeredUsersProvider,
+            final ExecutorService executor
+    ) {
+        this.account = account;
+        this.sendHelper = sendHelper;
+        this.sendExecutor = sendExecutor;
+        this.registeredUsersProvider = registeredUsersProvider;
+        this.executor = executor;
+    }
+
+    public void addListener(final Manager.BroadcastListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final Manager.BroadcastListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param maxMessagesPerSecond the maximum send rate of a broadcast, or 0 for no limit
+     */
+    public void setMaxMessagesPerSecond(final double maxMessagesPerSecond) {
+        this.maxMessagesPerSecond = maxMessagesPerSecond;
+    }
+
+    /**
+     * Persists the broadcast and starts sending in the background.
+     *
+     * @param recipients the recipient identifiers, uuids or numbers in E164 format
+     * @return the id of the broadcast, which is also the timestamp of the message
+     */
+    public long startBroadcast(
+            final String messageText, final List<SignalServiceAttachment> attachments, final List<String> recipients
+    ) throws IOException {
+        final List<byte[]> serializedAttachments = attachments.stream()
+                .map(a -> AttachmentPointerUtil.createAttachmentPointer(a.asPointer()).toByteArray())
+                .collect(Collectors.toList());
+        final var broadcast = account.getBroadcastStore()
+                .createBroadcast(System.currentTimeMillis(), messageText, serializedAttachments, recipients);
+        logger.info("Starting broadcast {} to {} recipients", broadcast.getId(), recipients.size());
+        run(broadcast);
+        return broadcast.getId();
+    }
+
+    /**
+     * Resumes the broadcasts that were interrupted, e.g. by a crash.
+     *
+     * @return the ids of the resumed broadcasts
+     */
+    public List<Long> resumeBroadcasts() {
+        final var store = account.getBroadcastStore();
+        final var resumed = new ArrayList<Long>();
+        for (var id : store.getBroadcastIds()) {
+            final BroadcastInfo broadcast;
+            try {
+                broadcast = store.getBroadcast(id);
+            } catch (IOException e) {
+                logger.warn("Failed to load broadcast {}, ignoring: {}", id, e.getMessage());
+                continue;
+            }
+            if (broadcast == null || !run(broadcast)) {
+                continue;
+            }
+            logger.info("Resuming broadcast {}, {}/{} recipients already done",
+                    id,
+                    broadcast.getResults().size(),
+                    broadcast.getRecipients().size());
+            resumed.add(id);
+        }
+        return resumed;
+    }
+
+    /**
+     * Waits until the broadcast has finished, returns immediately if it isn't running.
+     */
+    public void awaitBroadcast(final long id) throws InterruptedException {
+        final CompletableFuture<Void> future;
+        synchronized (runningBroadcasts) {
+            future = runningBroadcasts.get(id);
+        }
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            // Already logged by the broadcast run
+        }
+    }
+
+    private boolean run(final BroadcastInfo broadcast) {
+        synchronized (runningBroadcasts) {
+            if (runningBroadcasts.containsKey(broadcast.getId())) {
+                return false;
+            }
+            final var future = CompletableFuture.runAsync(() -> {
+                try {
+                    sendBroadcast(broadcast);
+                } catch (IOException e) {
+                    logger.warn("Broadcast {} interrupted, it will be resumed later: {}",
+                            broadcast.getId(),
+                            e.getMessage());
+                } catch (InterruptedException e) {
+                    logger.debug("Broadcast {} interrupted", broadcast.getId());
+                } catch (RuntimeException e) {
+                    // e.g. the send executor rejecting new sends while closing
+                    logger.warn("Broadcast {} stopped, it will be resumed later: {}", broadcast.getId(), e.toString());
+                }
+            }, executor);
+            runningBroadcasts.put(broadcast.getId(), future);
+            future.whenComplete((r, e) -> {
+                synchronized (runningBroadcasts) {
+                    runningBroadcasts.remove(broadcast.getId());
+                }
+            });
+            return true;
+        }
+    }
+
+    private void sendBroadcast(final BroadcastInfo broadcast) throws IOException, InterruptedException {
+        try {
+            sendBroadcastRecipients(broadcast);
+        } finally {
+            // Also for broadcasts kept to be resumed, otherwise the progress file stays open until the account closes
+            account.getBroadcastStore().closeBroadcast(broadcast.getId());
+        }
+    }
+
+    private void sendBroadcastRecipients(final BroadcastInfo broadcast) throws IOException, InterruptedException {
+        final var id = broadcast.getId();
+        final var messageBuilder = createMessageBuilder(broadcast);
+        final var recipients = broadcast.getRecipients();
+        final var results = broadcast.getResults();
+
+        final var maxInFlight = sendExecutor.getConcurrency() * 2;
+        final var inFlight = new Semaphore(maxInFlight);
+        final var pacer = new Pacer();
+        final var failedCount = new AtomicInteger();
+        var start = 0;
+        try {
+            while (start < recipients.size()) {
+                final var end = Math.min(start + LOOKUP_BATCH_SIZE, recipients.size());
+                final var pendingIndices = new ArrayList<Integer>(end - start);
+                for (var i = start; i < end; i++) {
+                    final var status = results.get(i);
+                    if (status == null || !BroadcastResult.Status.valueOf(status).isFinal()) {
+                        pendingIndices.add(i);
+                    }
+                }
+                start = end;
+                if (pendingIndices.isEmpty()) {
+                    continue;
+                }
+
+                final var recipientIds = resolveRecipients(pendingIndices.stream()
+                        .map(recipients::get)
+                        .collect(Collectors.toList()));
+                for (var j = 0; j < pendingIndices.size(); j++) {
+                    final var index = pendingIndices.get(j);
+                    final var recipientId = recipientIds.get(j);
+                    if (recipientId == null) {
+                        recordResult(id, index, recipients.get(index), BroadcastResult.Status.UNREGISTERED);
+                        continue;
+                    }
+
+                    pacer.awaitNextSend();
+                    inFlight.acquire();
+                    final CompletableFuture<SendMessageResult> future;
+                    try {
+                        future = sendExecutor.submit(recipientId,
+                                () -> sendHelper.sendMessage(messageBuilder, recipientId));
+                    } catch (RuntimeException e) {
+                        inFlight.release();
+                        throw e;
+                    }
+                    future.whenComplete((result, e) -> {
+                        try {
+                            final var status = e != null ? BroadcastResult.Status.NETWORK_FAILURE : getStatus(result);
+                            if (status == BroadcastResult.Status.NETWORK_FAILURE) {
+                                failedCount.incrementAndGet();
+                                pacer.backOff();
+                            } else {
+                                pacer.resetBackoff();
+                            }
+                            recordResult(id, index, recipients.get(index), status);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+            }
+        } finally {
+            // Wait for the sends in flight, they still record their results before the broadcast is closed
+            inFlight.acquireUninterruptibly(maxInFlight);
+        }
+
+        if (failedCount.get() == 0) {
+            account.getBroadcastStore().deleteBroadcast(id);
+            logger.info("Finished broadcast {}", id);
+        } else {
+            // Keep the broadcast, so the failed recipients are sent to when it's resumed
+            logger.info("Finished broadcast {}, {} recipients failed due to network errors",
+                    id,
+                    failedCount.get());
+        }
+        for (var listener : listeners) {
+            listener.handleBroadcastFinished(id, failedCount.get());
+        }
+    }
+
+    /**
+     * @return the recipient ids, or null for unregistered numbers
+     */
+    private List<RecipientId> resolveRecipients(final List<String> identifiers) throws IOException {
+        final var recipientStore = account.getRecipientStore();
+        final var unknownNumbers = new HashSet<String>();
+        for (var identifier : identifiers) {
+            if (!UuidUtil.isUuid(identifier)) {
+                try {
+                    recipientStore.resolveRecipient(identifier, () -> null);
+                } catch (UnregisteredUserException e) {
+                    unknownNumbers.add(identifier);
+                }
+            }
+        }
+
+        final Map<String, UUID> registeredUsers = unknownNumbers.isEmpty()
+                ? Map.of()
+                : registeredUsersProvider.getRegisteredUsers(unknownNumbers);
+        final var recipientIds = new ArrayList<RecipientId>(identifiers.size());
+        for (var identifier : identifiers) {
+            if (UuidUtil.isUuid(identifier)) {
+                recipientIds.add(recipientStore.resolveRecipient(UUID.fromString(identifier)));
+                continue;
+            }
+            try {
+                recipientIds.add(recipientStore.resolveRecipient(identifier, () -> registeredUsers.get(identifier)));
+            } catch (UnregisteredUserException e) {
+                recipientIds.add(null);
+            }
+        }
+        return recipientIds;
+    }
+
+    private void recordResult(
+            final long id, final int index, final String recipient, final BroadcastResult.Status status
+    ) {
+        account.getBroadcastStore().recordResult(id, index, status.name());
+        final var result = new BroadcastResult(id, index, recipient, status);
+        for (var listener : listeners) {
+            listener.handleResult(result);
+        }
+    }
+
+    private static SignalServiceDataMessage.Builder createMessageBuilder(
+            final BroadcastInfo broadcast
+    ) throws IOException {
+        final var attachments = new ArrayList<SignalServiceAttachment>(broadcast.getAttachments().size());
+        for (var attachment : broadcast.getAttachments()) {
+            final var pointer = SignalServiceProtos.AttachmentPointer.parseFrom(attachment);
+            attachments.add(AttachmentPointerUtil.createSignalAttachmentPointer(pointer));
+        }
+        return SignalServiceDataMessage.newBuilder()
+                .withTimestamp(broadcast.getId())
+                .withBody(broadcast.getMessageText())
+                .withAttachments(attachments);
+    }
+
+    private static BroadcastResult.Status getStatus(final SendMessageResult result) {
+        if (result.isSuccess()) {
+            return BroadcastResult.Status.SUCCESS;
+        } else if (result.isUnregisteredFailure()) {
+            return BroadcastResult.Status.UNREGISTERED;
+        } else if (result.getIdentityFailure() != null) {
+            return BroadcastResult.Status.IDENTITY_FAILURE;
+        } else if (result.getProofRequiredFailure() != null) {
+            return BroadcastResult.Status.PROOF_REQUIRED;
+        } else {
+            return BroadcastResult.Status.NETWORK_FAILURE;
+        }
+    }
+
+    /**
+     * Limits the send rate of a single broadcast and pauses it after network failures.
+     */
+    private final class Pacer {
+
+        private long nextSendTime = 0;
+        private long pausedUntil = 0;
+        private long backoff = 0;
+
+        void awaitNextSend() throws InterruptedException {
+            final long sendTime;
+            synchronized (this) {
+                final var maxRate = maxMessagesPerSecond;
+                final var now = System.currentTimeMillis();
+                sendTime = Math.max(Math.max(now, nextSendTime), pausedUntil);
+                nextSendTime = maxRate > 0 ? sendTime + (long) (1000 / maxRate) : 0;
+            }
+            final var delay = sendTime - System.currentTimeMillis();
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+        }
+
+        synchronized void backOff() {
+            backoff = backoff == 0 ? INITIAL_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+            pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + backoff);
+            logger.debug("Broadcast send failed, pausing for {}ms", backoff);
+        }
+
+        synchronized void resetBackoff() {
+            backoff = 0;
+        }
+    }
+}
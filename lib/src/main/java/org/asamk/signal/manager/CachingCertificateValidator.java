@@ -0,0 +1,64 @@
+package org.asamk.signal.manager;
+
+import org.signal.libsignal.metadata.InvalidCertificateException;
+import org.signal.libsignal.metadata.certificate.CertificateValidator;
+import org.signal.libsignal.metadata.certificate.SenderCertificate;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Certificate validator that remembers the sender certificates that have already been validated successfully.
+ * <p>
+ * Most sealed sender messages are sent with the same few certificates, so the signature chain only has to be
+ * verified once per certificate. A cached certificate is still rejected after its expiration.
+ */
+public class CachingCertificateValidator extends CertificateValidator {
+
+    private static final int MAX_CACHED_CERTIFICATES = 1000;
+
+    private final Map<ByteBuffer, Long> validatedCertificates = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, Long> eldest) {
+            return size() > MAX_CACHED_CERTIFICATES;
+        }
+    };
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public CachingCertificateValidator(final ECPublicKey trustRoot) {
+        super(trustRoot);
+    }
+
+    @Override
+    public void validate(
+            final SenderCertificate certificate, final long validationTime
+    ) throws InvalidCertificateException {
+        final var key = ByteBuffer.wrap(certificate.getSerialized());
+        synchronized (validatedCertificates) {
+            final var expiration = validatedCertificates.get(key);
+            if (expiration != null && validationTime <= expiration) {
+                hitCount.incrementAndGet();
+                return;
+            }
+        }
+
+        missCount.incrementAndGet();
+        super.validate(certificate, validationTime);
+
+        synchronized (validatedCertificates) {
+            validatedCertificates.put(key, certificate.getExpiration());
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
@@ -2,16 +2,220 @@ package org.asamk.signal.manager;
 
 import org.asamk.signal.manager.jobs.Context;
 import org.asamk.signal.manager.jobs.Job;
+import org.asamk.signal.manager.jobs.JobFactory;
+import org.asamk.signal.manager.jobs.RetrieveStickerPackJob;
+import org.asamk.signal.manager.storage.jobs.JobInfo;
+import org.asamk.signal.manager.storage.jobs.JobStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs jobs in the background on a worker pool.
+ * <p>
+ * Jobs are persisted in the {@link JobStore} before they are run and only removed after they have finished, so they
+ * are resumed after a restart. Failing jobs are retried with exponential backoff.
+ */
 public class JobExecutor {
 
+    private final static Logger logger = LoggerFactory.getLogger(JobExecutor.class);
+
+    private static final int WORKER_COUNT = 4;
+    private static final int DEFAULT_CONCURRENCY_LIMIT = 1;
+    private static final Map<String, Integer> CONCURRENCY_LIMITS = Map.of(RetrieveStickerPackJob.TYPE, 2);
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long INITIAL_RETRY_DELAY = TimeUnit.SECONDS.toMillis(10);
+    private static final long MAX_RETRY_DELAY = TimeUnit.HOURS.toMillis(1);
+    private static final long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
     private final Context context;
+    private final JobStore jobStore;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<String, Queue<JobInfo>> readyJobs = new HashMap<>();
+    private final Map<String, Integer> runningJobs = new HashMap<>();
+    private final Set<Long> activeJobIds = new HashSet<>();
+    private boolean resumed = false;
+    private volatile boolean holdingJobs = false;
 
-    public JobExecutor(final Context context) {
+    public JobExecutor(final Context context, final JobStore jobStore) {
         this.context = context;
+        this.jobStore = jobStore;
+        this.executor = Executors.newFixedThreadPool(WORKER_COUNT, r -> {
+            final var thread = new Thread(r, "job-executor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final var thread = new Thread(r, "job-executor-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public void enqueueJob(Job job) {
-        job.run(context);
+        final var jobInfo = jobStore.addJob(job.getType(), job.getKey(), job.serialize());
+        if (jobInfo == null) {
+            logger.debug("Job {} with key {} is already queued", job.getType(), job.getKey());
+            return;
+        }
+        schedule(jobInfo);
+    }
+
+    /**
+     * Schedules the jobs that were persisted by a previous run, only the first call has an effect.
+     */
+    public void resumePendingJobs() {
+        synchronized (readyJobs) {
+            if (resumed) {
+                return;
+            }
+            resumed = true;
+        }
+        final var jobs = jobStore.getJobs();
+        if (!jobs.isEmpty()) {
+            logger.debug("Resuming {} pending jobs", jobs.size());
+        }
+        for (var jobInfo : jobs) {
+            schedule(jobInfo);
+        }
+    }
+
+    public int getQueueDepth() {
+        return jobStore.getJobs().size();
+    }
+
+    /**
+     * While holding, new jobs are only persisted and not run before the next start.
+     */
+    public void setHoldingJobs(final boolean holdingJobs) {
+        this.holdingJobs = holdingJobs;
+    }
+
+    private void schedule(final JobInfo jobInfo) {
+        if (holdingJobs) {
+            return;
+        }
+        synchronized (readyJobs) {
+            if (!activeJobIds.add(jobInfo.getId())) {
+                // Already scheduled or running
+                return;
+            }
+        }
+        final var delay = jobInfo.getNextAttemptTimestamp() - System.currentTimeMillis();
+        if (delay <= 0) {
+            markReady(jobInfo);
+            return;
+        }
+        try {
+            scheduler.schedule(() -> markReady(jobInfo), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Job executor already closed, job {} will be resumed on next start", jobInfo.getType());
+        }
+    }
+
+    private void markReady(final JobInfo jobInfo) {
+        synchronized (readyJobs) {
+            readyJobs.computeIfAbsent(jobInfo.getType(), t -> new ArrayDeque<>()).add(jobInfo);
+            dispatchLocked(jobInfo.getType());
+        }
+    }
+
+    private void dispatchLocked(final String type) {
+        final var queue = readyJobs.get(type);
+        final var limit = CONCURRENCY_LIMITS.getOrDefault(type, DEFAULT_CONCURRENCY_LIMIT);
+        while (queue != null && !queue.isEmpty() && runningJobs.getOrDefault(type, 0) < limit) {
+            final var jobInfo = queue.poll();
+            try {
+                executor.execute(() -> runJob(jobInfo));
+            } catch (RejectedExecutionException e) {
+                logger.debug("Job executor already closed, job {} will be resumed on next start", type);
+                return;
+            }
+            runningJobs.merge(type, 1, Integer::sum);
+        }
+    }
+
+    private void runJob(final JobInfo jobInfo) {
+        try {
+            final var job = JobFactory.create(jobInfo.getType(), jobInfo.getData());
+            if (job == null) {
+                logger.warn("Dropping job with unknown type {}", jobInfo.getType());
+                finishJob(jobInfo);
+                return;
+            }
+
+            try {
+                job.run(context);
+                finishJob(jobInfo);
+            } catch (IOException e) {
+                handleFailure(jobInfo, e);
+            } catch (Throwable e) {
+                if (e.getCause() instanceof InterruptedException) {
+                    // Interrupted by shutdown, job is resumed on next start
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                logger.warn("Job {} failed, dropping it.", jobInfo.getType(), e);
+                finishJob(jobInfo);
+            }
+        } finally {
+            synchronized (readyJobs) {
+                runningJobs.merge(jobInfo.getType(), -1, Integer::sum);
+                dispatchLocked(jobInfo.getType());
+            }
+        }
+    }
+
+    private void handleFailure(final JobInfo jobInfo, final IOException e) {
+        if (jobInfo.getAttempts() + 1 >= MAX_ATTEMPTS) {
+            logger.warn("Job {} failed {} times, dropping it: {}", jobInfo.getType(), MAX_ATTEMPTS, e.getMessage());
+            finishJob(jobInfo);
+            return;
+        }
+        final var delay = Math.min(INITIAL_RETRY_DELAY << jobInfo.getAttempts(), MAX_RETRY_DELAY);
+        logger.debug("Job {} failed, retrying in {}ms: {}", jobInfo.getType(), delay, e.getMessage());
+        final var retryJobInfo = jobInfo.withNextAttempt(System.currentTimeMillis() + delay);
+        jobStore.updateJob(retryJobInfo);
+        synchronized (readyJobs) {
+            activeJobIds.remove(jobInfo.getId());
+        }
+        schedule(retryJobInfo);
+    }
+
+    private void finishJob(final JobInfo jobInfo) {
+        jobStore.deleteJob(jobInfo.getId());
+        synchronized (readyJobs) {
+            activeJobIds.remove(jobInfo.getId());
+        }
+    }
+
+    /**
+     * Stops the executor, unfinished jobs stay persisted and are resumed on the next start.
+     */
+    public void close() {
+        scheduler.shutdownNow();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
     }
 }
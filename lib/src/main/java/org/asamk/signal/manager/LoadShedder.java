@@ -0,0 +1,178 @@
+package org.asamk.signal.manager;
+
+import org.asamk.signal.manager.api.LoadSheddingPolicy;
+import org.whispersystems.signalservice.api.messages.SignalServiceContent;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.api.messages.SignalServiceReceiptMessage;
+import org.whispersystems.signalservice.api.messages.SignalServiceTypingMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses ephemeral events while the receive handler lags behind.
+ * <p>
+ * Above the lag threshold, typing messages and receipts are held back instead of being passed to the handler. A held
+ * event is dropped, if a later event of the same sender supersedes it, e.g. a typing started message followed by a
+ * typing stopped message, or a delivery receipt followed by a read receipt for the same messages. The remaining held
+ * events are passed to the handler once the lag is below the threshold again, so they may be delivered after data
+ * messages that were received later.
+ * <p>
+ * Not thread-safe, the caller has to synchronize the access.
+ */
+public class LoadShedder {
+
+    private static final int MAX_HELD_EVENTS = 1000;
+
+    private final LoadSheddingPolicy policy;
+    private final List<Event> heldEvents = new ArrayList<>();
+    private final AtomicLong shedTypingCount = new AtomicLong();
+    private final AtomicLong shedReceiptCount = new AtomicLong();
+
+    public LoadShedder(final LoadSheddingPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * @param lag the time in milliseconds the envelope waited for the handler
+     * @return true, if the event has been held back or dropped and must not be passed to the handler now
+     */
+    public boolean shed(final SignalServiceEnvelope envelope, final SignalServiceContent content, final long lag) {
+        if (content == null || !isLagging(lag) || heldEvents.size() >= MAX_HELD_EVENTS) {
+            return false;
+        }
+
+        if (policy.isShedTypingMessages() && content.getTypingMessage().isPresent()) {
+            shedTypingMessage(new Event(envelope, content));
+            return true;
+        }
+        if (policy.isShedReceipts() && content.getReceiptMessage().isPresent()) {
+            shedReceipt(new Event(envelope, content));
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isLagging(final long lag) {
+        return policy.isEnabled() && lag > policy.getLagThreshold();
+    }
+
+    /**
+     * @return true, if events are held back that should be passed to the handler once the lag is low again
+     */
+    public boolean hasHeldEvents() {
+        return !heldEvents.isEmpty();
+    }
+
+    /**
+     * Passes the held back events to the handler.
+     */
+    public void flush(final Manager.ReceiveMessageHandler handler) {
+        final var events = List.copyOf(heldEvents);
+        heldEvents.clear();
+        for (var event : events) {
+            handler.handleMessage(event.envelope, event.content, null);
+        }
+    }
+
+    public long getShedTypingCount() {
+        return shedTypingCount.get();
+    }
+
+    public long getShedReceiptCount() {
+        return shedReceiptCount.get();
+    }
+
+    private void shedTypingMessage(final Event event) {
+        final var typingMessage = event.content.getTypingMessage().get();
+        final var iterator = heldEvents.iterator();
+        while (iterator.hasNext()) {
+            final var held = iterator.next();
+            if (!held.isSameTypingContext(event)) {
+                continue;
+            }
+            iterator.remove();
+            shedTypingCount.incrementAndGet();
+            if (typingMessage.getAction() == SignalServiceTypingMessage.Action.STOPPED
+                    && held.content.getTypingMessage().get().isTypingStarted()) {
+                // Started/stopped pair, the recipient never needs to see either of them
+                shedTypingCount.incrementAndGet();
+                return;
+            }
+        }
+        heldEvents.add(event);
+    }
+
+    private void shedReceipt(final Event event) {
+        final var receiptMessage = event.content.getReceiptMessage().get();
+        final var timestamps = new HashSet<>(receiptMessage.getTimestamps());
+        final var rank = getRank(receiptMessage.getType());
+
+        for (var held : heldEvents) {
+            if (held.isReceiptFromSameSender(event)) {
+                final var heldReceipt = held.content.getReceiptMessage().get();
+                if (getRank(heldReceipt.getType()) >= rank && heldReceipt.getTimestamps().containsAll(timestamps)) {
+                    // Already covered by a held receipt
+                    shedReceiptCount.incrementAndGet();
+                    return;
+                }
+            }
+        }
+        final var iterator = heldEvents.iterator();
+        while (iterator.hasNext()) {
+            final var held = iterator.next();
+            if (held.isReceiptFromSameSender(event)) {
+                final var heldReceipt = held.content.getReceiptMessage().get();
+                if (getRank(heldReceipt.getType()) <= rank && timestamps.containsAll(heldReceipt.getTimestamps())) {
+                    iterator.remove();
+                    shedReceiptCount.incrementAndGet();
+                }
+            }
+        }
+        heldEvents.add(event);
+    }
+
+    private static int getRank(final SignalServiceReceiptMessage.Type type) {
+        switch (type) {
+            case DELIVERY:
+                return 1;
+            case READ:
+                return 2;
+            case VIEWED:
+                return 3;
+            default:
+                return 0;
+        }
+    }
+
+    private static final class Event {
+
+        private final SignalServiceEnvelope envelope;
+        private final SignalServiceContent content;
+
+        private Event(final SignalServiceEnvelope envelope, final SignalServiceContent content) {
+            this.envelope = envelope;
+            this.content = content;
+        }
+
+        private boolean isSameTypingContext(final Event other) {
+            if (!content.getTypingMessage().isPresent() || !content.getSender().equals(other.content.getSender())) {
+                return false;
+            }
+            final var groupId = content.getTypingMessage().get().getGroupId();
+            final var otherGroupId = other.content.getTypingMessage().get().getGroupId();
+            return groupId.isPresent() == otherGroupId.isPresent() && (
+                    !groupId.isPresent() || Arrays.equals(groupId.get(), otherGroupId.get())
+            );
+        }
+
+        private boolean isReceiptFromSameSender(final Event other) {
+            return content.getReceiptMessage().isPresent() && Objects.equals(content.getSender(),
+                    other.content.getSender());
+        }
+    }
+}
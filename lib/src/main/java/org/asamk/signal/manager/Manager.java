@@ -17,11 +17,17 @@
 package org.asamk.signal.manager;
 
 import org.asamk.signal.manager.actions.HandleAction;
+import org.asamk.signal.manager.actions.RetrieveProfileAction;
+import org.asamk.signal.manager.actions.SendReceiptAction;
+import org.asamk.signal.manager.api.BroadcastResult;
 import org.asamk.signal.manager.api.Device;
+import org.asamk.signal.manager.api.LoadSheddingPolicy;
 import org.asamk.signal.manager.api.Message;
+import org.asamk.signal.manager.api.QuarantinedMessage;
 import org.asamk.signal.manager.api.RecipientIdentifier;
 import org.asamk.signal.manager.api.SendGroupMessageResults;
 import org.asamk.signal.manager.api.SendMessageResults;
+import org.asamk.signal.manager.api.SendRateLimit;
 import org.asamk.signal.manager.api.TypingAction;
 import org.asamk.signal.manager.config.ServiceConfig;
 import org.asamk.signal.manager.config.ServiceEnvironment;
@@ -43,6 +49,7 @@ import org.asamk.signal.manager.helper.PinHelper;
 import org.asamk.signal.manager.helper.PreKeyHelper;
 import org.asamk.signal.manager.helper.ProfileHelper;
 import org.asamk.signal.manager.helper.SendHelper;
+import org.asamk.signal.manager.helper.SenderCertificateHelper;
 import org.asamk.signal.manager.helper.StorageHelper;
 import org.asamk.signal.manager.helper.SyncHelper;
 import org.asamk.signal.manager.helper.UnidentifiedAccessHelper;
@@ -57,7 +64,9 @@ import org.asamk.signal.manager.storage.recipients.Profile;
 import org.asamk.signal.manager.storage.recipients.RecipientId;
 import org.asamk.signal.manager.storage.stickers.Sticker;
 import org.asamk.signal.manager.storage.stickers.StickerPackId;
+import org.asamk.signal.manager.util.IOUtils;
 import org.asamk.signal.manager.util.KeyUtils;
+import org.asamk.signal.manager.util.MessageCacheUtils;
 import org.asamk.signal.manager.util.StickerUtils;
 import org.asamk.signal.manager.util.Utils;
 import org.slf4j.Logger;
@@ -71,9 +80,11 @@ import org.whispersystems.libsignal.fingerprint.FingerprintVersionMismatchExcept
 import org.whispersystems.libsignal.util.Pair;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.SignalSessionLock;
+import org.whispersystems.signalservice.api.SignalWebSocket;
 import org.whispersystems.signalservice.api.groupsv2.GroupLinkNotActiveException;
 import org.whispersystems.signalservice.api.messages.SendMessageResult;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentRemoteId;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment;
 import org.whispersystems.signalservice.api.messages.SignalServiceContent;
 import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
@@ -99,7 +110,9 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
@@ -109,10 +122,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -123,7 +140,14 @@ public class Manager implements Closeable {
 
     private final static Logger logger = LoggerFactory.getLogger(Manager.class);
 
+    // Clients stop showing a typing indicator after 15 seconds without a new typing message
+    private static final long STALE_TYPING_MESSAGE_AGE = TimeUnit.SECONDS.toMillis(15);
+    // Maximum number of handled messages, whose output may be buffered while catching up
+    private static final int CATCH_UP_OUTPUT_BATCH_SIZE = 100;
+
     private final ServiceEnvironmentConfig serviceEnvironmentConfig;
+    private final PathConfig pathConfig;
+    private final String userAgent;
     private final SignalDependencies dependencies;
 
     private SignalAccount account;
@@ -132,6 +156,7 @@ public class Manager implements Closeable {
 
     private final ProfileHelper profileHelper;
     private final PinHelper pinHelper;
+    private final SenderCertificateHelper senderCertificateHelper;
     private final StorageHelper storageHelper;
     private final SendHelper sendHelper;
     private final SyncHelper syncHelper;
@@ -142,7 +167,28 @@ public class Manager implements Closeable {
     private final PreKeyHelper preKeyHelper;
 
     private final Context context;
-    private boolean hasCaughtUpWithOldMessages = false;
+    private final ActionExecutor actionExecutor;
+    private final SendExecutor sendExecutor = new SendExecutor();
+    private final SendRateLimiter sendRateLimiter = new SendRateLimiter();
+    private final BroadcastSender broadcastSender;
+    private final Outbox outbox;
+    private volatile boolean outboxEnabled = false;
+    private final JobExecutor jobExecutor;
+    private volatile boolean hasCaughtUpWithOldMessages = false;
+    private volatile long lastCatchUpDuration = -1;
+    private volatile long lastCatchUpStaleTypingCount = 0;
+    private int receiveBufferLowWatermark = ReceiveBuffer.DEFAULT_LOW_WATERMARK;
+    private int receiveBufferHighWatermark = ReceiveBuffer.DEFAULT_HIGH_WATERMARK;
+    private volatile ReceiveBuffer receiveBuffer;
+    private volatile MessageCacheReplayer messageCacheReplayer;
+    // Cached messages of envelopes that are in the receive buffer or being dispatched,
+    // they must not be replayed as well
+    private final Set<CachedMessage> dispatchingCachedMessages = ConcurrentHashMap.newKeySet();
+    private final ReceiveEventBus receiveEventBus = new ReceiveEventBus();
+    private LoadSheddingPolicy loadSheddingPolicy = LoadSheddingPolicy.DISABLED;
+    private volatile LoadShedder loadShedder;
+    private volatile File envelopeCaptureDirectory;
+    private final AtomicLong capturedEnvelopeCount = new AtomicLong();
 
     Manager(
             SignalAccount account,
@@ -152,6 +198,8 @@ public class Manager implements Closeable {
     ) {
         this.account = account;
         this.serviceEnvironmentConfig = serviceEnvironmentConfig;
+        this.pathConfig = pathConfig;
+        this.userAgent = userAgent;
 
         final var credentialsProvider = new DynamicCredentialsProvider(account.getUuid(),
                 account.getUsername(),
@@ -176,12 +224,16 @@ public class Manager implements Closeable {
         final var attachmentStore = new AttachmentStore(pathConfig.getAttachmentsPath());
         final var stickerPackStore = new StickerPackStore(pathConfig.getStickerPacksPath());
 
-        this.attachmentHelper = new AttachmentHelper(dependencies, attachmentStore);
+        this.attachmentHelper = new AttachmentHelper(dependencies,
+                attachmentStore,
+                account.getAttachmentUploadStore(),
+                account.getResumableUploadStore());
         this.pinHelper = new PinHelper(dependencies.getKeyBackupService());
+        this.senderCertificateHelper = new SenderCertificateHelper(account, dependencies);
         final var unidentifiedAccessHelper = new UnidentifiedAccessHelper(account::getProfileKey,
                 account.getProfileStore()::getProfileKey,
                 this::getRecipientProfile,
-                this::getSenderCertificate);
+                senderCertificateHelper);
         this.profileHelper = new ProfileHelper(account,
                 dependencies,
                 avatarStore,
@@ -193,7 +245,9 @@ public class Manager implements Closeable {
                 account::getSelfRecipientId,
                 dependencies.getGroupsV2Operations(),
                 dependencies.getGroupsV2Api(),
-                this::resolveSignalServiceAddress);
+                this::resolveSignalServiceAddress,
+                account.getGroupCredentialStore(),
+                executor);
         this.sendHelper = new SendHelper(account,
                 dependencies,
                 unidentifiedAccessHelper,
@@ -201,7 +255,9 @@ public class Manager implements Closeable {
                 account.getRecipientStore(),
                 this::handleIdentityFailure,
                 this::getGroup,
-                this::refreshRegisteredUser);
+                this::refreshRegisteredUser,
+                this::getRecipientProfile,
+                sendRateLimiter);
         this.groupHelper = new GroupHelper(account,
                 dependencies,
                 attachmentHelper,
@@ -229,7 +285,14 @@ public class Manager implements Closeable {
                 profileHelper,
                 storageHelper,
                 preKeyHelper);
-        var jobExecutor = new JobExecutor(context);
+        this.broadcastSender = new BroadcastSender(account,
+                sendHelper,
+                sendExecutor,
+                this::getRegisteredUsers,
+                executor);
+        this.outbox = new Outbox(account, sendHelper, sendExecutor);
+        this.jobExecutor = new JobExecutor(context, account.getJobStore());
+        this.actionExecutor = new ActionExecutor(context);
 
         this.incomingMessageHandler = new IncomingMessageHandler(account,
                 dependencies,
@@ -537,24 +600,185 @@ public class Manager implements Closeable {
     public SendMessageResults sendMessage(
             SignalServiceDataMessage.Builder messageBuilder, Set<RecipientIdentifier> recipients
     ) throws IOException, NotAGroupMemberException, GroupNotFoundException, GroupSendingNotAllowedException {
-        var results = new HashMap<RecipientIdentifier, List<SendMessageResult>>();
-        long timestamp = System.currentTimeMillis();
+        return sendMessage(messageBuilder, recipients, System.currentTimeMillis());
+    }
+
+    private SendMessageResults sendMessage(
+            SignalServiceDataMessage.Builder messageBuilder, Set<RecipientIdentifier> recipients, long timestamp
+    ) throws IOException, NotAGroupMemberException, GroupNotFoundException, GroupSendingNotAllowedException {
+        return sendMessage(messageBuilder, recipients, timestamp, null);
+    }
+
+    /**
+     * @param failedGroups if not null, network errors don't abort the send. Individual recipients that failed get a
+     *                     network failure result and groups that failed are added to this list instead.
+     */
+    private SendMessageResults sendMessage(
+            SignalServiceDataMessage.Builder messageBuilder,
+            Set<RecipientIdentifier> recipients,
+            long timestamp,
+            Map<GroupId, IOException> failedGroups
+    ) throws IOException, NotAGroupMemberException, GroupNotFoundException, GroupSendingNotAllowedException {
+        final var results = new ConcurrentHashMap<RecipientIdentifier, List<SendMessageResult>>();
         messageBuilder.withTimestamp(timestamp);
+
+        // Individual recipients are sent to concurrently, the results are collected as they arrive
+        final var pendingSends = new ArrayList<CompletableFuture<Void>>();
         for (final var recipient : recipients) {
             if (recipient instanceof RecipientIdentifier.Single) {
                 final var recipientId = resolveRecipient((RecipientIdentifier.Single) recipient);
-                final var result = sendHelper.sendMessage(messageBuilder, recipientId);
-                results.put(recipient, List.of(result));
+                final var send = sendExecutor.submit(recipientId,
+                        () -> sendHelper.sendMessage(messageBuilder, recipientId));
+                pendingSends.add(failedGroups == null
+                        ? send.thenAccept(result -> results.put(recipient, List.of(result)))
+                        : send.handle((result, e) -> {
+                            results.put(recipient,
+                                    List.of(e == null ? result : toNetworkFailure(recipientId, e)));
+                            return null;
+                        }));
             } else if (recipient instanceof RecipientIdentifier.NoteToSelf) {
                 final var result = sendHelper.sendSelfMessage(messageBuilder);
                 results.put(recipient, List.of(result));
-            } else if (recipient instanceof RecipientIdentifier.Group) {
+            }
+        }
+        awaitSends(pendingSends);
+
+        // Group sends add the group context to the message, so they can only run after the individual sends
+        for (final var recipient : recipients) {
+            if (recipient instanceof RecipientIdentifier.Group) {
                 final var groupId = ((RecipientIdentifier.Group) recipient).groupId;
-                final var result = sendHelper.sendAsGroupMessage(messageBuilder, groupId);
-                results.put(recipient, result);
+                try {
+                    final var result = sendHelper.sendAsGroupMessage(messageBuilder, groupId);
+                    results.put(recipient, result);
+                } catch (IOException e) {
+                    if (failedGroups == null) {
+                        throw e;
+                    }
+                    failedGroups.put(groupId, e);
+                }
+            }
+        }
+        return new SendMessageResults(timestamp, new HashMap<>(results));
+    }
+
+    private SendMessageResult toNetworkFailure(final RecipientId recipientId, final Throwable e) {
+        final var cause = e instanceof CompletionException ? e.getCause() : e;
+        if (!(cause instanceof IOException)) {
+            throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+        }
+        logger.debug("Failed to send message to {}: {}", recipientId, cause.getMessage());
+        return SendMessageResult.networkFailure(resolveSignalServiceAddress(recipientId));
+    }
+
+    private void awaitSends(final List<CompletableFuture<Void>> pendingSends) throws IOException {
+        try {
+            CompletableFuture.allOf(pendingSends.toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            final var cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
             }
+            throw new AssertionError(cause);
         }
-        return new SendMessageResults(timestamp, results);
+    }
+
+    /**
+     * Starts sending the message to all recipients in the background.
+     * The broadcast is persisted, so it can be resumed with {@link #resumeBroadcasts()} if it is interrupted.
+     * The result for each recipient is passed to the broadcast listeners.
+     *
+     * @return the id of the broadcast, which is also the timestamp of the message
+     */
+    public long startBroadcast(
+            Message message, List<RecipientIdentifier.Single> recipients
+    ) throws IOException, AttachmentInvalidException {
+        final var attachments = message.getAttachments() == null
+                ? List.<SignalServiceAttachment>of()
+                : attachmentHelper.uploadAttachments(message.getAttachments());
+        final var identifiers = recipients.stream().map(r -> r instanceof RecipientIdentifier.Uuid
+                ? ((RecipientIdentifier.Uuid) r).uuid.toString()
+                : ((RecipientIdentifier.Number) r).number).collect(Collectors.toList());
+        return broadcastSender.startBroadcast(message.getMessageText(), attachments, identifiers);
+    }
+
+    /**
+     * Resumes the broadcasts that were interrupted or had recipients failing due to network errors.
+     *
+     * @return the ids of the resumed broadcasts
+     */
+    public List<Long> resumeBroadcasts() {
+        return broadcastSender.resumeBroadcasts();
+    }
+
+    /**
+     * Waits until the broadcast has finished, returns immediately if it isn't running.
+     */
+    public void awaitBroadcast(long broadcastId) throws InterruptedException {
+        broadcastSender.awaitBroadcast(broadcastId);
+    }
+
+    public void addBroadcastListener(BroadcastListener listener) {
+        broadcastSender.addListener(listener);
+    }
+
+    public void removeBroadcastListener(BroadcastListener listener) {
+        broadcastSender.removeListener(listener);
+    }
+
+    /**
+     * @param maxMessagesPerSecond the maximum send rate of broadcasts, or 0 for no limit
+     */
+    public void setBroadcastRateLimit(double maxMessagesPerSecond) {
+        broadcastSender.setMaxMessagesPerSecond(maxMessagesPerSecond);
+    }
+
+    /**
+     * Sets the maximum number of individual recipients that are sent to at the same time.
+     * Lower values reduce the risk of hitting the server's rate limits for messages to many recipients.
+     */
+    public void setSendConcurrency(final int concurrency) {
+        sendExecutor.setConcurrency(concurrency);
+    }
+
+    /**
+     * Sets the client side limits for sending messages to the account and to single recipients.
+     * The limiter also pauses sending after rate limit responses from the server, even without configured limits.
+     */
+    public void setSendRateLimit(final SendRateLimit sendRateLimit) {
+        sendRateLimiter.setLimit(sendRateLimit);
+    }
+
+    public SendRateLimiter.Stats getSendRateLimiterStats() {
+        return sendRateLimiter.getStats();
+    }
+
+    /**
+     * Enables reusing the pointers of recently uploaded attachments with identical content, e.g. for messages that
+     * are sent repeatedly with the same images.
+     */
+    public void setAttachmentUploadCacheEnabled(final boolean attachmentUploadCacheEnabled) {
+        attachmentHelper.setUploadCacheEnabled(attachmentUploadCacheEnabled);
+    }
+
+    /**
+     * Enables the outbox, that persists sent messages and retries the recipients that failed due to network errors
+     * in the background. The results of the retries are passed to the outbox listeners.
+     */
+    public void setOutboxEnabled(final boolean outboxEnabled) {
+        this.outboxEnabled = outboxEnabled;
+        if (outboxEnabled) {
+            outbox.resumePendingEntries();
+        }
+    }
+
+    public void addOutboxListener(OutboxListener listener) {
+        outbox.addListener(listener);
+    }
+
+    public void removeOutboxListener(OutboxListener listener) {
+        outbox.removeListener(listener);
     }
 
     public void sendTypingMessage(
@@ -598,18 +822,46 @@ public class Manager implements Closeable {
             Message message, Set<RecipientIdentifier> recipients
     ) throws IOException, AttachmentInvalidException, NotAGroupMemberException, GroupNotFoundException, GroupSendingNotAllowedException {
         final var messageBuilder = SignalServiceDataMessage.newBuilder();
-        applyMessage(messageBuilder, message);
-        return sendMessage(messageBuilder, recipients);
+        final var attachments = applyMessage(messageBuilder, message);
+        if (!outboxEnabled) {
+            return sendMessage(messageBuilder, recipients);
+        }
+
+        final var timestamp = System.currentTimeMillis();
+        final var outboxId = outbox.record(timestamp, message.getMessageText(), attachments, recipients);
+        final var failedGroups = new HashMap<GroupId, IOException>();
+        final SendMessageResults results;
+        try {
+            results = sendMessage(messageBuilder, recipients, timestamp, failedGroups);
+        } catch (IOException e) {
+            outbox.retryLater(outboxId);
+            throw e;
+        } catch (NotAGroupMemberException | GroupNotFoundException | GroupSendingNotAllowedException e) {
+            outbox.discard(outboxId);
+            throw e;
+        }
+        // Only the recipients and groups that failed are retried
+        outbox.complete(outboxId, results, failedGroups.keySet());
+        if (!failedGroups.isEmpty()) {
+            throw failedGroups.values().iterator().next();
+        }
+        return results;
     }
 
-    private void applyMessage(
+    /**
+     * @return the uploaded attachments
+     */
+    private List<SignalServiceAttachment> applyMessage(
             final SignalServiceDataMessage.Builder messageBuilder, final Message message
     ) throws AttachmentInvalidException, IOException {
         messageBuilder.withBody(message.getMessageText());
         final var attachments = message.getAttachments();
-        if (attachments != null) {
-            messageBuilder.withAttachments(attachmentHelper.uploadAttachments(attachments));
+        if (attachments == null) {
+            return List.of();
         }
+        final var uploadedAttachments = attachmentHelper.uploadAttachments(attachments);
+        messageBuilder.withAttachments(uploadedAttachments);
+        return uploadedAttachments;
     }
 
     public SendMessageResults sendRemoteDeleteMessage(
@@ -738,22 +990,6 @@ public class Manager implements Closeable {
         }
     }
 
-    private byte[] getSenderCertificate() {
-        byte[] certificate;
-        try {
-            if (account.isPhoneNumberShared()) {
-                certificate = dependencies.getAccountManager().getSenderCertificate();
-            } else {
-                certificate = dependencies.getAccountManager().getSenderCertificateForPhoneNumberPrivacy();
-            }
-        } catch (IOException e) {
-            logger.warn("Failed to get sender certificate, ignoring: {}", e.getMessage());
-            return null;
-        }
-        // TODO cache for a day
-        return certificate;
-    }
-
     private RecipientId refreshRegisteredUser(RecipientId recipientId) throws IOException {
         final var address = resolveSignalServiceAddress(recipientId);
         if (!address.getNumber().isPresent()) {
@@ -801,25 +1037,30 @@ public class Manager implements Closeable {
         sendTypingMessage(action.toSignalService(), recipients);
     }
 
-    private void retryFailedReceivedMessages(ReceiveMessageHandler handler, boolean ignoreAttachments) {
-        Set<HandleAction> queuedActions = new HashSet<>();
-        for (var cachedMessage : account.getMessageCache().getCachedMessages()) {
-            var actions = retryFailedReceivedMessage(handler, ignoreAttachments, cachedMessage);
-            if (actions != null) {
-                queuedActions.addAll(actions);
-            }
-        }
-        handleQueuedActions(queuedActions);
-    }
-
     private List<HandleAction> retryFailedReceivedMessage(
-            final ReceiveMessageHandler handler, final boolean ignoreAttachments, final CachedMessage cachedMessage
+            final PublishingHandler handler, final boolean ignoreAttachments, final CachedMessage cachedMessage
     ) {
+        if (!account.getMessageCache().isDueForRetry(cachedMessage)) {
+            return null;
+        }
+        if (dispatchingCachedMessages.contains(cachedMessage)) {
+            // Still waiting in the receive buffer, it's handled when it's dispatched
+            return null;
+        }
         var envelope = cachedMessage.loadEnvelope();
         if (envelope == null) {
             cachedMessage.delete();
             return null;
         }
+        if (handler.isCompletionPending(envelope.getServerGuid())) {
+            // Already handled, it's deleted once the output has been flushed
+            return null;
+        }
+        if (account.getServerGuidStore().isProcessed(envelope.getServerGuid())) {
+            logger.debug("Cached message was already processed, deleting it");
+            cachedMessage.delete();
+            return null;
+        }
 
         final var result = incomingMessageHandler.handleRetryEnvelope(envelope, ignoreAttachments, handler);
         final var actions = result.first();
@@ -831,20 +1072,22 @@ public class Manager implements Closeable {
                 cachedMessage.delete();
                 return null;
             }
+            var failedMessage = cachedMessage;
             if (!envelope.hasSourceUuid()) {
                 final var identifier = ((UntrustedIdentityException) exception).getSender();
                 final var recipientId = account.getRecipientStore().resolveRecipient(identifier);
                 try {
-                    account.getMessageCache().replaceSender(cachedMessage, recipientId);
+                    failedMessage = account.getMessageCache().replaceSender(cachedMessage, recipientId);
                 } catch (IOException ioException) {
                     logger.warn("Failed to move cached message to recipient folder: {}", ioException.getMessage());
                 }
             }
+            account.getMessageCache().recordFailedAttempt(failedMessage, exception);
             return null;
         }
 
         // If successful and for all other errors that are not recoverable, delete the cached message
-        cachedMessage.delete();
+        handler.complete(cachedMessage, envelope.getServerGuid());
         return actions;
     }
 
@@ -855,108 +1098,560 @@ public class Manager implements Closeable {
             boolean ignoreAttachments,
             ReceiveMessageHandler handler
     ) throws IOException {
-        retryFailedReceivedMessages(handler, ignoreAttachments);
+        // Refresh the sender certificates in the background, so replies can be sent with sealed sender right away
+        senderCertificateHelper.start();
+        final var shedder = new LoadShedder(loadSheddingPolicy);
+        loadShedder = shedder;
+        final var publishingHandler = new PublishingHandler(handler, shedder);
 
-        Set<HandleAction> queuedActions = new HashSet<>();
+        // Catch-up mode until the server queue is empty and the message cache has been replayed
+        hasCaughtUpWithOldMessages = false;
+        final var catchUpStartTimestamp = System.currentTimeMillis();
+        profileHelper.setDeferProfileRefreshes(true);
+        publishingHandler.setCatchingUp(true);
+        // Output that is still buffered is written on SIGTERM, before the handled messages are removed from the cache
+        final var shutdownHook = new Thread(publishingHandler::flushOutput, "receive-output-flush");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        jobExecutor.resumePendingJobs();
+        final var replayer = new MessageCacheReplayer(account.getMessageCache(),
+                cachedMessage -> retryFailedReceivedMessage(publishingHandler, ignoreAttachments, cachedMessage),
+                this::handleQueuedActions);
+        messageCacheReplayer = replayer;
+        replayer.start();
 
         final var signalWebSocket = dependencies.getSignalWebSocket();
         signalWebSocket.connect();
 
-        hasCaughtUpWithOldMessages = false;
-
-        while (!Thread.interrupted()) {
-            SignalServiceEnvelope envelope;
-            final CachedMessage[] cachedMessage = {null};
-            account.setLastReceiveTimestamp(System.currentTimeMillis());
-            logger.debug("Checking for new message from server");
+        final var buffer = new ReceiveBuffer(receiveBufferLowWatermark, receiveBufferHighWatermark);
+        receiveBuffer = buffer;
+        final var readerThread = new Thread(() -> readMessages(signalWebSocket,
+                buffer,
+                unit.toMillis(timeout),
+                returnOnTimeout), "receive-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+        try {
+            dispatchMessages(buffer, replayer, ignoreAttachments, publishingHandler, catchUpStartTimestamp);
+        } finally {
+            readerThread.interrupt();
             try {
-                var result = signalWebSocket.readOrEmpty(unit.toMillis(timeout), envelope1 -> {
-                    final var recipientId = envelope1.hasSourceUuid()
-                            ? resolveRecipient(envelope1.getSourceAddress())
-                            : null;
-                    // store message on disk, before acknowledging receipt to the server
-                    cachedMessage[0] = account.getMessageCache().cacheMessage(envelope1, recipientId);
-                });
-                if (result.isPresent()) {
-                    envelope = result.get();
-                    logger.debug("New message received from server");
-                } else {
-                    logger.debug("Received indicator that server queue is empty");
-                    handleQueuedActions(queuedActions);
-                    queuedActions.clear();
+                readerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                if (!Thread.currentThread().isInterrupted()) {
+                    replayer.awaitAll();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // Messages that haven't been replayed or dispatched yet stay cached for the next time
+            replayer.cancel();
+            dispatchingCachedMessages.clear();
+            profileHelper.setDeferProfileRefreshes(false);
+            publishingHandler.flushHeldEvents();
+            publishingHandler.setCatchingUp(false);
+            account.getServerGuidStore().flush();
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ignored) {
+                // Already shutting down, the hook flushes the output
+            }
+            if (shedder.getShedTypingCount() > 0 || shedder.getShedReceiptCount() > 0) {
+                logger.debug("Shed {} typing messages and {} receipts while lagging",
+                        shedder.getShedTypingCount(),
+                        shedder.getShedReceiptCount());
+            }
+            if (buffer.getMaxHandlerLag() > 0) {
+                logger.debug("Receive handler max lag: {}ms, spilled envelopes: {}",
+                        buffer.getMaxHandlerLag(),
+                        buffer.getSpilledTotal());
+            }
+        }
+    }
 
-                    hasCaughtUpWithOldMessages = true;
-                    synchronized (this) {
-                        this.notifyAll();
+    /**
+     * Reads envelopes from the websocket into the buffer, until interrupted or a timeout occurs with returnOnTimeout.
+     */
+    private void readMessages(
+            final SignalWebSocket signalWebSocket,
+            final ReceiveBuffer buffer,
+            final long timeoutMillis,
+            final boolean returnOnTimeout
+    ) {
+        IOException error = null;
+        try {
+            while (!Thread.interrupted()) {
+                SignalServiceEnvelope envelope;
+                final CachedMessage[] cachedMessage = {null};
+                final boolean[] isDuplicate = {false};
+                if (hasCaughtUpWithOldMessages) {
+                    // While catching up, the account is only saved once the server queue is empty
+                    account.setLastReceiveTimestamp(System.currentTimeMillis());
+                }
+                logger.debug("Checking for new message from server");
+                try {
+                    var result = signalWebSocket.readOrEmpty(timeoutMillis, envelope1 -> {
+                        if (account.getServerGuidStore().isProcessed(envelope1.getServerGuid())) {
+                            // Already processed, only acknowledge it to the server
+                            isDuplicate[0] = true;
+                            return;
+                        }
+                        final var recipientId = envelope1.hasSourceUuid()
+                                ? resolveRecipient(envelope1.getSourceAddress())
+                                : null;
+                        // store message on disk, before acknowledging receipt to the server
+                        cachedMessage[0] = account.getMessageCache().cacheMessage(envelope1, recipientId);
+                        if (cachedMessage[0] != null) {
+                            dispatchingCachedMessages.add(cachedMessage[0]);
+                        }
+                    });
+                    if (result.isPresent()) {
+                        envelope = result.get();
+                        logger.debug("New message received from server");
+                    } else {
+                        logger.debug("Received indicator that server queue is empty");
+                        account.setLastReceiveTimestamp(System.currentTimeMillis());
+                        buffer.putQueueEmpty();
+
+                        // Continue to wait another timeout for new messages
+                        continue;
                     }
-
-                    // Continue to wait another timeout for new messages
+                } catch (AssertionError e) {
+                    if (e.getCause() instanceof InterruptedException) {
+                        break;
+                    } else {
+                        throw e;
+                    }
+                } catch (WebSocketUnavailableException e) {
+                    logger.debug("Pipe unexpectedly unavailable, connecting");
+                    signalWebSocket.connect();
+                    continue;
+                } catch (TimeoutException e) {
+                    if (returnOnTimeout) break;
                     continue;
                 }
-            } catch (AssertionError e) {
-                if (e.getCause() instanceof InterruptedException) {
-                    Thread.currentThread().interrupt();
-                    break;
-                } else {
-                    throw e;
+
+                if (isDuplicate[0]) {
+                    logger.debug("Ignoring duplicate message with server guid {}", envelope.getServerGuid());
+                    continue;
                 }
-            } catch (WebSocketUnavailableException e) {
-                logger.debug("Pipe unexpectedly unavailable, connecting");
-                signalWebSocket.connect();
-                continue;
-            } catch (TimeoutException e) {
-                if (returnOnTimeout) return;
-                continue;
+                captureEnvelope(envelope);
+
+                buffer.put(envelope, cachedMessage[0]);
             }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException | AssertionError e) {
+            error = new IOException("Failed to read messages: " + e.getMessage(), e);
+        } finally {
+            buffer.putEnd(error);
+        }
+    }
 
-            final var result = incomingMessageHandler.handleEnvelope(envelope, ignoreAttachments, handler);
-            queuedActions.addAll(result.first());
-            final var exception = result.second();
+    private void captureEnvelope(final SignalServiceEnvelope envelope) {
+        final var captureDirectory = envelopeCaptureDirectory;
+        if (captureDirectory == null) {
+            return;
+        }
+        // File names sort in the order the envelopes were received
+        final var file = new File(captureDirectory,
+                String.format("%d_%06d", System.currentTimeMillis(), capturedEnvelopeCount.incrementAndGet()));
+        try {
+            MessageCacheUtils.storeEnvelope(envelope, file);
+        } catch (IOException e) {
+            logger.warn("Failed to capture envelope, ignoring: {}", e.getMessage());
+        }
+    }
 
-            if (hasCaughtUpWithOldMessages) {
+    /**
+     * Passes the buffered envelopes to the handler, until interrupted or the reader has stopped.
+     */
+    private void dispatchMessages(
+            final ReceiveBuffer buffer,
+            final MessageCacheReplayer replayer,
+            final boolean ignoreAttachments,
+            final PublishingHandler handler,
+            final long catchUpStartTimestamp
+    ) throws IOException {
+        Set<HandleAction> queuedActions = new HashSet<>();
+        var catchUpCount = 0;
+
+        while (!Thread.interrupted()) {
+            final ReceiveBuffer.Entry entry;
+            try {
+                entry = buffer.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            if (entry.isEnd()) {
+                if (entry.getError() != null) {
+                    handleQueuedActions(queuedActions);
+                    throw entry.getError();
+                }
+                break;
+            }
+            if (entry.isQueueEmpty()) {
+                handler.flushHeldEvents();
+                handler.flushOutput();
+                account.getServerGuidStore().flush();
                 handleQueuedActions(queuedActions);
+                queuedActions.clear();
+
+                if (!hasCaughtUpWithOldMessages) {
+                    markCaughtUpAfterReplay(replayer, handler, catchUpStartTimestamp, catchUpCount);
+                }
+                continue;
             }
-            if (cachedMessage[0] != null) {
-                if (exception instanceof UntrustedIdentityException) {
-                    final var address = ((UntrustedIdentityException) exception).getSender();
-                    final var recipientId = resolveRecipient(address);
-                    if (!envelope.hasSourceUuid()) {
-                        try {
-                            cachedMessage[0] = account.getMessageCache().replaceSender(cachedMessage[0], recipientId);
-                        } catch (IOException ioException) {
-                            logger.warn("Failed to move cached message to recipient folder: {}",
-                                    ioException.getMessage());
-                        }
-                    }
-                } else {
-                    cachedMessage[0].delete();
+
+            final var cachedMessage = entry.getCachedMessage();
+            try {
+                if (!dispatchEnvelope(entry, replayer, ignoreAttachments, handler, queuedActions)) {
+                    break;
                 }
+            } finally {
+                if (cachedMessage != null) {
+                    dispatchingCachedMessages.remove(cachedMessage);
+                }
+            }
+            if (!hasCaughtUpWithOldMessages) {
+                catchUpCount++;
             }
         }
         handleQueuedActions(queuedActions);
     }
 
-    public boolean hasCaughtUpWithOldMessages() {
-        return hasCaughtUpWithOldMessages;
+    /**
+     * @return false, if interrupted
+     */
+    private boolean dispatchEnvelope(
+            final ReceiveBuffer.Entry entry,
+            final MessageCacheReplayer replayer,
+            final boolean ignoreAttachments,
+            final PublishingHandler handler,
+            final Set<HandleAction> queuedActions
+    ) {
+        var cachedMessage = entry.getCachedMessage();
+        final var envelope = entry.loadEnvelope();
+        if (envelope == null) {
+            // Spilled envelope could not be loaded from the message cache
+            cachedMessage.delete();
+            return true;
+        }
+
+        // New messages must not overtake cached messages of the same sender. The sender of sealed sender messages is
+        // only known after decrypting them, so they wait until all cached messages have been replayed.
+        try {
+            if (envelope.hasSourceUuid()) {
+                replayer.awaitSender(resolveRecipient(envelope.getSourceAddress()));
+            } else {
+                replayer.awaitAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        if (handler.isCompletionPending(envelope.getServerGuid())) {
+            // Already handled by a replay, delete this copy together with the output of the replayed message
+            handler.complete(cachedMessage, envelope.getServerGuid());
+            return true;
+        }
+        if (account.getServerGuidStore().isProcessed(envelope.getServerGuid())) {
+            // Already handled by a replay of the message cache while it was waiting in the buffer
+            logger.debug("Ignoring already processed message with server guid {}", envelope.getServerGuid());
+            if (cachedMessage != null) {
+                cachedMessage.delete();
+            }
+            return true;
+        }
+
+        final var result = incomingMessageHandler.handleEnvelope(envelope, ignoreAttachments, handler);
+        queuedActions.addAll(result.first());
+        final var exception = result.second();
+
+        if (hasCaughtUpWithOldMessages) {
+            handleQueuedActions(queuedActions);
+            queuedActions.clear();
+        }
+        if (!(exception instanceof UntrustedIdentityException)) {
+            handler.complete(cachedMessage, envelope.getServerGuid());
+        } else if (cachedMessage != null) {
+            final var address = ((UntrustedIdentityException) exception).getSender();
+            final var recipientId = resolveRecipient(address);
+            if (!envelope.hasSourceUuid()) {
+                try {
+                    cachedMessage = account.getMessageCache().replaceSender(cachedMessage, recipientId);
+                } catch (IOException ioException) {
+                    logger.warn("Failed to move cached message to recipient folder: {}", ioException.getMessage());
+                }
+            }
+            account.getMessageCache().recordFailedAttempt(cachedMessage, exception);
+        }
+        return true;
     }
 
-    private void handleQueuedActions(final Collection<HandleAction> queuedActions) {
-        var interrupted = false;
-        for (var action : queuedActions) {
+    /**
+     * Retries the cached messages of the recipient without backoff, e.g. after its identity has been trusted.
+     * If messages are currently being received, they are replayed immediately, otherwise with the next receive.
+     */
+    private void retryCachedMessages(final RecipientId recipientId) {
+        final var messageCache = account.getMessageCache();
+        for (var cachedMessage : messageCache.getQuarantinedMessages(recipientId)) {
             try {
-                action.execute(context);
-            } catch (Throwable e) {
-                if ((e instanceof AssertionError || e instanceof RuntimeException)
-                        && e.getCause() instanceof InterruptedException) {
-                    interrupted = true;
-                    continue;
-                }
-                logger.warn("Message action failed.", e);
+                messageCache.restoreFromQuarantine(cachedMessage);
+            } catch (IOException e) {
+                logger.warn("Failed to restore quarantined message: {}", e.getMessage());
             }
         }
-        if (interrupted) {
-            Thread.currentThread().interrupt();
+        final var cachedMessages = messageCache.getCachedMessages(recipientId);
+        if (cachedMessages.isEmpty()) {
+            return;
         }
+        for (var cachedMessage : cachedMessages) {
+            messageCache.resetRetryInfo(cachedMessage);
+        }
+
+        final var replayer = messageCacheReplayer;
+        if (replayer != null && replayer.replaySender(recipientId)) {
+            logger.debug("Replaying {} cached messages after trust change", cachedMessages.size());
+        }
+    }
+
+    private void markCaughtUpAfterReplay(
+            final MessageCacheReplayer replayer,
+            final PublishingHandler handler,
+            final long catchUpStartTimestamp,
+            final int catchUpCount
+    ) {
+        final Runnable markCaughtUp = () -> {
+            hasCaughtUpWithOldMessages = true;
+            lastCatchUpDuration = System.currentTimeMillis() - catchUpStartTimestamp;
+            lastCatchUpStaleTypingCount = handler.getStaleTypingCount();
+            logger.info("Caught up with {} queued and {} cached messages in {}ms, dropped {} stale typing messages",
+                    catchUpCount,
+                    replayer.getReplayedCount(),
+                    lastCatchUpDuration,
+                    lastCatchUpStaleTypingCount);
+
+            // Switch back to low-latency mode and do the work that has been deferred while catching up
+            profileHelper.setDeferProfileRefreshes(false);
+            handleQueuedActions(profileHelper.takeDeferredProfileRefreshes()
+                    .stream()
+                    .map(RetrieveProfileAction::new)
+                    .collect(Collectors.toList()));
+            handler.setCatchingUp(false);
+            synchronized (this) {
+                this.notifyAll();
+            }
+        };
+        if (replayer.isFinished()) {
+            markCaughtUp.run();
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                replayer.awaitAll();
+                markCaughtUp.run();
+            } catch (InterruptedException ignored) {
+            }
+        });
+    }
+
+    /**
+     * @return the replay of the message cache of the currently or last running receiveMessages call, to monitor its
+     * progress
+     */
+    public MessageCacheReplayer getMessageCacheReplayer() {
+        return messageCacheReplayer;
+    }
+
+    /**
+     * Adds a handler that receives all messages received by {@link #receiveMessages}, in addition to the handler passed
+     * there. The handler is called on its own thread with a bounded queue, if it can't keep up messages are dropped.
+     */
+    public ReceiveEventBus.Subscriber addReceiveHandler(ReceiveMessageHandler handler) {
+        return addReceiveHandler(handler, ReceiveEventBus.DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public ReceiveEventBus.Subscriber addReceiveHandler(ReceiveMessageHandler handler, int queueCapacity) {
+        return receiveEventBus.subscribe(handler, queueCapacity, false);
+    }
+
+    /**
+     * Adds a handler like {@link #addReceiveHandler(ReceiveMessageHandler)}, that never misses a message.
+     * If it can't keep up, receiving waits for it and further messages are only kept in the message cache meanwhile.
+     */
+    public ReceiveEventBus.Subscriber addBlockingReceiveHandler(ReceiveMessageHandler handler) {
+        return receiveEventBus.subscribe(handler, ReceiveEventBus.DEFAULT_QUEUE_CAPACITY, true);
+    }
+
+    public void removeReceiveHandler(ReceiveMessageHandler handler) {
+        receiveEventBus.unsubscribe(handler);
+    }
+
+    /**
+     * Sets the number of received envelopes kept in memory while waiting for the receive handler.
+     * When the high watermark is reached, further envelopes are only kept in the message cache until the handler has
+     * caught up to the low watermark.
+     */
+    public void setReceiveBufferWatermarks(int lowWatermark, int highWatermark) {
+        if (lowWatermark < 0 || highWatermark < lowWatermark) {
+            throw new IllegalArgumentException("Invalid receive buffer watermarks");
+        }
+        this.receiveBufferLowWatermark = lowWatermark;
+        this.receiveBufferHighWatermark = highWatermark;
+    }
+
+    /**
+     * Stores a copy of every received envelope in the directory, to replay them with {@link #benchmarkReceive(File)}.
+     *
+     * @param captureDirectory the directory or null to stop capturing
+     */
+    public void setEnvelopeCaptureDirectory(final File captureDirectory) throws IOException {
+        if (captureDirectory != null) {
+            IOUtils.createPrivateDirectories(captureDirectory);
+        }
+        this.envelopeCaptureDirectory = captureDirectory;
+    }
+
+    /**
+     * Replays captured envelopes through the receive path, to measure its performance without a server.
+     * <p>
+     * The envelopes are replayed with a temporary copy of the account data, so the account isn't modified and every
+     * run with the same corpus starts from the same state. The copy has no network access, its requests fail
+     * immediately without being sent. The resulting actions like receipts are discarded, outdated profiles aren't
+     * refreshed and new jobs aren't run, so only the local processing is measured.
+     * For meaningful results, the account data should be the state before the envelopes were captured.
+     */
+    public ReceiveBenchmark.Result benchmarkReceive(final File corpusDirectory) throws IOException {
+        final var copyPath = Files.createTempDirectory("signal-cli-benchmark");
+        try {
+            final var copyPathConfig = PathConfig.createDefault(copyPath.toFile());
+            SignalAccount.copyAccountData(pathConfig.getDataPath(),
+                    copyPathConfig.getDataPath(),
+                    account.getUsername());
+            final var copyAccount = SignalAccount.load(copyPathConfig.getDataPath(),
+                    account.getUsername(),
+                    false,
+                    account.getIdentityKeyStore().getTrustNewIdentity());
+            try (var copy = new Manager(copyAccount,
+                    copyPathConfig,
+                    ServiceConfig.createOfflineServiceEnvironmentConfig(serviceEnvironmentConfig),
+                    userAgent)) {
+                return copy.replayEnvelopes(corpusDirectory);
+            }
+        } finally {
+            try {
+                IOUtils.deleteRecursively(copyPath);
+            } catch (IOException e) {
+                logger.warn("Failed to delete benchmark account copy {}: {}", copyPath, e.getMessage());
+            }
+        }
+    }
+
+    private ReceiveBenchmark.Result replayEnvelopes(final File corpusDirectory) throws IOException {
+        final ReceiveMessageHandler handler = (envelope, content, e) -> {
+        };
+        profileHelper.setDeferProfileRefreshes(true);
+        jobExecutor.setHoldingJobs(true);
+        try {
+            return new ReceiveBenchmark(envelope -> incomingMessageHandler.handleEnvelope(envelope, true, handler)
+                    .second(), dependencies.getCertificateValidator()).run(corpusDirectory);
+        } finally {
+            profileHelper.setDeferProfileRefreshes(false);
+            profileHelper.takeDeferredProfileRefreshes();
+            jobExecutor.setHoldingJobs(false);
+        }
+    }
+
+    /**
+     * Sets which ephemeral events may be collapsed or dropped, while the receive handler lags behind.
+     * Takes effect with the next receiveMessages call.
+     */
+    public void setLoadSheddingPolicy(final LoadSheddingPolicy loadSheddingPolicy) {
+        this.loadSheddingPolicy = loadSheddingPolicy;
+    }
+
+    /**
+     * @return the load shedder of the currently or last running receiveMessages call, to monitor the shed events
+     */
+    public LoadShedder getLoadShedder() {
+        return loadShedder;
+    }
+
+    /**
+     * @return the buffer of the currently or last running receiveMessages call, to monitor the receive handler lag
+     */
+    public ReceiveBuffer getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
+    /**
+     * @return the cached messages that repeatedly failed to be processed and are no longer retried automatically
+     */
+    public List<QuarantinedMessage> getQuarantinedMessages() {
+        final var messageCache = account.getMessageCache();
+        final var messages = new ArrayList<QuarantinedMessage>();
+        for (var entry : messageCache.getQuarantinedMessagesBySender().entrySet()) {
+            final String sender = entry.getKey() == null
+                    ? null
+                    : resolveSignalServiceAddress(entry.getKey()).getIdentifier();
+            for (var cachedMessage : entry.getValue()) {
+                final var envelope = cachedMessage.loadEnvelope();
+                final var retryInfo = messageCache.getRetryInfo(cachedMessage);
+                messages.add(new QuarantinedMessage(sender,
+                        envelope == null ? 0 : envelope.getTimestamp(),
+                        cachedMessage.getReceivedTimestamp(),
+                        retryInfo.getAttempts(),
+                        retryInfo.getLastError()));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Moves all quarantined messages back to the message cache, they are retried with a new retry budget.
+     *
+     * @return the number of restored messages
+     */
+    public int retryQuarantinedMessages() throws IOException {
+        final var messageCache = account.getMessageCache();
+        var count = 0;
+        for (var messages : messageCache.getQuarantinedMessagesBySender().values()) {
+            for (var cachedMessage : messages) {
+                messageCache.restoreFromQuarantine(cachedMessage);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public boolean hasCaughtUpWithOldMessages() {
+        return hasCaughtUpWithOldMessages;
+    }
+
+    /**
+     * @return the time in milliseconds the last receive needed to catch up with old messages, or -1
+     */
+    public long getLastCatchUpDuration() {
+        return lastCatchUpDuration;
+    }
+
+    /**
+     * @return the number of outdated typing messages the last receive dropped while catching up with old messages
+     */
+    public long getLastCatchUpStaleTypingCount() {
+        return lastCatchUpStaleTypingCount;
+    }
+
+    private void handleQueuedActions(final Collection<HandleAction> queuedActions) {
+        actionExecutor.enqueueActions(SendReceiptAction.combine(queuedActions));
     }
 
     public boolean isContactBlocked(final RecipientIdentifier.Single recipient) {
@@ -1109,6 +1804,7 @@ public class Manager implements Closeable {
         }
 
         account.getIdentityKeyStore().setIdentityTrustLevel(recipientId, identity.getIdentityKey(), trustLevel);
+        retryCachedMessages(recipientId);
         try {
             var address = resolveSignalServiceAddress(recipientId);
             syncHelper.sendVerifiedMessage(address, identity.getIdentityKey(), trustLevel);
@@ -1218,6 +1914,13 @@ public class Manager implements Closeable {
     }
 
     private void close(boolean closeAccount) throws IOException {
+        receiveEventBus.close();
+        actionExecutor.close();
+        jobExecutor.close();
+        sendExecutor.close();
+        attachmentHelper.close();
+        outbox.close();
+        senderCertificateHelper.close();
         executor.shutdown();
 
         dependencies.getSignalWebSocket().disconnect();
@@ -1228,8 +1931,180 @@ public class Manager implements Closeable {
         account = null;
     }
 
+    /**
+     * Passes the received messages to the receive handler and the event bus.
+     * It's called from the replay threads and the receive thread.
+     * <p>
+     * While catching up, the receive handler may buffer its output. Handled messages are then only marked as processed
+     * and removed from the message cache after their output has been flushed, at the latest after
+     * {@link #CATCH_UP_OUTPUT_BATCH_SIZE} messages. So they are received again if the output is lost in a crash.
+     */
+    private final class PublishingHandler implements ReceiveMessageHandler {
+
+        private final ReceiveMessageHandler handler;
+        private final LoadShedder loadShedder;
+        private final AtomicLong staleTypingCount = new AtomicLong();
+        private final List<CachedMessage> pendingCachedMessages = new ArrayList<>();
+        private final Set<String> pendingServerGuids = new HashSet<>();
+        private boolean catchingUp;
+
+        private PublishingHandler(final ReceiveMessageHandler handler, final LoadShedder loadShedder) {
+            this.handler = handler;
+            this.loadShedder = loadShedder;
+        }
+
+        @Override
+        public void handleMessage(
+                final SignalServiceEnvelope envelope, final SignalServiceContent content, final Throwable e
+        ) {
+            if (!hasCaughtUpWithOldMessages
+                    && content != null
+                    && content.getTypingMessage().isPresent()
+                    && System.currentTimeMillis() - envelope.getServerReceivedTimestamp() > STALE_TYPING_MESSAGE_AGE) {
+                // Typing indicators from the backlog are outdated already, live ones are still delivered
+                staleTypingCount.incrementAndGet();
+                return;
+            }
+            synchronized (this) {
+                final var buffer = receiveBuffer;
+                final var lag = buffer == null ? 0 : buffer.getLastHandlerLag();
+                if (e == null && loadShedder.shed(envelope, content, lag)) {
+                    return;
+                }
+                if (loadShedder.hasHeldEvents() && !loadShedder.isLagging(lag)) {
+                    loadShedder.flush(this::publish);
+                }
+                publish(envelope, content, e);
+            }
+        }
+
+        @Override
+        public synchronized void setCatchingUp(final boolean catchingUp) {
+            if (!catchingUp) {
+                flushOutput();
+            }
+            this.catchingUp = catchingUp;
+            if (handler != null) {
+                handler.setCatchingUp(catchingUp);
+            }
+        }
+
+        /**
+         * Marks the handled message as processed and deletes it from the message cache, while catching up only after
+         * its output has been flushed.
+         *
+         * @param cachedMessage the cached message or null, if the message wasn't cached
+         */
+        private synchronized void complete(final CachedMessage cachedMessage, final String serverGuid) {
+            if (!catchingUp) {
+                completeMessage(cachedMessage, serverGuid);
+                return;
+            }
+            if (cachedMessage != null) {
+                pendingCachedMessages.add(cachedMessage);
+            }
+            if (serverGuid != null) {
+                pendingServerGuids.add(serverGuid);
+            }
+            if (pendingCachedMessages.size() >= CATCH_UP_OUTPUT_BATCH_SIZE
+                    || pendingServerGuids.size() >= CATCH_UP_OUTPUT_BATCH_SIZE) {
+                flushOutput();
+            }
+        }
+
+        private synchronized boolean isCompletionPending(final String serverGuid) {
+            return serverGuid != null && pendingServerGuids.contains(serverGuid);
+        }
+
+        /**
+         * Writes the buffered output and completes the messages it belongs to.
+         */
+        private synchronized void flushOutput() {
+            if (pendingServerGuids.isEmpty() && pendingCachedMessages.isEmpty()) {
+                return;
+            }
+            // Events held back by the load shedder belong to handled messages as well
+            loadShedder.flush(this::publish);
+            if (handler != null) {
+                handler.flush();
+            }
+            for (var serverGuid : pendingServerGuids) {
+                account.getServerGuidStore().markProcessed(serverGuid);
+            }
+            for (var cachedMessage : pendingCachedMessages) {
+                cachedMessage.delete();
+            }
+            pendingServerGuids.clear();
+            pendingCachedMessages.clear();
+        }
+
+        private void completeMessage(final CachedMessage cachedMessage, final String serverGuid) {
+            account.getServerGuidStore().markProcessed(serverGuid);
+            if (cachedMessage != null) {
+                cachedMessage.delete();
+            }
+        }
+
+        private long getStaleTypingCount() {
+            return staleTypingCount.get();
+        }
+
+        private synchronized void flushHeldEvents() {
+            loadShedder.flush(this::publish);
+        }
+
+        private void publish(
+                final SignalServiceEnvelope envelope, final SignalServiceContent content, final Throwable e
+        ) {
+            if (handler != null) {
+                handler.handleMessage(envelope, content, e);
+            }
+            receiveEventBus.publish(envelope, content, e);
+        }
+    }
+
+    public interface BroadcastListener {
+
+        /**
+         * Called for each recipient of a broadcast as soon as the result is known.
+         */
+        void handleResult(BroadcastResult result);
+
+        /**
+         * Called when all recipients of a broadcast have been sent to.
+         *
+         * @param failedCount the number of recipients that failed due to network errors and are sent to again when
+         *                    the broadcast is resumed
+         */
+        void handleBroadcastFinished(long broadcastId, int failedCount);
+    }
+
+    public interface OutboxListener {
+
+        /**
+         * Called after the outbox has sent a message again to the recipients that failed before.
+         *
+         * @param finished true if no recipients are left to retry, either because all received the message or
+         *                 because the outbox has given up
+         */
+        void handleRetryResults(SendMessageResults results, boolean finished);
+    }
+
     public interface ReceiveMessageHandler {
 
         void handleMessage(SignalServiceEnvelope envelope, SignalServiceContent decryptedContent, Throwable e);
+
+        /**
+         * Called when receiving starts or stops catching up with old messages.
+         * While catching up, the handler may buffer its output, until it's called with false or {@link #flush()}.
+         */
+        default void setCatchingUp(boolean catchingUp) {
+        }
+
+        /**
+         * Writes the buffered output, the handled messages are removed from the message cache afterwards.
+         */
+        default void flush() {
+        }
     }
 }
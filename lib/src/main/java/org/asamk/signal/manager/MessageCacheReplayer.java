@@ -0,0 +1,200 @@
+package org.asamk.signal.manager;
+
+import org.asamk.signal.manager.actions.HandleAction;
+import org.asamk.signal.manager.storage.messageCache.CachedMessage;
+import org.asamk.signal.manager.storage.messageCache.MessageCache;
+import org.asamk.signal.manager.storage.recipients.RecipientId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Replays the envelopes from the message cache in the background, while new messages are already received.
+ * <p>
+ * The messages of different senders are replayed concurrently, the messages of one sender in the order they were
+ * received. New messages of a sender have to wait with {@link #awaitSender(RecipientId)} until the cached messages of
+ * that sender have been replayed, messages with unknown sender with {@link #awaitAll()}.
+ * While receiving, the messages of a single sender can be replayed again with {@link #replaySender(RecipientId)}, e.g.
+ * after the sender's identity has been trusted.
+ */
+public class MessageCacheReplayer {
+
+    private final static Logger logger = LoggerFactory.getLogger(MessageCacheReplayer.class);
+
+    private static final int REPLAY_THREADS = 4;
+
+    private final MessageCache messageCache;
+    private final Function<CachedMessage, List<HandleAction>> replayFunction;
+    private final Consumer<Collection<HandleAction>> actionHandler;
+
+    private final Set<RecipientId> pendingSenders = new HashSet<>();
+    private final Set<RecipientId> repeatSenders = new HashSet<>();
+    private final AtomicInteger totalCount = new AtomicInteger();
+    private final AtomicInteger replayedCount = new AtomicInteger();
+    private final ExecutorService executor;
+    private boolean cancelled;
+    private long startTimestamp;
+
+    public MessageCacheReplayer(
+            final MessageCache messageCache,
+            final Function<CachedMessage, List<HandleAction>> replayFunction,
+            final Consumer<Collection<HandleAction>> actionHandler
+    ) {
+        this.messageCache = messageCache;
+        this.replayFunction = replayFunction;
+        this.actionHandler = actionHandler;
+        this.executor = Executors.newFixedThreadPool(REPLAY_THREADS, r -> {
+            final var thread = new Thread(r, "message-cache-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        final var messagesBySender = messageCache.getCachedMessagesBySender();
+        if (messagesBySender.isEmpty()) {
+            return;
+        }
+        startTimestamp = System.currentTimeMillis();
+        totalCount.set(messagesBySender.values().stream().mapToInt(List::size).sum());
+        logger.debug("Replaying {} cached messages from {} senders", totalCount.get(), messagesBySender.size());
+
+        synchronized (pendingSenders) {
+            pendingSenders.addAll(messagesBySender.keySet());
+        }
+        for (var entry : messagesBySender.entrySet()) {
+            executor.execute(() -> replaySender(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * Replays the cached messages of one sender, new messages of that sender wait until it's finished.
+     *
+     * @return false, if the replayer has already been cancelled
+     */
+    public boolean replaySender(final RecipientId sender) {
+        synchronized (pendingSenders) {
+            if (cancelled) {
+                return false;
+            }
+            if (!pendingSenders.add(sender)) {
+                // Already replaying, replay again afterwards to include messages the running replay may have missed
+                repeatSenders.add(sender);
+                return true;
+            }
+        }
+        try {
+            executor.execute(() -> replaySenderAgain(sender));
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the cached messages of the sender have been replayed.
+     *
+     * @param sender the sender or null for messages with unknown sender
+     */
+    public void awaitSender(final RecipientId sender) throws InterruptedException {
+        synchronized (pendingSenders) {
+            while (pendingSenders.contains(sender)) {
+                pendingSenders.wait();
+            }
+        }
+    }
+
+    /**
+     * Waits until all cached messages have been replayed.
+     */
+    public void awaitAll() throws InterruptedException {
+        synchronized (pendingSenders) {
+            while (!pendingSenders.isEmpty()) {
+                pendingSenders.wait();
+            }
+        }
+    }
+
+    /**
+     * Stops the replay, messages that haven't been replayed yet stay in the message cache.
+     */
+    public void cancel() {
+        synchronized (pendingSenders) {
+            cancelled = true;
+            pendingSenders.clear();
+            repeatSenders.clear();
+            pendingSenders.notifyAll();
+        }
+        executor.shutdownNow();
+    }
+
+    public int getTotalCount() {
+        return totalCount.get();
+    }
+
+    public int getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    public int getPendingSenderCount() {
+        synchronized (pendingSenders) {
+            return pendingSenders.size();
+        }
+    }
+
+    public boolean isFinished() {
+        return getPendingSenderCount() == 0;
+    }
+
+    private void replaySenderAgain(final RecipientId sender) {
+        final var cachedMessages = messageCache.getCachedMessages(sender);
+        totalCount.addAndGet(cachedMessages.size());
+        replaySender(sender, cachedMessages);
+    }
+
+    private void replaySender(final RecipientId sender, final List<CachedMessage> cachedMessages) {
+        final var actions = new HashSet<HandleAction>();
+        try {
+            for (var cachedMessage : cachedMessages) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                final var result = replayFunction.apply(cachedMessage);
+                if (result != null) {
+                    actions.addAll(result);
+                }
+                final var replayed = replayedCount.incrementAndGet();
+                if (replayed % 100 == 0) {
+                    logger.debug("Replayed {}/{} cached messages", replayed, totalCount.get());
+                }
+            }
+        } catch (Throwable e) {
+            logger.warn("Failed to replay cached messages of {}", sender, e);
+        } finally {
+            actionHandler.accept(actions);
+            synchronized (pendingSenders) {
+                if (repeatSenders.remove(sender) && !cancelled) {
+                    executor.execute(() -> replaySenderAgain(sender));
+                    return;
+                }
+                pendingSenders.remove(sender);
+                if (pendingSenders.isEmpty() && !Thread.currentThread().isInterrupted()) {
+                    logger.debug("Finished replaying {} cached messages in {}ms",
+                            replayedCount.get(),
+                            System.currentTimeMillis() - startTimestamp);
+                }
+                pendingSenders.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package org.asamk.signal.manager;
+
+import org.asamk.signal.manager.api.RecipientIdentifier;
+import org.asamk.signal.manager.api.SendMessageResults;
+import org.asamk.signal.manager.groups.GroupId;
+import org.asamk.signal.manager.groups.GroupIdFormatException;
+import org.asamk.signal.manager.groups.GroupNotFoundException;
+import org.asamk.signal.manager.groups.GroupSendingNotAllowedException;
+import org.asamk.signal.manager.groups.NotAGroupMemberException;
+import org.asamk.signal.manager.helper.SendHelper;
+import org.asamk.signal.manager.storage.SignalAccount;
+import org.asamk.signal.manager.storage.outbox.OutboxEntry;
+import org.asamk.signal.manager.storage.recipients.RecipientId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.signalservice.api.messages.SendMessageResult;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment;
+import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
+import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
+import org.whispersystems.signalservice.api.util.UuidUtil;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos;
+import org.whispersystems.signalservice.internal.push.util.AttachmentPointerUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Durable outbox for sent messages, that retries the recipients that failed due to network errors.
+ * <p>
+ * A message is recorded in the {@link org.asamk.signal.manager.storage.outbox.OutboxStore} before it is sent. After
+ * each attempt only the recipients with a network failure are kept, they are retried with exponential backoff and
+ * jitter. The attachments aren't uploaded again, the retries reuse the pointers of the first upload. If the whole send
+ * failed with an exception, all recipients are retried, the timestamp stays the same so recipients can detect the
+ * duplicate. The results of the retries are reported to the outbox listeners.
+ * <p>
+ * Retries to individual recipients run on the {@link SendExecutor}, so they keep their order with other messages to
+ * the same recipient.
+ */
+public class Outbox {
+
+    private final static Logger logger = LoggerFactory.getLogger(Outbox.class);
+
+    private static final int MAX_ATTEMPTS = 12;
+    private static final long INITIAL_RETRY_DELAY = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(30);
+
+    private final SignalAccount account;
+    private final SendHelper sendHelper;
+    private final SendExecutor sendExecutor;
+    private final ScheduledExecutorService scheduler;
+
+    private final List<Manager.OutboxListener> listeners = new CopyOnWriteArrayList<>();
+    private final Set<Long> scheduledIds = new HashSet<>();
+
+    public Outbox(final SignalAccount account, final SendHelper sendHelper, final SendExecutor sendExecutor) {
+        this.account = account;
+        this.sendHelper = sendHelper;
+        this.sendExecutor = sendExecutor;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final var thread = new Thread(r, "outbox-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void addListener(final Manager.OutboxListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final Manager.OutboxListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Records the message before it is sent.
+     *
+     * @param attachments the already uploaded attachments
+     * @return the id of the outbox entry
+     */
+    public long record(
+            final long timestamp,
+            final String messageText,
+            final List<SignalServiceAttachment> attachments,
+            final Set<RecipientIdentifier> recipients
+    ) {
+        final List<byte[]> serializedAttachments = attachments.stream()
+                .map(a -> AttachmentPointerUtil.createAttachmentPointer(a.asPointer()).toByteArray())
+                .collect(Collectors.toList());
+        final var individualRecipients = new ArrayList<String>();
+        final var groups = new ArrayList<String>();
+        for (var recipient : recipients) {
+            if (recipient instanceof RecipientIdentifier.Uuid) {
+                individualRecipients.add(((RecipientIdentifier.Uuid) recipient).uuid.toString());
+            } else if (recipient instanceof RecipientIdentifier.Number) {
+                individualRecipients.add(((RecipientIdentifier.Number) recipient).number);
+            } else if (recipient instanceof RecipientIdentifier.Group) {
+                groups.add(((RecipientIdentifier.Group) recipient).groupId.toBase64());
+            }
+        }
+        return account.getOutboxStore()
+                .addEntry(timestamp, messageText, serializedAttachments, individualRecipients, groups)
+                .getId();
+    }
+
+    /**
+     * Removes the recipients that have received the message and schedules a retry for the others.
+     *
+     * @param failedGroups the groups for which the send failed completely, they are retried for all members
+     */
+    public void complete(final long id, final SendMessageResults results, final Collection<GroupId> failedGroups) {
+        final var entry = account.getOutboxStore().getEntry(id);
+        if (entry != null) {
+            handleAttempt(entry,
+                    results.getResults(),
+                    failedGroups.stream().map(GroupId::toBase64).collect(Collectors.toList()),
+                    false);
+        }
+    }
+
+    /**
+     * Schedules a retry for all recipients, after the send failed completely.
+     */
+    public void retryLater(final long id) {
+        final var entry = account.getOutboxStore().getEntry(id);
+        if (entry != null) {
+            handleAttempt(entry, Map.of(), entry.getGroups(), false, entry.getRecipients(), entry.getGroupMembers());
+        }
+    }
+
+    /**
+     * Removes the message from the outbox without sending it again.
+     */
+    public void discard(final long id) {
+        account.getOutboxStore().deleteEntry(id);
+    }
+
+    /**
+     * Schedules the retries of the messages that were still pending when the outbox was last closed.
+     */
+    public void resumePendingEntries() {
+        final var entries = account.getOutboxStore().getEntries();
+        if (!entries.isEmpty()) {
+            logger.debug("Resuming {} pending outbox entries", entries.size());
+        }
+        for (var entry : entries) {
+            schedule(entry);
+        }
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void schedule(final OutboxEntry entry) {
+        synchronized (scheduledIds) {
+            if (!scheduledIds.add(entry.getId())) {
+                return;
+            }
+        }
+        final var delay = Math.max(0, entry.getNextAttemptTimestamp() - System.currentTimeMillis());
+        try {
+            scheduler.schedule(() -> retry(entry.getId()), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Outbox already closed, message {} will be retried on next start", entry.getTimestamp());
+        }
+    }
+
+    private void retry(final long id) {
+        try {
+            retryEntry(id);
+        } catch (RuntimeException e) {
+            // e.g. the send executor rejecting new sends while closing
+            logger.warn("Failed to retry outbox message, it will be retried on next start: {}", e.toString());
+        }
+    }
+
+    private void retryEntry(final long id) {
+        synchronized (scheduledIds) {
+            scheduledIds.remove(id);
+        }
+        final var entry = account.getOutboxStore().getEntry(id);
+        if (entry == null) {
+            return;
+        }
+        logger.debug("Retrying message {}, attempt {}", entry.getTimestamp(), entry.getAttempts() + 1);
+
+        final SignalServiceDataMessage.Builder messageBuilder;
+        try {
+            messageBuilder = createMessageBuilder(entry);
+        } catch (IOException e) {
+            logger.warn("Failed to restore outbox message {}, dropping it: {}", entry.getTimestamp(), e.getMessage());
+            discard(id);
+            return;
+        }
+
+        final var results = new HashMap<RecipientIdentifier, List<SendMessageResult>>();
+        final var failedRecipients = new ArrayList<String>();
+        final var failedGroups = new ArrayList<String>();
+        final var failedGroupMembers = new HashMap<String, List<String>>();
+
+        // Group sends add the group context to the message, so the individual recipients are sent first
+        final var pendingSends = new ArrayList<CompletableFuture<Void>>();
+        for (var identifier : entry.getRecipients()) {
+            final var recipientId = resolveRecipient(identifier);
+            if (recipientId == null) {
+                logger.debug("Outbox recipient {} is not registered anymore, skipping", identifier);
+                continue;
+            }
+            final var send = sendExecutor.submit(recipientId,
+                    () -> sendHelper.sendMessage(messageBuilder, recipientId));
+            pendingSends.add(send.handle((result, e) -> {
+                synchronized (results) {
+                    if (e == null) {
+                        results.put(toRecipientIdentifier(identifier), List.of(result));
+                    } else if (e.getCause() instanceof IOException) {
+                        failedRecipients.add(identifier);
+                    } else {
+                        throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+                    }
+                }
+                return null;
+            }));
+        }
+        CompletableFuture.allOf(pendingSends.toArray(CompletableFuture[]::new)).join();
+        for (var group : entry.getGroups()) {
+            try {
+                final var groupId = GroupId.fromBase64(group);
+                results.put(new RecipientIdentifier.Group(groupId),
+                        sendHelper.sendAsGroupMessage(messageBuilder, groupId));
+            } catch (IOException e) {
+                failedGroups.add(group);
+            } catch (GroupIdFormatException | GroupNotFoundException | NotAGroupMemberException
+                    | GroupSendingNotAllowedException e) {
+                logger.debug("Can't send outbox message to group anymore, skipping: {}", e.getMessage());
+            }
+        }
+        for (var groupMembers : entry.getGroupMembers().entrySet()) {
+            final var recipientIds = groupMembers.getValue()
+                    .stream()
+                    .map(this::resolveRecipient)
+                    .filter(r -> r != null)
+                    .collect(Collectors.toSet());
+            try {
+                final var groupId = GroupId.fromBase64(groupMembers.getKey());
+                results.put(new RecipientIdentifier.Group(groupId),
+                        sendHelper.resendGroupMessage(messageBuilder, groupId, recipientIds));
+            } catch (IOException e) {
+                failedGroupMembers.put(groupMembers.getKey(), groupMembers.getValue());
+            } catch (GroupIdFormatException | GroupNotFoundException | NotAGroupMemberException e) {
+                logger.debug("Can't send outbox message to group anymore, skipping: {}", e.getMessage());
+            }
+        }
+
+        handleAttempt(entry, results, failedGroups, true, failedRecipients, failedGroupMembers);
+    }
+
+    private void handleAttempt(
+            final OutboxEntry entry,
+            final Map<RecipientIdentifier, List<SendMessageResult>> results,
+            final List<String> failedGroups,
+            final boolean notify
+    ) {
+        handleAttempt(entry, results, failedGroups, notify, List.of(), Map.of());
+    }
+
+    private void handleAttempt(
+            final OutboxEntry entry,
+            final Map<RecipientIdentifier, List<SendMessageResult>> results,
+            final List<String> failedGroups,
+            final boolean notify,
+            final List<String> failedRecipients,
+            final Map<String, List<String>> failedGroupMembers
+    ) {
+        final var pendingRecipients = new ArrayList<>(failedRecipients);
+        final var pendingGroupMembers = new HashMap<>(failedGroupMembers);
+        for (var result : results.entrySet()) {
+            final var failed = result.getValue()
+                    .stream()
+                    .filter(SendMessageResult::isNetworkFailure)
+                    .map(r -> r.getAddress().getUuid().toString())
+                    .collect(Collectors.toList());
+            if (failed.isEmpty()) {
+                continue;
+            }
+            if (result.getKey() instanceof RecipientIdentifier.Group) {
+                pendingGroupMembers.put(((RecipientIdentifier.Group) result.getKey()).groupId.toBase64(), failed);
+            } else {
+                pendingRecipients.addAll(failed);
+            }
+        }
+
+        final var store = account.getOutboxStore();
+        final var pendingCount = pendingRecipients.size() + failedGroups.size() + pendingGroupMembers.values()
+                .stream()
+                .mapToInt(List::size)
+                .sum();
+        final boolean finished;
+        if (pendingCount == 0) {
+            store.deleteEntry(entry.getId());
+            finished = true;
+        } else if (entry.getAttempts() + 1 >= MAX_ATTEMPTS) {
+            logger.warn("Message {} failed {} times for {} recipients, giving up",
+                    entry.getTimestamp(),
+                    MAX_ATTEMPTS,
+                    pendingCount);
+            store.deleteEntry(entry.getId());
+            finished = true;
+        } else {
+            final var delay = getRetryDelay(entry.getAttempts());
+            logger.debug("Message {} failed for {} recipients, retrying in {}ms",
+                    entry.getTimestamp(),
+                    pendingCount,
+                    delay);
+            final var updatedEntry = entry.withPending(pendingRecipients,
+                    failedGroups,
+                    pendingGroupMembers,
+                    System.currentTimeMillis() + delay);
+            store.updateEntry(updatedEntry);
+            schedule(updatedEntry);
+            finished = false;
+        }
+
+        if (notify) {
+            final var sendMessageResults = new SendMessageResults(entry.getTimestamp(), results);
+            for (var listener : listeners) {
+                listener.handleRetryResults(sendMessageResults, finished);
+            }
+        }
+    }
+
+    /**
+     * Exponential backoff with equal jitter, so recipients that failed together aren't all retried at the same time.
+     */
+    private static long getRetryDelay(final int attempts) {
+        final var delay = Math.min(INITIAL_RETRY_DELAY << Math.min(attempts, 20), MAX_RETRY_DELAY);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private RecipientId resolveRecipient(final String identifier) {
+        final var recipientStore = account.getRecipientStore();
+        if (UuidUtil.isUuid(identifier)) {
+            return recipientStore.resolveRecipient(UUID.fromString(identifier));
+        }
+        try {
+            return recipientStore.resolveRecipient(identifier, () -> null);
+        } catch (UnregisteredUserException e) {
+            return null;
+        }
+    }
+
+    private static RecipientIdentifier toRecipientIdentifier(final String identifier) {
+        return UuidUtil.isUuid(identifier)
+                ? new RecipientIdentifier.Uuid(UUID.fromString(identifier))
+                : new RecipientIdentifier.Number(identifier);
+    }
+
+    private static SignalServiceDataMessage.Builder createMessageBuilder(final OutboxEntry entry) throws IOException {
+        final var attachments = new ArrayList<SignalServiceAttachment>(entry.getAttachments().size());
+        for (var attachment : entry.getAttachments()) {
+            final var pointer = SignalServiceProtos.AttachmentPointer.parseFrom(attachment);
+            attachments.add(AttachmentPointerUtil.createSignalAttachmentPointer(pointer));
+        }
+        return SignalServiceDataMessage.newBuilder()
+                .withTimestamp(entry.getTimestamp())
+                .withBody(entry.getMessageText())
+                .withAttachments(attachments);
+    }
+}
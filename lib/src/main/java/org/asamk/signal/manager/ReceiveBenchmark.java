@@ -0,0 +1,239 @@
+package org.asamk.signal.manager;
+
+import org.asamk.signal.manager.util.MessageCacheUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Replays a corpus of captured envelopes through the receive path and measures its throughput.
+ * <p>
+ * The corpus is a directory with one envelope per file, as written by the envelope capture of
+ * {@link Manager#setEnvelopeCaptureDirectory(File)}. The envelopes are replayed in the order of their file names.
+ */
+public class ReceiveBenchmark {
+
+    private final static Logger logger = LoggerFactory.getLogger(ReceiveBenchmark.class);
+
+    private final Function<SignalServiceEnvelope, Exception> envelopeHandler;
+    private final CachingCertificateValidator certificateValidator;
+
+    /**
+     * @param envelopeHandler      handles a single envelope and returns the error, or null if it was successful
+     * @param certificateValidator the validator used for sealed sender messages, to measure its cache hit rate
+     */
+    public ReceiveBenchmark(
+            final Function<SignalServiceEnvelope, Exception> envelopeHandler,
+            final CachingCertificateValidator certificateValidator
+    ) {
+        this.envelopeHandler = envelopeHandler;
+        this.certificateValidator = certificateValidator;
+    }
+
+    public Result run(final File corpusDirectory) throws IOException {
+        final var files = corpusDirectory.listFiles(File::isFile);
+        if (files == null) {
+            throw new IOException("Corpus directory doesn't exist: " + corpusDirectory);
+        }
+        Arrays.sort(files);
+
+        final var threadMXBean = ManagementFactory.getThreadMXBean();
+        final var threadId = Thread.currentThread().getId();
+
+        final var latencies = new long[files.length];
+        var count = 0;
+        var failedCount = 0;
+        final var startIo = readProcessIo();
+        final var startCertificateHits = certificateValidator.getHitCount();
+        final var startCertificateMisses = certificateValidator.getMissCount();
+        final var startAllocated = getAllocatedBytes(threadMXBean, threadId);
+        final var start = System.nanoTime();
+        for (var file : files) {
+            final SignalServiceEnvelope envelope;
+            try {
+                envelope = MessageCacheUtils.loadEnvelope(file);
+            } catch (IOException e) {
+                logger.warn("Failed to load envelope {}, skipping: {}", file.getName(), e.getMessage());
+                continue;
+            }
+            if (envelope == null) {
+                continue;
+            }
+
+            final var envelopeStart = System.nanoTime();
+            final var error = envelopeHandler.apply(envelope);
+            latencies[count++] = System.nanoTime() - envelopeStart;
+            if (error != null) {
+                failedCount++;
+                logger.debug("Failed to handle envelope {}: {}", file.getName(), error.getMessage());
+            }
+        }
+        final var duration = System.nanoTime() - start;
+        final var endAllocated = getAllocatedBytes(threadMXBean, threadId);
+        final var allocated = startAllocated < 0 || endAllocated < 0 ? -1 : endAllocated - startAllocated;
+        final var endIo = readProcessIo();
+        final var certificateHits = certificateValidator.getHitCount() - startCertificateHits;
+        final var certificateMisses = certificateValidator.getMissCount() - startCertificateMisses;
+
+        final var sortedLatencies = Arrays.copyOf(latencies, count);
+        Arrays.sort(sortedLatencies);
+        return new Result(count,
+                failedCount,
+                duration,
+                sortedLatencies,
+                allocated,
+                startIo == null || endIo == null ? -1 : endIo[0] - startIo[0],
+                startIo == null || endIo == null ? -1 : endIo[1] - startIo[1],
+                certificateHits,
+                certificateMisses);
+    }
+
+    /**
+     * The allocation counter is an extension of the HotSpot based JVMs, which isn't available everywhere.
+     *
+     * @return the bytes allocated by the thread, or -1 if not supported by the JVM
+     */
+    private static long getAllocatedBytes(final ThreadMXBean threadMXBean, final long threadId) {
+        try {
+            if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+                final var allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+                if (allocationMXBean.isThreadAllocatedMemorySupported()
+                        && allocationMXBean.isThreadAllocatedMemoryEnabled()) {
+                    return allocationMXBean.getThreadAllocatedBytes(threadId);
+                }
+            }
+        } catch (NoClassDefFoundError | UnsupportedOperationException e) {
+            // The jdk.management module isn't part of the runtime image
+        }
+        return -1;
+    }
+
+    /**
+     * @return the bytes read and written by this process, or null if not available on this platform
+     */
+    private static long[] readProcessIo() {
+        final var file = new File("/proc/self/io");
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            final var io = new long[2];
+            for (var line : Files.readAllLines(file.toPath())) {
+                if (line.startsWith("rchar:")) {
+                    io[0] = Long.parseLong(line.substring(6).trim());
+                } else if (line.startsWith("wchar:")) {
+                    io[1] = Long.parseLong(line.substring(6).trim());
+                }
+            }
+            return io;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static class Result {
+
+        private final int count;
+        private final int failedCount;
+        private final long durationNanos;
+        private final long[] sortedLatencies;
+        private final long allocatedBytes;
+        private final long readBytes;
+        private final long writtenBytes;
+        private final long certificateCacheHits;
+        private final long certificateCacheMisses;
+
+        private Result(
+                final int count,
+                final int failedCount,
+                final long durationNanos,
+                final long[] sortedLatencies,
+                final long allocatedBytes,
+                final long readBytes,
+                final long writtenBytes,
+                final long certificateCacheHits,
+                final long certificateCacheMisses
+        ) {
+            this.count = count;
+            this.failedCount = failedCount;
+            this.durationNanos = durationNanos;
+            this.sortedLatencies = sortedLatencies;
+            this.allocatedBytes = allocatedBytes;
+            this.readBytes = readBytes;
+            this.writtenBytes = writtenBytes;
+            this.certificateCacheHits = certificateCacheHits;
+            this.certificateCacheMisses = certificateCacheMisses;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public int getFailedCount() {
+            return failedCount;
+        }
+
+        public long getDurationMillis() {
+            return durationNanos / 1_000_000;
+        }
+
+        public double getEnvelopesPerSecond() {
+            return durationNanos == 0 ? 0 : count * 1_000_000_000.0 / durationNanos;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the latency of a single envelope in microseconds
+         */
+        public long getLatencyPercentile(final double percentile) {
+            if (sortedLatencies.length == 0) {
+                return 0;
+            }
+            final var index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))] / 1000;
+        }
+
+        /**
+         * @return the bytes allocated by the replaying thread, or -1 if not supported by the JVM
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * @return the bytes read by the process, including the store files, or -1 if not available
+         */
+        public long getReadBytes() {
+            return readBytes;
+        }
+
+        /**
+         * @return the bytes written by the process, including the store files, or -1 if not available
+         */
+        public long getWrittenBytes() {
+            return writtenBytes;
+        }
+
+        /**
+         * @return the sealed sender certificates that didn't have to be validated again
+         */
+        public long getCertificateCacheHits() {
+            return certificateCacheHits;
+        }
+
+        /**
+         * @return the sealed sender certificates whose signature chain was validated
+         */
+        public long getCertificateCacheMisses() {
+            return certificateCacheMisses;
+        }
+    }
+}
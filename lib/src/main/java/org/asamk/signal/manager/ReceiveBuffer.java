@@ -0,0 +1,222 @@
+package org.asamk.signal.manager;
+
+import org.asamk.signal.manager.storage.messageCache.CachedMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Bounded buffer between the websocket reader and the receive handler.
+ * <p>
+ * Received envelopes are kept in memory until the number of envelopes waiting for the handler reaches the high
+ * watermark. Further envelopes are then only referenced by their message cache file and loaded again when the handler
+ * is ready for them, until the handler has caught up to the low watermark. If even the number of cache references
+ * reaches the maximum, the reader blocks and stops acknowledging envelopes to the server.
+ */
+public class ReceiveBuffer {
+
+    private final static Logger logger = LoggerFactory.getLogger(ReceiveBuffer.class);
+
+    public static final int DEFAULT_LOW_WATERMARK = 20;
+    public static final int DEFAULT_HIGH_WATERMARK = 100;
+    private static final int MAX_BUFFERED_ENVELOPES = 10_000;
+
+    private final int lowWatermark;
+    private final int highWatermark;
+
+    private final Queue<Entry> entries = new ArrayDeque<>();
+    private int inMemoryCount;
+    private int spilledCount;
+    private boolean spilling;
+
+    private long spilledTotal;
+    private long lastHandlerLag;
+    private long maxHandlerLag;
+
+    public ReceiveBuffer(final int lowWatermark, final int highWatermark) {
+        if (lowWatermark < 0 || highWatermark < lowWatermark) {
+            throw new IllegalArgumentException("Invalid receive buffer watermarks: "
+                    + lowWatermark
+                    + "/"
+                    + highWatermark);
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * Adds a received envelope, blocks while the buffer is full.
+     *
+     * @param cachedMessage the message cache entry of the envelope, may be null if caching failed
+     */
+    public void put(
+            final SignalServiceEnvelope envelope, final CachedMessage cachedMessage
+    ) throws InterruptedException {
+        synchronized (entries) {
+            while (entries.size() >= MAX_BUFFERED_ENVELOPES) {
+                entries.wait();
+            }
+            if (!spilling && inMemoryCount >= highWatermark) {
+                spilling = true;
+                logger.debug("Receive handler is lagging behind by {}ms, spilling envelopes to message cache",
+                        lastHandlerLag);
+            }
+            final var keepInMemory = !spilling || cachedMessage == null;
+            if (keepInMemory) {
+                inMemoryCount++;
+            } else {
+                spilledCount++;
+                spilledTotal++;
+            }
+            entries.add(new Entry(keepInMemory ? envelope : null, cachedMessage, false, null));
+            entries.notifyAll();
+        }
+    }
+
+    /**
+     * Adds a marker indicating that the server queue has been drained up to this point.
+     */
+    public void putQueueEmpty() {
+        synchronized (entries) {
+            entries.add(new Entry(null, null, true, null));
+            entries.notifyAll();
+        }
+    }
+
+    /**
+     * Marks the end of the received envelopes, the handler receives all envelopes added before.
+     *
+     * @param error the error that stopped the reader or null
+     */
+    public void putEnd(final IOException error) {
+        synchronized (entries) {
+            entries.add(new Entry(null, null, false, error));
+            entries.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the next entry.
+     */
+    public Entry take() throws InterruptedException {
+        synchronized (entries) {
+            while (entries.isEmpty()) {
+                entries.wait();
+            }
+            final var entry = entries.poll();
+            if (entry.envelope != null) {
+                inMemoryCount--;
+            } else if (entry.cachedMessage != null) {
+                spilledCount--;
+            }
+            if (!entry.isMarker()) {
+                lastHandlerLag = System.currentTimeMillis() - entry.bufferedTimestamp;
+                maxHandlerLag = Math.max(maxHandlerLag, lastHandlerLag);
+            }
+            if (spilling && inMemoryCount <= lowWatermark) {
+                spilling = false;
+                logger.debug("Receive handler caught up, lag {}ms", lastHandlerLag);
+            }
+            entries.notifyAll();
+            return entry;
+        }
+    }
+
+    /**
+     * @return the number of envelopes waiting for the handler
+     */
+    public int getBufferedCount() {
+        synchronized (entries) {
+            return inMemoryCount + spilledCount;
+        }
+    }
+
+    /**
+     * @return the number of envelopes waiting for the handler, that are only stored in the message cache
+     */
+    public int getSpilledCount() {
+        synchronized (entries) {
+            return spilledCount;
+        }
+    }
+
+    /**
+     * @return the total number of envelopes that have been spilled to the message cache
+     */
+    public long getSpilledTotal() {
+        synchronized (entries) {
+            return spilledTotal;
+        }
+    }
+
+    /**
+     * @return the time in milliseconds the last envelope waited in the buffer before it was passed to the handler
+     */
+    public long getLastHandlerLag() {
+        synchronized (entries) {
+            return lastHandlerLag;
+        }
+    }
+
+    public long getMaxHandlerLag() {
+        synchronized (entries) {
+            return maxHandlerLag;
+        }
+    }
+
+    public static final class Entry {
+
+        private final SignalServiceEnvelope envelope;
+        private final CachedMessage cachedMessage;
+        private final boolean queueEmpty;
+        private final IOException error;
+        private final long bufferedTimestamp = System.currentTimeMillis();
+
+        private Entry(
+                final SignalServiceEnvelope envelope,
+                final CachedMessage cachedMessage,
+                final boolean queueEmpty,
+                final IOException error
+        ) {
+            this.envelope = envelope;
+            this.cachedMessage = cachedMessage;
+            this.queueEmpty = queueEmpty;
+            this.error = error;
+        }
+
+        /**
+         * @return the envelope, loaded from the message cache if it was spilled, or null if loading failed
+         */
+        public SignalServiceEnvelope loadEnvelope() {
+            return envelope != null ? envelope : cachedMessage.loadEnvelope();
+        }
+
+        public CachedMessage getCachedMessage() {
+            return cachedMessage;
+        }
+
+        public boolean isQueueEmpty() {
+            return queueEmpty;
+        }
+
+        public boolean isEnd() {
+            return !queueEmpty && envelope == null && cachedMessage == null;
+        }
+
+        public IOException getError() {
+            return error;
+        }
+
+        public long getBufferedTimestamp() {
+            return bufferedTimestamp;
+        }
+
+        private boolean isMarker() {
+            return queueEmpty || isEnd();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.asamk.signal.manager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.signalservice.api.messages.SignalServiceContent;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Distributes received messages to any number of subscribers.
+ * <p>
+ * Every subscriber has its own bounded queue and thread, so a slow subscriber doesn't delay the receive loop or the
+ * other subscribers. The envelope is decrypted once and the same objects are passed to all subscribers, which must
+ * therefore not modify them. If the queue of a subscriber is full, further messages are dropped for that subscriber,
+ * or for a blocking subscriber the publisher waits until there is space again. The waiting delays the receive loop, so
+ * further received envelopes are only kept in the message cache until the subscriber has caught up.
+ */
+public class ReceiveEventBus {
+
+    private final static Logger logger = LoggerFactory.getLogger(ReceiveEventBus.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+    private static final long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    public Subscriber subscribe(
+            final Manager.ReceiveMessageHandler handler, final int queueCapacity, final boolean blocking
+    ) {
+        final var subscriber = new Subscriber(handler, queueCapacity, blocking);
+        subscribers.add(subscriber);
+        subscriber.thread.start();
+        return subscriber;
+    }
+
+    public void unsubscribe(final Manager.ReceiveMessageHandler handler) {
+        for (var subscriber : subscribers) {
+            if (subscriber.handler == handler) {
+                subscribers.remove(subscriber);
+                subscriber.stop();
+            }
+        }
+    }
+
+    public boolean hasSubscribers() {
+        return !subscribers.isEmpty();
+    }
+
+    public void publish(
+            final SignalServiceEnvelope envelope, final SignalServiceContent content, final Throwable exception
+    ) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        final var event = new Event(envelope, content, exception);
+        for (var subscriber : subscribers) {
+            subscriber.offer(event);
+        }
+    }
+
+    /**
+     * Stops all subscribers after they have handled the messages already in their queue.
+     */
+    public void close() {
+        final var closedSubscribers = List.copyOf(subscribers);
+        subscribers.clear();
+        for (var subscriber : closedSubscribers) {
+            subscriber.stop();
+        }
+        for (var subscriber : closedSubscribers) {
+            try {
+                subscriber.thread.join(SHUTDOWN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static final class Event {
+
+        private static final Event STOP = new Event(null, null, null);
+
+        private final SignalServiceEnvelope envelope;
+        private final SignalServiceContent content;
+        private final Throwable exception;
+
+        private Event(
+                final SignalServiceEnvelope envelope, final SignalServiceContent content, final Throwable exception
+        ) {
+            this.envelope = envelope;
+            this.content = content;
+            this.exception = exception;
+        }
+    }
+
+    public static final class Subscriber {
+
+        private final Manager.ReceiveMessageHandler handler;
+        private final BlockingQueue<Event> queue;
+        private final Thread thread;
+        private final boolean blocking;
+        private final AtomicLong deliveredCount = new AtomicLong();
+        private final AtomicLong droppedCount = new AtomicLong();
+        private final AtomicLong blockedCount = new AtomicLong();
+        private boolean stopped;
+
+        private Subscriber(
+                final Manager.ReceiveMessageHandler handler, final int queueCapacity, final boolean blocking
+        ) {
+            this.handler = handler;
+            this.blocking = blocking;
+            // One additional slot for the stop marker
+            this.queue = new ArrayBlockingQueue<>(queueCapacity + 1);
+            this.thread = new Thread(this::run, "receive-subscriber");
+            this.thread.setDaemon(true);
+        }
+
+        public int getQueueDepth() {
+            return queue.size();
+        }
+
+        public long getDeliveredCount() {
+            return deliveredCount.get();
+        }
+
+        public long getDroppedCount() {
+            return droppedCount.get();
+        }
+
+        /**
+         * @return the number of messages, for which the publisher had to wait for a blocking subscriber
+         */
+        public long getBlockedCount() {
+            return blockedCount.get();
+        }
+
+        private void offer(final Event event) {
+            if (blocking) {
+                offerBlocking(event);
+                return;
+            }
+            if (queue.remainingCapacity() <= 1 || !queue.offer(event)) {
+                if (droppedCount.incrementAndGet() % 100 == 1) {
+                    logger.warn("Receive subscriber {} is too slow, dropped {} messages",
+                            handler.getClass().getSimpleName(),
+                            droppedCount.get());
+                }
+            }
+        }
+
+        private synchronized void offerBlocking(final Event event) {
+            if (queue.remainingCapacity() <= 1 && !stopped) {
+                if (blockedCount.incrementAndGet() % 100 == 1) {
+                    logger.debug("Receive subscriber {} is too slow, waiting for it",
+                            handler.getClass().getSimpleName());
+                }
+                try {
+                    while (queue.remainingCapacity() <= 1 && !stopped) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    droppedCount.incrementAndGet();
+                    logger.warn("Interrupted while waiting for receive subscriber {}, dropped message",
+                            handler.getClass().getSimpleName());
+                    return;
+                }
+            }
+            if (!stopped) {
+                // The last slot stays free for the stop marker
+                queue.offer(event);
+            }
+        }
+
+        private void stop() {
+            synchronized (this) {
+                stopped = true;
+                notifyAll();
+            }
+            queue.offer(Event.STOP);
+        }
+
+        private void run() {
+            while (true) {
+                final Event event;
+                try {
+                    event = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (event == Event.STOP) {
+                    break;
+                }
+                if (blocking) {
+                    synchronized (this) {
+                        notifyAll();
+                    }
+                }
+                try {
+                    handler.handleMessage(event.envelope, event.content, event.exception);
+                    deliveredCount.incrementAndGet();
+                } catch (Throwable e) {
+                    logger.warn("Receive subscriber {} failed to handle message",
+                            handler.getClass().getSimpleName(),
+                            e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.asamk.signal.manager;
+
+import org.asamk.signal.manager.storage.recipients.RecipientId;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the sends to individual recipients on a bounded number of threads.
+ * <p>
+ * Sends to the same recipient are run one after another in the order they were submitted, so a recipient receives
+ * the messages in the same order, even if they were sent by concurrent sendMessage calls.
+ */
+public class SendExecutor {
+
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    private final ThreadPoolExecutor executor;
+    private final Map<RecipientId, CompletableFuture<?>> lastSends = new HashMap<>();
+
+    public SendExecutor() {
+        final var threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(DEFAULT_CONCURRENCY,
+                DEFAULT_CONCURRENCY,
+                60,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> {
+                    final var thread = new Thread(r, "send-executor-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the maximum number of sends that run at the same time, to stay below the server's rate limits.
+     */
+    public void setConcurrency(final int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Send concurrency must be at least 1");
+        }
+        synchronized (executor) {
+            if (concurrency > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(concurrency);
+                executor.setCorePoolSize(concurrency);
+            } else {
+                executor.setCorePoolSize(concurrency);
+                executor.setMaximumPoolSize(concurrency);
+            }
+        }
+    }
+
+    public int getConcurrency() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Runs the send after all previously submitted sends to the same recipient have finished.
+     *
+     * @return the result of the send, completing exceptionally with a CompletionException if the send failed
+     */
+    public <T> CompletableFuture<T> submit(final RecipientId recipientId, final Callable<T> send) {
+        synchronized (lastSends) {
+            final var previous = lastSends.get(recipientId);
+            final var ready = previous == null
+                    ? CompletableFuture.<Object>completedFuture(null)
+                    : previous.<Object>handle((r, e) -> null);
+            final var future = ready.thenApplyAsync(ignored -> {
+                try {
+                    return send.call();
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+            lastSends.put(recipientId, future);
+            future.whenComplete((r, e) -> {
+                synchronized (lastSends) {
+                    lastSends.remove(recipientId, future);
+                }
+            });
+            return future;
+        }
+    }
+
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,356 @@
+package org.asamk.signal.manager;
+
+import org.asamk.signal.manager.api.SendRateLimit;
+import org.asamk.signal.manager.storage.recipients.RecipientId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token buckets for the whole account and for each recipient, that are checked before a message is encrypted and sent.
+ * The account bucket is charged per request to the server, so a group message sent with sender key takes one account
+ * permit, but a permit of each member's bucket.
+ * <p>
+ * Besides the configured rates, the limiter learns from the server's rate limit responses: the account and the
+ * recipient are paused for the Retry-After time, or with exponential backoff if the server didn't send one, and the
+ * account rate is halved. It recovers slowly with every successful send.
+ * Pauses longer than {@link #MAX_WAITED_PAUSE}, e.g. the hours of a proof required response, aren't waited for even
+ * when queueing, the send fails immediately instead.
+ */
+public class SendRateLimiter {
+
+    private final static Logger logger = LoggerFactory.getLogger(SendRateLimiter.class);
+
+    private static final long INITIAL_PENALTY = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_PENALTY = TimeUnit.MINUTES.toMillis(5);
+    private static final double MIN_RATE_FACTOR = 0.1;
+    private static final double RATE_RECOVERY_STEP = 0.01;
+    private static final int MAX_RECIPIENT_BUCKETS = 1000;
+    private static final long MAX_WAITED_PAUSE = MAX_PENALTY;
+
+    private final Bucket accountBucket = new Bucket();
+    private final Map<RecipientId, Bucket> recipientBuckets = new HashMap<>();
+    private SendRateLimit limit = SendRateLimit.UNLIMITED;
+    private double rateFactor = 1;
+
+    private long permittedCount;
+    private long delayedCount;
+    private long rejectedCount;
+    private long rateLimitedCount;
+    private long totalDelayMillis;
+
+    public synchronized void setLimit(final SendRateLimit limit) {
+        this.limit = limit;
+    }
+
+    public synchronized SendRateLimit getLimit() {
+        return limit;
+    }
+
+    /**
+     * Takes a permit for sending a message to the recipient, with its own request to the server.
+     * Waits until the permit is available, or in fail-fast mode returns immediately if it isn't.
+     *
+     * @return true if the message may be sent now
+     */
+    public boolean acquire(final RecipientId recipientId) {
+        return acquire(recipientId, 1);
+    }
+
+    /**
+     * Takes the permits for sending a message, like {@link #acquire(RecipientId)}.
+     *
+     * @param recipientId the recipient whose bucket is charged, or null to only charge the account
+     * @param requests    the number of requests to the server, charged to the account bucket, 0 if the message is
+     *                    part of a request that is charged separately
+     * @return true if the message may be sent now
+     */
+    public boolean acquire(final RecipientId recipientId, final int requests) {
+        final long delay;
+        synchronized (this) {
+            final var now = System.currentTimeMillis();
+            final var accountRate = limit.getAccountRate() * rateFactor;
+            final var recipientRate = limit.getRecipientRate();
+            final var recipientBucket = recipientId == null ? null : getRecipientBucketLocked(recipientId, now);
+            final var pause = Math.max(requests > 0 ? accountBucket.getPause(now) : 0,
+                    recipientBucket == null ? 0 : recipientBucket.getPause(now));
+            delay = Math.max(requests > 0 ? accountBucket.getDelay(now, accountRate, requests) : 0,
+                    recipientBucket == null ? 0 : recipientBucket.getDelay(now, recipientRate, 1));
+            if ((delay > 0 && limit.isFailFast()) || pause > MAX_WAITED_PAUSE) {
+                rejectedCount++;
+                return false;
+            }
+            // The permit is reserved now, so concurrent senders queue up behind each other
+            accountBucket.take(now, accountRate, requests);
+            if (recipientBucket != null) {
+                recipientBucket.take(now, recipientRate, 1);
+            }
+            permittedCount++;
+            if (delay > 0) {
+                delayedCount++;
+                totalDelayMillis += delay;
+            }
+        }
+
+        if (delay > 0) {
+            logger.trace("Delaying send to {} by {}ms due to rate limit", recipientId, delay);
+            try {
+                Thread.sleep(delay);
+                // The server may have paused us again while waiting
+                long pause;
+                while ((pause = getRemainingPause(recipientId, requests > 0)) > 0) {
+                    if (pause > MAX_WAITED_PAUSE) {
+                        synchronized (this) {
+                            rejectedCount++;
+                        }
+                        return false;
+                    }
+                    Thread.sleep(pause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called when the server rejected a send due to rate limiting.
+     *
+     * @param recipientId      the recipient of the rejected message, or null if the whole account is rate limited
+     * @param retryAfterMillis the time the server asked to wait, or 0 if unknown
+     */
+    public synchronized void handleRateLimited(final RecipientId recipientId, final long retryAfterMillis) {
+        final var now = System.currentTimeMillis();
+        rateLimitedCount++;
+        rateFactor = Math.max(MIN_RATE_FACTOR, rateFactor / 2);
+        final var pause = accountBucket.penalize(now, retryAfterMillis);
+        if (recipientId != null) {
+            getRecipientBucketLocked(recipientId, now).penalize(now, retryAfterMillis);
+        }
+        logger.debug("Rate limited by server, pausing sends for {}ms", pause);
+    }
+
+    /**
+     * Called when a message has been accepted by the server.
+     */
+    public synchronized void handleSuccess(final RecipientId recipientId) {
+        rateFactor = Math.min(1, rateFactor + RATE_RECOVERY_STEP);
+        accountBucket.resetPenalty();
+        final var recipientBucket = recipientBuckets.get(recipientId);
+        if (recipientBucket != null) {
+            recipientBucket.resetPenalty();
+        }
+    }
+
+    public synchronized Stats getStats() {
+        final var now = System.currentTimeMillis();
+        final var pausedRecipients = (int) recipientBuckets.values()
+                .stream()
+                .filter(b -> b.pausedUntil > now)
+                .count();
+        return new Stats(limit.getAccountRate() * rateFactor,
+                accountBucket.getAvailableTokens(now, limit.getAccountRate() * rateFactor),
+                Math.max(0, accountBucket.pausedUntil - now),
+                recipientBuckets.size(),
+                pausedRecipients,
+                permittedCount,
+                delayedCount,
+                rejectedCount,
+                rateLimitedCount,
+                totalDelayMillis);
+    }
+
+    private synchronized long getRemainingPause(final RecipientId recipientId, final boolean includeAccount) {
+        final var now = System.currentTimeMillis();
+        final var recipientBucket = recipientId == null ? null : recipientBuckets.get(recipientId);
+        return Math.max(includeAccount ? accountBucket.getPause(now) : 0,
+                recipientBucket == null ? 0 : recipientBucket.getPause(now));
+    }
+
+    private Bucket getRecipientBucketLocked(final RecipientId recipientId, final long now) {
+        var bucket = recipientBuckets.get(recipientId);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (recipientBuckets.size() >= MAX_RECIPIENT_BUCKETS) {
+            final var recipientRate = limit.getRecipientRate();
+            recipientBuckets.values().removeIf(b -> b.isIdle(now, recipientRate));
+        }
+        bucket = new Bucket();
+        recipientBuckets.put(recipientId, bucket);
+        return bucket;
+    }
+
+    private static final class Bucket {
+
+        private double tokens;
+        private long lastRefill;
+        private long pausedUntil;
+        private long penalty;
+
+        /**
+         * @return the time in milliseconds until the given number of permits is available
+         */
+        long getDelay(final long now, final double rate, final int permits) {
+            final var pause = getPause(now);
+            if (rate <= 0) {
+                return pause;
+            }
+            refill(now, rate);
+            // More permits than the burst capacity are available once the tokens are positive, to not block forever
+            final var needed = Math.min(permits, Math.max(1, rate));
+            final var tokenDelay = tokens >= needed ? 0 : (long) Math.ceil((needed - tokens) / rate * 1000);
+            return Math.max(pause, tokenDelay);
+        }
+
+        /**
+         * @return the remaining time in milliseconds of the pause after a rate limit response
+         */
+        long getPause(final long now) {
+            return Math.max(0, pausedUntil - now);
+        }
+
+        void take(final long now, final double rate, final int permits) {
+            if (rate > 0 && permits > 0) {
+                refill(now, rate);
+                tokens -= permits;
+            }
+        }
+
+        /**
+         * @return the pause in milliseconds
+         */
+        long penalize(final long now, final long retryAfterMillis) {
+            penalty = penalty == 0 ? INITIAL_PENALTY : Math.min(penalty * 2, MAX_PENALTY);
+            final var pause = retryAfterMillis > 0 ? retryAfterMillis : penalty;
+            pausedUntil = Math.max(pausedUntil, now + pause);
+            return pause;
+        }
+
+        void resetPenalty() {
+            penalty = 0;
+        }
+
+        double getAvailableTokens(final long now, final double rate) {
+            if (rate <= 0) {
+                return -1;
+            }
+            refill(now, rate);
+            return tokens;
+        }
+
+        boolean isIdle(final long now, final double rate) {
+            return pausedUntil <= now && penalty == 0 && (rate <= 0 || getAvailableTokens(now, rate) >= Math.max(1,
+                    rate));
+        }
+
+        private void refill(final long now, final double rate) {
+            // Allows a burst of up to one second worth of messages
+            final var capacity = Math.max(1, rate);
+            tokens = lastRefill == 0 ? capacity : Math.min(capacity, tokens + (now - lastRefill) * rate / 1000);
+            lastRefill = now;
+        }
+    }
+
+    public static class Stats {
+
+        private final double accountRate;
+        private final double accountTokens;
+        private final long accountPauseMillis;
+        private final int trackedRecipients;
+        private final int pausedRecipients;
+        private final long permittedCount;
+        private final long delayedCount;
+        private final long rejectedCount;
+        private final long rateLimitedCount;
+        private final long totalDelayMillis;
+
+        private Stats(
+                final double accountRate,
+                final double accountTokens,
+                final long accountPauseMillis,
+                final int trackedRecipients,
+                final int pausedRecipients,
+                final long permittedCount,
+                final long delayedCount,
+                final long rejectedCount,
+                final long rateLimitedCount,
+                final long totalDelayMillis
+        ) {
+            this.accountRate = accountRate;
+            this.accountTokens = accountTokens;
+            this.accountPauseMillis = accountPauseMillis;
+            this.trackedRecipients = trackedRecipients;
+            this.pausedRecipients = pausedRecipients;
+            this.permittedCount = permittedCount;
+            this.delayedCount = delayedCount;
+            this.rejectedCount = rejectedCount;
+            this.rateLimitedCount = rateLimitedCount;
+            this.totalDelayMillis = totalDelayMillis;
+        }
+
+        /**
+         * @return the current account rate in messages per second, lowered after rate limit responses, or 0 if
+         * there is no limit
+         */
+        public double getAccountRate() {
+            return accountRate;
+        }
+
+        /**
+         * @return the available permits of the account, negative if sends are queued, or -1 if there is no limit
+         */
+        public double getAccountTokens() {
+            return accountTokens;
+        }
+
+        /**
+         * @return the remaining time in milliseconds, for which the account is paused after a rate limit response
+         */
+        public long getAccountPauseMillis() {
+            return accountPauseMillis;
+        }
+
+        public int getTrackedRecipients() {
+            return trackedRecipients;
+        }
+
+        public int getPausedRecipients() {
+            return pausedRecipients;
+        }
+
+        public long getPermittedCount() {
+            return permittedCount;
+        }
+
+        /**
+         * @return the number of sends that had to wait for a permit
+         */
+        public long getDelayedCount() {
+            return delayedCount;
+        }
+
+        /**
+         * @return the number of sends that failed fast, without being sent
+         */
+        public long getRejectedCount() {
+            return rejectedCount;
+        }
+
+        /**
+         * @return the number of rate limit responses from the server
+         */
+        public long getRateLimitedCount() {
+            return rateLimitedCount;
+        }
+
+        public long getTotalDelayMillis() {
+            return totalDelayMillis;
+        }
+    }
+}
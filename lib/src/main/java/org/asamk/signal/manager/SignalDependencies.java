@@ -2,7 +2,6 @@ package org.asamk.signal.manager;
 
 import org.asamk.signal.manager.config.ServiceConfig;
 import org.asamk.signal.manager.config.ServiceEnvironmentConfig;
-import org.signal.libsignal.metadata.certificate.CertificateValidator;
 import org.signal.zkgroup.profiles.ClientZkProfileOperations;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.KeyBackupService;
@@ -50,6 +49,7 @@ public class SignalDependencies {
 
     private KeyBackupService keyBackupService;
     private ProfileService profileService;
+    private CachingCertificateValidator certificateValidator;
     private SignalServiceCipher cipher;
 
     public SignalDependencies(
@@ -167,11 +167,19 @@ public class SignalDependencies {
                         getSignalWebSocket()));
     }
 
+    /**
+     * @return the validator for sealed sender certificates, which caches the already validated certificates
+     */
+    public CachingCertificateValidator getCertificateValidator() {
+        return getOrCreate(() -> certificateValidator,
+                () -> certificateValidator = new CachingCertificateValidator(
+                        serviceEnvironmentConfig.getUnidentifiedSenderTrustRoot()));
+    }
+
     public SignalServiceCipher getCipher() {
         return getOrCreate(() -> cipher, () -> {
-            final var certificateValidator = new CertificateValidator(serviceEnvironmentConfig.getUnidentifiedSenderTrustRoot());
             final var address = new SignalServiceAddress(credentialsProvider.getUuid(), credentialsProvider.getE164());
-            cipher = new SignalServiceCipher(address, dataStore, sessionLock, certificateValidator);
+            cipher = new SignalServiceCipher(address, dataStore, sessionLock, getCertificateValidator());
         });
     }
 
@@ -13,6 +13,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 public class StickerPackStore {
 
@@ -34,11 +36,19 @@ public class StickerPackStore {
         }
     }
 
+    public boolean existsSticker(StickerPackId stickerPackId, int stickerId) {
+        return getStickerPackStickerFile(stickerPackId, stickerId).exists();
+    }
+
     public void storeSticker(StickerPackId stickerPackId, int stickerId, StickerStorer storer) throws IOException {
         createStickerPackDir(stickerPackId);
-        try (OutputStream output = new FileOutputStream(getStickerPackStickerFile(stickerPackId, stickerId))) {
+        final var stickerFile = getStickerPackStickerFile(stickerPackId, stickerId);
+        // Write to a temporary file first, so an interrupted download doesn't leave a truncated sticker behind
+        final var partialFile = new File(stickerFile.getParentFile(), stickerFile.getName() + ".part");
+        try (OutputStream output = new FileOutputStream(partialFile)) {
             storer.store(output);
         }
+        Files.move(partialFile.toPath(), stickerFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
     }
 
     private File getStickerPackManifestFile(StickerPackId stickerPackId) {
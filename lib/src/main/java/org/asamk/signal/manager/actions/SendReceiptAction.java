@@ -3,22 +3,56 @@ package org.asamk.signal.manager.actions;
 import org.asamk.signal.manager.jobs.Context;
 import org.asamk.signal.manager.storage.recipients.RecipientId;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Objects;
 
 public class SendReceiptAction implements HandleAction {
 
+    private static final int MAX_TIMESTAMPS_PER_RECEIPT = 500;
+
     private final RecipientId recipientId;
-    private final long timestamp;
+    private final List<Long> timestamps;
 
     public SendReceiptAction(final RecipientId recipientId, final long timestamp) {
+        this(recipientId, List.of(timestamp));
+    }
+
+    public SendReceiptAction(final RecipientId recipientId, final List<Long> timestamps) {
         this.recipientId = recipientId;
-        this.timestamp = timestamp;
+        this.timestamps = List.copyOf(timestamps);
+    }
+
+    /**
+     * Combines the receipts for the same recipient, so they are sent with a single message.
+     */
+    public static List<HandleAction> combine(final Collection<HandleAction> actions) {
+        final var result = new ArrayList<HandleAction>(actions.size());
+        final var timestampsByRecipient = new HashMap<RecipientId, List<Long>>();
+        for (var action : actions) {
+            if (action instanceof SendReceiptAction) {
+                final var receiptAction = (SendReceiptAction) action;
+                timestampsByRecipient.computeIfAbsent(receiptAction.recipientId, id -> new ArrayList<>())
+                        .addAll(receiptAction.timestamps);
+            } else {
+                result.add(action);
+            }
+        }
+        for (var entry : timestampsByRecipient.entrySet()) {
+            final var timestamps = entry.getValue();
+            for (var i = 0; i < timestamps.size(); i += MAX_TIMESTAMPS_PER_RECEIPT) {
+                result.add(new SendReceiptAction(entry.getKey(),
+                        timestamps.subList(i, Math.min(i + MAX_TIMESTAMPS_PER_RECEIPT, timestamps.size()))));
+            }
+        }
+        return result;
     }
 
     @Override
     public void execute(Context context) throws Throwable {
-        context.getSendHelper().sendDeliveryReceipt(recipientId, List.of(timestamp));
+        context.getSendHelper().sendDeliveryReceipt(recipientId, timestamps);
     }
 
     @Override
@@ -26,11 +60,11 @@ public class SendReceiptAction implements HandleAction {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         final var that = (SendReceiptAction) o;
-        return timestamp == that.timestamp && recipientId.equals(that.recipientId);
+        return timestamps.equals(that.timestamps) && recipientId.equals(that.recipientId);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(recipientId, timestamp);
+        return Objects.hash(recipientId, timestamps);
     }
 }
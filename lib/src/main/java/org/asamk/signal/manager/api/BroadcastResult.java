@@ -0,0 +1,57 @@
+package org.asamk.signal.manager.api;
+
+/**
+ * The result of a broadcast for a single recipient.
+ */
+public class BroadcastResult {
+
+    private final long broadcastId;
+    private final int index;
+    private final String recipient;
+    private final Status status;
+
+    public BroadcastResult(final long broadcastId, final int index, final String recipient, final Status status) {
+        this.broadcastId = broadcastId;
+        this.index = index;
+        this.recipient = recipient;
+        this.status = status;
+    }
+
+    public long getBroadcastId() {
+        return broadcastId;
+    }
+
+    /**
+     * @return the position of the recipient in the recipient list of the broadcast
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the recipient identifier, as given when starting the broadcast
+     */
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public enum Status {
+        SUCCESS,
+        UNREGISTERED,
+        IDENTITY_FAILURE,
+        PROOF_REQUIRED,
+        /**
+         * The message couldn't be sent due to network errors or rate limiting, it's sent again when the broadcast
+         * is resumed.
+         */
+        NETWORK_FAILURE;
+
+        public boolean isFinal() {
+            return this != NETWORK_FAILURE;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.asamk.signal.manager.api;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Which ephemeral events may be collapsed or dropped, when the receive handler lags behind.
+ * Data and sync messages are always delivered.
+ */
+public class LoadSheddingPolicy {
+
+    public static final LoadSheddingPolicy DISABLED = new LoadSheddingPolicy(0, false, false);
+    public static final LoadSheddingPolicy DEFAULT = new LoadSheddingPolicy(TimeUnit.SECONDS.toMillis(10), true, true);
+
+    private final long lagThreshold;
+    private final boolean shedTypingMessages;
+    private final boolean shedReceipts;
+
+    /**
+     * @param lagThreshold       the handler lag in milliseconds, above which events are shed
+     * @param shedTypingMessages collapse typing started/stopped pairs and superseded typing messages
+     * @param shedReceipts       drop receipts that are superseded by a later receipt of the same sender
+     */
+    public LoadSheddingPolicy(final long lagThreshold, final boolean shedTypingMessages, final boolean shedReceipts) {
+        this.lagThreshold = lagThreshold;
+        this.shedTypingMessages = shedTypingMessages;
+        this.shedReceipts = shedReceipts;
+    }
+
+    public long getLagThreshold() {
+        return lagThreshold;
+    }
+
+    public boolean isShedTypingMessages() {
+        return shedTypingMessages;
+    }
+
+    public boolean isShedReceipts() {
+        return shedReceipts;
+    }
+
+    public boolean isEnabled() {
+        return shedTypingMessages || shedReceipts;
+    }
+}
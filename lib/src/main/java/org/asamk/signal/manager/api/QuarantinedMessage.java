@@ -0,0 +1,47 @@
+package org.asamk.signal.manager.api;
+
+public class QuarantinedMessage {
+
+    private final String sender;
+    private final long timestamp;
+    private final long receivedTimestamp;
+    private final int attempts;
+    private final String lastError;
+
+    public QuarantinedMessage(
+            final String sender,
+            final long timestamp,
+            final long receivedTimestamp,
+            final int attempts,
+            final String lastError
+    ) {
+        this.sender = sender;
+        this.timestamp = timestamp;
+        this.receivedTimestamp = receivedTimestamp;
+        this.attempts = attempts;
+        this.lastError = lastError;
+    }
+
+    /**
+     * @return the sender identifier or null, if the sender is unknown
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getReceivedTimestamp() {
+        return receivedTimestamp;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+}
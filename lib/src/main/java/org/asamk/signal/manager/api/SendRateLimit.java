@@ -0,0 +1,36 @@
+package org.asamk.signal.manager.api;
+
+/**
+ * The client side limits for sending messages, to stay below the server's rate limits.
+ */
+public class SendRateLimit {
+
+    public static final SendRateLimit UNLIMITED = new SendRateLimit(0, 0, false);
+
+    private final double accountRate;
+    private final double recipientRate;
+    private final boolean failFast;
+
+    /**
+     * @param accountRate   the maximum number of messages per second for the whole account, or 0 for no limit
+     * @param recipientRate the maximum number of messages per second to a single recipient, or 0 for no limit
+     * @param failFast      fail the send to a recipient immediately instead of waiting, if the limit is reached
+     */
+    public SendRateLimit(final double accountRate, final double recipientRate, final boolean failFast) {
+        this.accountRate = accountRate;
+        this.recipientRate = recipientRate;
+        this.failFast = failFast;
+    }
+
+    public double getAccountRate() {
+        return accountRate;
+    }
+
+    public double getRecipientRate() {
+        return recipientRate;
+    }
+
+    public boolean isFailFast() {
+        return failFast;
+    }
+}
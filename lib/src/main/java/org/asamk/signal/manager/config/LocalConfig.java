@@ -0,0 +1,109 @@
+package org.asamk.signal.manager.config;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.push.TrustStore;
+import org.whispersystems.signalservice.internal.configuration.SignalCdnUrl;
+import org.whispersystems.signalservice.internal.configuration.SignalContactDiscoveryUrl;
+import org.whispersystems.signalservice.internal.configuration.SignalKeyBackupServiceUrl;
+import org.whispersystems.signalservice.internal.configuration.SignalProxy;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceUrl;
+import org.whispersystems.signalservice.internal.configuration.SignalStorageUrl;
+
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.Dns;
+import okhttp3.Interceptor;
+
+/**
+ * Configuration for a local stand-in of the Signal service, e.g. the mock service used for throughput tests.
+ * <p>
+ * All services, including the CDN, are expected at the same url. The mock service generates a new trust root and
+ * zkgroup server params on every start, they are passed to signal-cli with environment variables or system properties.
+ */
+class LocalConfig {
+
+    private final static String URL_VARIABLE = "SIGNAL_CLI_LOCAL_URL";
+    private final static String TRUST_ROOT_VARIABLE = "SIGNAL_CLI_LOCAL_TRUST_ROOT";
+    private final static String ZK_PARAMS_VARIABLE = "SIGNAL_CLI_LOCAL_ZK_PARAMS";
+
+    private final static String DEFAULT_URL = "http://127.0.0.1:8080";
+
+    // Secure enclaves are not available locally, contact discovery and key backup requests fail
+    private final static String CDS_MRENCLAVE = "c98e00a4e3ff977a56afefe7362a27e4961e4f19e211febfbb19b897e6b80b15";
+    private final static String KEY_BACKUP_ENCLAVE_NAME = "823a3b2c037ff0cbe305cc48928cfcc97c9ed4a8ca6d49af6f7d6981fb60a4e9";
+    private final static byte[] KEY_BACKUP_SERVICE_ID = Hex.decode(
+            "16b94ac6d2b7f7b9d72928f36d798dbb35ed32e7bb14c42b4301ad0344b46f29");
+    private final static String KEY_BACKUP_MRENCLAVE = "a3baab19ef6ce6f34ab9ebb25ba722725ae44a8872dc0ff08ad6d83a9489de87";
+
+    private final static TrustStore TRUST_STORE = new WhisperTrustStore();
+
+    private final static Optional<Dns> dns = Optional.absent();
+    private final static Optional<SignalProxy> proxy = Optional.absent();
+
+    static SignalServiceConfiguration createDefaultServiceConfiguration(
+            final List<Interceptor> interceptors
+    ) {
+        final var url = getSetting(URL_VARIABLE, DEFAULT_URL);
+        return new SignalServiceConfiguration(new SignalServiceUrl[]{new SignalServiceUrl(url, TRUST_STORE)},
+                Map.of(0,
+                        new SignalCdnUrl[]{new SignalCdnUrl(url, TRUST_STORE)},
+                        2,
+                        new SignalCdnUrl[]{new SignalCdnUrl(url, TRUST_STORE)}),
+                new SignalContactDiscoveryUrl[]{new SignalContactDiscoveryUrl(url, TRUST_STORE)},
+                new SignalKeyBackupServiceUrl[]{new SignalKeyBackupServiceUrl(url, TRUST_STORE)},
+                new SignalStorageUrl[]{new SignalStorageUrl(url, TRUST_STORE)},
+                interceptors,
+                dns,
+                proxy,
+                Base64.getDecoder().decode(getRequiredSetting(ZK_PARAMS_VARIABLE)));
+    }
+
+    static ECPublicKey getUnidentifiedSenderTrustRoot() {
+        try {
+            return Curve.decodePoint(Base64.getDecoder().decode(getRequiredSetting(TRUST_ROOT_VARIABLE)), 0);
+        } catch (InvalidKeyException e) {
+            throw new IllegalArgumentException("Invalid trust root in " + TRUST_ROOT_VARIABLE, e);
+        }
+    }
+
+    static KeyBackupConfig createKeyBackupConfig() {
+        return new KeyBackupConfig(KEY_BACKUP_ENCLAVE_NAME, KEY_BACKUP_SERVICE_ID, KEY_BACKUP_MRENCLAVE);
+    }
+
+    static String getCdsMrenclave() {
+        return CDS_MRENCLAVE;
+    }
+
+    /**
+     * Reads a setting from the system property with the variable name in lower case and dots, e.g.
+     * signal.cli.local.url, or from the environment variable.
+     */
+    private static String getSetting(final String variable, final String defaultValue) {
+        final var property = System.getProperty(variable.toLowerCase().replace('_', '.'));
+        if (property != null) {
+            return property;
+        }
+        final var value = System.getenv(variable);
+        return value != null ? value : defaultValue;
+    }
+
+    private static String getRequiredSetting(final String variable) {
+        final var value = getSetting(variable, null);
+        if (value == null) {
+            throw new IllegalArgumentException("The local service environment requires the "
+                    + variable
+                    + " variable, as printed by the mock service on startup");
+        }
+        return value;
+    }
+
+    private LocalConfig() {
+    }
+}
@@ -5,6 +5,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.signalservice.api.account.AccountAttributes;
 import org.whispersystems.signalservice.api.push.TrustStore;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
 
 import java.io.IOException;
 import java.security.KeyStore;
@@ -93,8 +94,38 @@ public class ServiceConfig {
                         SandboxConfig.getUnidentifiedSenderTrustRoot(),
                         SandboxConfig.createKeyBackupConfig(),
                         SandboxConfig.getCdsMrenclave());
+            case LOCAL:
+                return new ServiceEnvironmentConfig(LocalConfig.createDefaultServiceConfiguration(interceptors),
+                        LocalConfig.getUnidentifiedSenderTrustRoot(),
+                        LocalConfig.createKeyBackupConfig(),
+                        LocalConfig.getCdsMrenclave());
             default:
                 throw new IllegalArgumentException("Unsupported environment");
         }
     }
+
+    /**
+     * @return the same environment, but every network request fails immediately without being sent
+     */
+    public static ServiceEnvironmentConfig createOfflineServiceEnvironmentConfig(
+            ServiceEnvironmentConfig serviceEnvironmentConfig
+    ) {
+        final Interceptor offlineInterceptor = chain -> {
+            throw new IOException("Network access is disabled: " + chain.request().url());
+        };
+
+        final var configuration = serviceEnvironmentConfig.getSignalServiceConfiguration();
+        return new ServiceEnvironmentConfig(new SignalServiceConfiguration(configuration.getSignalServiceUrls(),
+                configuration.getSignalCdnUrlMap(),
+                configuration.getSignalContactDiscoveryUrls(),
+                configuration.getSignalKeyBackupServiceUrls(),
+                configuration.getSignalStorageUrls(),
+                List.of(offlineInterceptor),
+                configuration.getDns(),
+                configuration.getSignalProxy(),
+                configuration.getZkGroupServerPublicParams()),
+                serviceEnvironmentConfig.getUnidentifiedSenderTrustRoot(),
+                serviceEnvironmentConfig.getKeyBackupConfig(),
+                serviceEnvironmentConfig.getCdsMrenclave());
+    }
 }
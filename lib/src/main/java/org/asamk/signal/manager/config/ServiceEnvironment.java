@@ -3,4 +3,5 @@ package org.asamk.signal.manager.config;
 public enum ServiceEnvironment {
     LIVE,
     SANDBOX,
+    LOCAL,
 }
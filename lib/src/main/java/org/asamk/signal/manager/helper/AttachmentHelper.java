@@ -4,36 +4,92 @@ import org.asamk.signal.manager.AttachmentInvalidException;
 import org.asamk.signal.manager.AttachmentStore;
 import org.asamk.signal.manager.SignalDependencies;
 import org.asamk.signal.manager.config.ServiceConfig;
+import org.asamk.signal.manager.storage.attachments.AttachmentUploadStore;
+import org.asamk.signal.manager.storage.attachments.ResumableUploadStore;
 import org.asamk.signal.manager.util.AttachmentUtils;
 import org.asamk.signal.manager.util.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachment;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentRemoteId;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentStream;
 import org.whispersystems.signalservice.api.push.exceptions.MissingConfigurationException;
+import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
+import org.whispersystems.signalservice.api.push.exceptions.ResumeLocationInvalidException;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos;
+import org.whispersystems.signalservice.internal.push.http.ResumableUploadSpec;
+import org.whispersystems.signalservice.internal.push.util.AttachmentPointerUtil;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AttachmentHelper {
 
     private final static Logger logger = LoggerFactory.getLogger(AttachmentHelper.class);
 
+    private static final int MAX_CONCURRENT_UPLOADS = 4;
+    private static final long RESUMABLE_UPLOAD_THRESHOLD = 1024 * 1024;
+    private static final int MAX_UPLOAD_ATTEMPTS = 5;
+    private static final long INITIAL_UPLOAD_RETRY_DELAY = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_UPLOAD_RETRY_DELAY = TimeUnit.SECONDS.toMillis(30);
+
     private final SignalDependencies dependencies;
     private final AttachmentStore attachmentStore;
+    private final AttachmentUploadStore attachmentUploadStore;
+    private final ResumableUploadStore resumableUploadStore;
+    private final ThreadPoolExecutor uploadExecutor;
+    private final Map<String, UploadLock> uploadLocks = new HashMap<>();
+    private volatile boolean uploadCacheEnabled = false;
 
     public AttachmentHelper(
-            final SignalDependencies dependencies, final AttachmentStore attachmentStore
+            final SignalDependencies dependencies,
+            final AttachmentStore attachmentStore,
+            final AttachmentUploadStore attachmentUploadStore,
+            final ResumableUploadStore resumableUploadStore
     ) {
         this.dependencies = dependencies;
         this.attachmentStore = attachmentStore;
+        this.attachmentUploadStore = attachmentUploadStore;
+        this.resumableUploadStore = resumableUploadStore;
+        final var threadCount = new AtomicInteger();
+        this.uploadExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_UPLOADS,
+                MAX_CONCURRENT_UPLOADS,
+                60,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> {
+                    final var thread = new Thread(r, "attachment-upload-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.uploadExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Reuse the pointers of recently uploaded attachments with the same content, instead of uploading them again.
+     */
+    public void setUploadCacheEnabled(final boolean uploadCacheEnabled) {
+        this.uploadCacheEnabled = uploadCacheEnabled;
     }
 
     public File getAttachmentFile(SignalServiceAttachmentRemoteId attachmentId) {
@@ -44,18 +100,235 @@ public class AttachmentHelper {
         var attachmentStreams = AttachmentUtils.getSignalServiceAttachments(attachments);
 
         // Upload attachments here, so we only upload once even for multiple recipients
-        var messageSender = dependencies.getMessageSender();
         var attachmentPointers = new ArrayList<SignalServiceAttachment>(attachmentStreams.size());
-        for (var attachment : attachmentStreams) {
-            if (attachment.isStream()) {
-                attachmentPointers.add(messageSender.uploadAttachment(attachment.asStream()));
-            } else if (attachment.isPointer()) {
-                attachmentPointers.add(attachment.asPointer());
+        if (attachmentStreams.size() == 1) {
+            attachmentPointers.add(uploadAttachment(attachmentStreams.get(0), attachments.get(0)));
+            return attachmentPointers;
+        }
+
+        // Multiple attachments are encrypted and uploaded concurrently
+        final var uploads = new ArrayList<Future<SignalServiceAttachment>>(attachmentStreams.size());
+        for (var i = 0; i < attachmentStreams.size(); i++) {
+            final var attachment = attachmentStreams.get(i);
+            final var path = attachments.get(i);
+            uploads.add(uploadExecutor.submit(() -> uploadAttachment(attachment, path)));
+        }
+
+        // The results are collected in submission order, so the pointers keep the order of the attachments
+        Throwable error = null;
+        for (var upload : uploads) {
+            try {
+                attachmentPointers.add(upload.get());
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                uploads.forEach(u -> u.cancel(true));
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while uploading attachments", e);
             }
         }
+        if (error instanceof AttachmentInvalidException) {
+            throw (AttachmentInvalidException) error;
+        } else if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error != null) {
+            throw new AssertionError(error);
+        }
         return attachmentPointers;
     }
 
+    public void close() {
+        uploadExecutor.shutdown();
+    }
+
+    private SignalServiceAttachment uploadAttachment(
+            final SignalServiceAttachment attachment, final String path
+    ) throws AttachmentInvalidException, IOException {
+        if (attachment.isStream()) {
+            return uploadAttachment(attachment.asStream(), path);
+        }
+        return attachment.asPointer();
+    }
+
+    private SignalServiceAttachment uploadAttachment(
+            final SignalServiceAttachmentStream attachmentStream, final String attachment
+    ) throws AttachmentInvalidException, IOException {
+        if (!uploadCacheEnabled) {
+            return upload(attachmentStream, attachment);
+        }
+
+        final String cacheKey;
+        try {
+            cacheKey = getUploadCacheKey(new File(attachment), attachmentStream.getContentType());
+        } catch (IOException e) {
+            throw new AttachmentInvalidException(attachment, e);
+        }
+
+        final var cachedPointer = attachmentUploadStore.getPointer(cacheKey);
+        if (cachedPointer != null) {
+            try {
+                // Same content, but the file name may differ
+                final var pointer = SignalServiceProtos.AttachmentPointer.parseFrom(cachedPointer)
+                        .toBuilder()
+                        .setFileName(attachmentStream.getFileName().or(""))
+                        .build();
+                attachmentStream.getInputStream().close();
+                logger.debug("Reusing recently uploaded attachment for {}", attachment);
+                return AttachmentPointerUtil.createSignalAttachmentPointer(pointer);
+            } catch (IOException e) {
+                logger.warn("Failed to read cached attachment pointer, uploading again: {}", e.getMessage());
+            }
+        }
+
+        final var uploadTimestamp = System.currentTimeMillis();
+        final var pointer = upload(attachmentStream, attachment);
+        attachmentUploadStore.storePointer(cacheKey,
+                AttachmentPointerUtil.createAttachmentPointer(pointer).toByteArray(),
+                uploadTimestamp);
+        return pointer;
+    }
+
+    private SignalServiceAttachmentPointer upload(
+            final SignalServiceAttachmentStream attachmentStream, final String attachment
+    ) throws AttachmentInvalidException, IOException {
+        if (attachmentStream.getLength() < RESUMABLE_UPLOAD_THRESHOLD) {
+            return dependencies.getMessageSender().uploadAttachment(attachmentStream);
+        }
+        attachmentStream.getInputStream().close();
+        return uploadResumable(new File(attachment));
+    }
+
+    /**
+     * Uploads a large attachment in a resumable upload. If the upload is interrupted by a network or server error,
+     * it's continued from the last offset acknowledged by the CDN. The upload state is persisted, so an upload that
+     * failed too often is resumed the next time the same file is sent.
+     * Concurrent uploads of the same file run one after another, as they would share the persisted upload state.
+     */
+    private SignalServiceAttachmentPointer uploadResumable(
+            final File file
+    ) throws AttachmentInvalidException, IOException {
+        final var uploadKey = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+        final UploadLock lock;
+        synchronized (uploadLocks) {
+            lock = uploadLocks.computeIfAbsent(uploadKey, k -> new UploadLock());
+            lock.users++;
+        }
+        try {
+            synchronized (lock) {
+                return uploadResumable(file, uploadKey);
+            }
+        } finally {
+            synchronized (uploadLocks) {
+                if (--lock.users == 0) {
+                    uploadLocks.remove(uploadKey);
+                }
+            }
+        }
+    }
+
+    private SignalServiceAttachmentPointer uploadResumable(
+            final File file, final String uploadKey
+    ) throws AttachmentInvalidException, IOException {
+        final var messageSender = dependencies.getMessageSender();
+        var uploadSpec = getResumableUploadSpec(uploadKey);
+        if (uploadSpec != null) {
+            logger.debug("Resuming previous upload of {}", file.getName());
+        }
+
+        for (var attempt = 1; ; attempt++) {
+            if (uploadSpec == null) {
+                uploadSpec = messageSender.getResumableUploadSpec();
+                resumableUploadStore.storeUploadSpec(uploadKey,
+                        uploadSpec.serialize(),
+                        uploadSpec.getExpirationTimestamp());
+            }
+
+            final SignalServiceAttachmentStream attachmentStream;
+            try {
+                attachmentStream = AttachmentUtils.createAttachment(file, Optional.of(uploadSpec));
+            } catch (IOException e) {
+                throw new AttachmentInvalidException(file.getPath(), e);
+            }
+
+            try {
+                final var pointer = messageSender.uploadAttachment(attachmentStream);
+                resumableUploadStore.deleteUploadSpec(uploadKey);
+                return pointer;
+            } catch (ResumeLocationInvalidException e) {
+                logger.debug("Upload location of {} is no longer valid, restarting upload", file.getName());
+                resumableUploadStore.deleteUploadSpec(uploadKey);
+                uploadSpec = null;
+                if (attempt >= MAX_UPLOAD_ATTEMPTS) {
+                    throw e;
+                }
+            } catch (IOException e) {
+                if (attempt >= MAX_UPLOAD_ATTEMPTS || !isRetryable(e)) {
+                    throw e;
+                }
+                final var delay = Math.min(INITIAL_UPLOAD_RETRY_DELAY << (attempt - 1), MAX_UPLOAD_RETRY_DELAY);
+                logger.info("Upload of {} interrupted, resuming in {}ms: {}", file.getName(), delay, e.getMessage());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while uploading attachment", ie);
+                }
+            } finally {
+                attachmentStream.getInputStream().close();
+            }
+        }
+    }
+
+    /**
+     * @return true for network errors and server errors, client errors would fail again
+     */
+    private static boolean isRetryable(final IOException e) {
+        if (e instanceof NonSuccessfulResponseCodeException) {
+            return ((NonSuccessfulResponseCodeException) e).getCode() >= 500;
+        }
+        return true;
+    }
+
+    /**
+     * @return the persisted upload spec of an unfinished upload, or null if there is none
+     */
+    private ResumableUploadSpec getResumableUploadSpec(final String uploadKey) {
+        final var serializedSpec = resumableUploadStore.getUploadSpec(uploadKey);
+        if (serializedSpec == null) {
+            return null;
+        }
+        try {
+            return ResumableUploadSpec.deserialize(serializedSpec);
+        } catch (ResumeLocationInvalidException e) {
+            resumableUploadStore.deleteUploadSpec(uploadKey);
+            return null;
+        }
+    }
+
+    /**
+     * @return the hash of the file content, its size and content type
+     */
+    private static String getUploadCacheKey(final File file, final String contentType) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        try (var input = new FileInputStream(file)) {
+            final var buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return Base64.getEncoder().encodeToString(digest.digest()) + ":" + file.length() + ":" + contentType;
+    }
+
     public void downloadAttachment(final SignalServiceAttachment attachment) {
         if (!attachment.isPointer()) {
             logger.warn("Invalid state, can't store an attachment stream.");
@@ -119,6 +392,11 @@ public class AttachmentHelper {
         }
     }
 
+    private static final class UploadLock {
+
+        private int users;
+    }
+
     @FunctionalInterface
     public interface AttachmentHandler {
 
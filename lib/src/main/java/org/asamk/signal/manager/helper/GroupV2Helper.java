@@ -6,6 +6,7 @@ import org.asamk.signal.manager.groups.GroupLinkPassword;
 import org.asamk.signal.manager.groups.GroupLinkState;
 import org.asamk.signal.manager.groups.GroupPermission;
 import org.asamk.signal.manager.groups.GroupUtils;
+import org.asamk.signal.manager.storage.credentials.GroupCredentialStore;
 import org.asamk.signal.manager.storage.groups.GroupInfoV2;
 import org.asamk.signal.manager.storage.recipients.Profile;
 import org.asamk.signal.manager.storage.recipients.RecipientId;
@@ -19,6 +20,7 @@ import org.signal.storageservice.protos.groups.local.DecryptedGroupJoinInfo;
 import org.signal.storageservice.protos.groups.local.DecryptedPendingMember;
 import org.signal.zkgroup.InvalidInputException;
 import org.signal.zkgroup.VerificationFailedException;
+import org.signal.zkgroup.auth.AuthCredentialResponse;
 import org.signal.zkgroup.groups.GroupMasterKey;
 import org.signal.zkgroup.groups.GroupSecretParams;
 import org.signal.zkgroup.groups.UuidCiphertext;
@@ -41,15 +43,22 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 public class GroupV2Helper {
 
     private final static Logger logger = LoggerFactory.getLogger(GroupV2Helper.class);
 
+    // Fetch new credentials in the background, when less than this many days are left
+    private static final int CREDENTIAL_REFRESH_DAYS = 2;
+
     private final ProfileKeyCredentialProvider profileKeyCredentialProvider;
 
     private final ProfileProvider profileProvider;
@@ -62,13 +71,21 @@ public class GroupV2Helper {
 
     private final SignalServiceAddressResolver addressResolver;
 
+    private final GroupCredentialStore groupCredentialStore;
+
+    private final Executor executor;
+
+    private final AtomicBoolean refreshingCredentials = new AtomicBoolean();
+
     public GroupV2Helper(
             final ProfileKeyCredentialProvider profileKeyCredentialProvider,
             final ProfileProvider profileProvider,
             final SelfRecipientIdProvider selfRecipientIdProvider,
             final GroupsV2Operations groupsV2Operations,
             final GroupsV2Api groupsV2Api,
-            final SignalServiceAddressResolver addressResolver
+            final SignalServiceAddressResolver addressResolver,
+            final GroupCredentialStore groupCredentialStore,
+            final Executor executor
     ) {
         this.profileKeyCredentialProvider = profileKeyCredentialProvider;
         this.profileProvider = profileProvider;
@@ -76,6 +93,8 @@ public class GroupV2Helper {
         this.groupsV2Operations = groupsV2Operations;
         this.groupsV2Api = groupsV2Api;
         this.addressResolver = addressResolver;
+        this.groupCredentialStore = groupCredentialStore;
+        this.executor = executor;
     }
 
     public DecryptedGroup getDecryptedGroup(final GroupSecretParams groupSecretParams) {
@@ -507,18 +526,84 @@ public class GroupV2Helper {
             final GroupSecretParams groupSecretParams
     ) throws IOException {
         final var today = currentTimeDays();
-        // Returns credentials for the next 7 days
-        final var credentials = groupsV2Api.getCredentials(today);
-        // TODO cache credentials until they expire
-        var authCredentialResponse = credentials.get(today);
         final var uuid = getSelfUuid();
+        final var authCredentialResponse = getCachedCredential(uuid, today);
+        if (authCredentialResponse == null) {
+            return getGroupAuthWithFetchedCredential(groupSecretParams, uuid, today);
+        }
+        if (groupCredentialStore.getLastRedemptionDay(uuid) - today < CREDENTIAL_REFRESH_DAYS) {
+            refreshCredentialsInBackground(uuid, today);
+        }
+
+        try {
+            return groupsV2Api.getGroupsV2AuthorizationString(uuid, today, groupSecretParams, authCredentialResponse);
+        } catch (VerificationFailedException e) {
+            // The cached credential is unusable, e.g. issued for another server, retry once with new ones
+            logger.debug("Cached group auth credential failed verification, fetching new credentials");
+            groupCredentialStore.deleteAll();
+            return getGroupAuthWithFetchedCredential(groupSecretParams, uuid, today);
+        }
+    }
+
+    private GroupsV2AuthorizationString getGroupAuthWithFetchedCredential(
+            final GroupSecretParams groupSecretParams, final UUID uuid, final int today
+    ) throws IOException {
+        refreshCredentials(uuid, today);
+        final var authCredentialResponse = getCachedCredential(uuid, today);
+        if (authCredentialResponse == null) {
+            throw new IOException("Server didn't return a group auth credential for today");
+        }
+
         try {
             return groupsV2Api.getGroupsV2AuthorizationString(uuid, today, groupSecretParams, authCredentialResponse);
         } catch (VerificationFailedException e) {
+            groupCredentialStore.deleteAll();
             throw new IOException(e);
         }
     }
 
+    private AuthCredentialResponse getCachedCredential(final UUID uuid, final int today) {
+        final var serialized = groupCredentialStore.getCredential(uuid, today);
+        if (serialized == null) {
+            return null;
+        }
+        try {
+            return new AuthCredentialResponse(serialized);
+        } catch (InvalidInputException e) {
+            logger.warn("Invalid cached group auth credential, ignoring: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private void refreshCredentials(final UUID uuid, final int today) throws IOException {
+        // Returns credentials for the next 7 days
+        final var credentials = groupsV2Api.getCredentials(today);
+        groupCredentialStore.storeCredentials(uuid,
+                credentials.entrySet()
+                        .stream()
+                        .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().serialize())),
+                today);
+    }
+
+    private void refreshCredentialsInBackground(final UUID uuid, final int today) {
+        if (!refreshingCredentials.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    refreshCredentials(uuid, today);
+                } catch (IOException e) {
+                    logger.debug("Failed to refresh group auth credentials, using cached ones: {}", e.getMessage());
+                } finally {
+                    refreshingCredentials.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshingCredentials.set(false);
+        }
+    }
+
     private UUID getSelfUuid() {
         return addressResolver.resolveSignalServiceAddress(this.selfRecipientIdProvider.getSelfRecipientId()).getUuid();
     }
@@ -22,6 +22,7 @@ import org.asamk.signal.manager.groups.GroupId;
 import org.asamk.signal.manager.groups.GroupNotFoundException;
 import org.asamk.signal.manager.groups.GroupUtils;
 import org.asamk.signal.manager.jobs.RetrieveStickerPackJob;
+import org.asamk.signal.manager.storage.AuthorizationView;
 import org.asamk.signal.manager.storage.SignalAccount;
 import org.asamk.signal.manager.storage.groups.GroupInfoV1;
 import org.asamk.signal.manager.storage.recipients.Profile;
@@ -366,8 +367,9 @@ public final class IncomingMessageHandler {
         } else {
             return false;
         }
+        final var authorizationView = account.getAuthorizationView();
         final var recipientId = recipientResolver.resolveRecipient(source);
-        if (contactHelper.isContactBlocked(recipientId)) {
+        if (authorizationView.isBlocked(recipientId)) {
             return true;
         }
 
@@ -375,7 +377,7 @@ public final class IncomingMessageHandler {
             var message = content.getDataMessage().get();
             if (message.getGroupContext().isPresent()) {
                 var groupId = GroupUtils.getGroupId(message.getGroupContext().get());
-                return groupHelper.isGroupBlocked(groupId);
+                return authorizationView.isGroupBlocked(groupId);
             }
         }
 
@@ -409,9 +411,14 @@ public final class IncomingMessageHandler {
         }
 
         var groupId = GroupUtils.getGroupId(message.getGroupContext().get());
-        var group = groupHelper.getGroup(groupId);
+        var group = account.getAuthorizationView().getGroupPermissions(groupId);
         if (group == null) {
-            return false;
+            // Group members aren't known locally yet, retrieve the group
+            final var groupInfo = groupHelper.getGroup(groupId);
+            if (groupInfo == null) {
+                return false;
+            }
+            group = AuthorizationView.GroupPermissions.of(groupInfo);
         }
 
         final var recipientId = recipientResolver.resolveRecipient(source);
@@ -71,6 +71,22 @@ public final class ProfileHelper {
         getRecipientProfile(recipientId, true);
     }
 
+    /**
+     * While deferred, outdated profiles are returned from the cache without retrieving them again.
+     * The recipients of these profiles can be retrieved with {@link #takeDeferredProfileRefreshes()}.
+     */
+    public void setDeferProfileRefreshes(final boolean deferProfileRefreshes) {
+        this.deferProfileRefreshes = deferProfileRefreshes;
+    }
+
+    public Set<RecipientId> takeDeferredProfileRefreshes() {
+        synchronized (deferredProfileRefreshes) {
+            final var recipientIds = Set.copyOf(deferredProfileRefreshes);
+            deferredProfileRefreshes.clear();
+            return recipientIds;
+        }
+    }
+
     public ProfileKeyCredential getRecipientProfileKeyCredential(RecipientId recipientId) {
         var profileKeyCredential = account.getProfileStore().getProfileKeyCredential(recipientId);
         if (profileKeyCredential != null) {
@@ -151,6 +167,8 @@ public final class ProfileHelper {
     }
 
     private final Set<RecipientId> pendingProfileRequest = new HashSet<>();
+    private final Set<RecipientId> deferredProfileRefreshes = new HashSet<>();
+    private volatile boolean deferProfileRefreshes;
 
     private Profile getRecipientProfile(RecipientId recipientId, boolean force) {
         var profile = account.getProfileStore().getProfile(recipientId);
@@ -160,6 +178,12 @@ public final class ProfileHelper {
         if (!force && profile != null && now - profile.getLastUpdateTimestamp() < 24 * 60 * 60 * 1000) {
             return profile;
         }
+        if (!force && profile != null && deferProfileRefreshes) {
+            synchronized (deferredProfileRefreshes) {
+                deferredProfileRefreshes.add(recipientId);
+            }
+            return profile;
+        }
 
         synchronized (pendingProfileRequest) {
             if (pendingProfileRequest.contains(recipientId)) {
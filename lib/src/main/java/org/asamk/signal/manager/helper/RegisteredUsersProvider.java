@@ -0,0 +1,14 @@
+package org.asamk.signal.manager.helper;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+public interface RegisteredUsersProvider {
+
+    /**
+     * @return the uuids of the registered numbers, unregistered numbers are missing in the map
+     */
+    Map<String, UUID> getRegisteredUsers(Set<String> numbers) throws IOException;
+}
@@ -1,5 +1,6 @@
 package org.asamk.signal.manager.helper;
 
+import org.asamk.signal.manager.SendRateLimiter;
 import org.asamk.signal.manager.SignalDependencies;
 import org.asamk.signal.manager.UntrustedIdentityException;
 import org.asamk.signal.manager.groups.GroupId;
@@ -9,35 +10,51 @@ import org.asamk.signal.manager.groups.GroupUtils;
 import org.asamk.signal.manager.groups.NotAGroupMemberException;
 import org.asamk.signal.manager.storage.SignalAccount;
 import org.asamk.signal.manager.storage.groups.GroupInfo;
+import org.asamk.signal.manager.storage.groups.GroupInfoV2;
+import org.asamk.signal.manager.storage.recipients.Profile;
 import org.asamk.signal.manager.storage.recipients.RecipientId;
 import org.asamk.signal.manager.storage.recipients.RecipientResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.InvalidRegistrationIdException;
+import org.whispersystems.libsignal.NoSessionException;
 import org.whispersystems.libsignal.protocol.DecryptionErrorMessage;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.SignalServiceMessageSender;
 import org.whispersystems.signalservice.api.crypto.ContentHint;
+import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
 import org.whispersystems.signalservice.api.messages.SendMessageResult;
 import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
 import org.whispersystems.signalservice.api.messages.SignalServiceReceiptMessage;
 import org.whispersystems.signalservice.api.messages.SignalServiceTypingMessage;
 import org.whispersystems.signalservice.api.messages.multidevice.SentTranscriptMessage;
 import org.whispersystems.signalservice.api.messages.multidevice.SignalServiceSyncMessage;
+import org.whispersystems.signalservice.api.push.DistributionId;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.api.push.exceptions.InvalidUnidentifiedAccessHeaderException;
+import org.whispersystems.signalservice.api.push.exceptions.NotFoundException;
 import org.whispersystems.signalservice.api.push.exceptions.ProofRequiredException;
 import org.whispersystems.signalservice.api.push.exceptions.RateLimitException;
 import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class SendHelper {
 
     private final static Logger logger = LoggerFactory.getLogger(SendHelper.class);
 
+    private static final long SENDER_KEY_MAX_AGE = TimeUnit.DAYS.toMillis(14);
+    private static final int MIN_SENDER_KEY_TARGETS = 2;
+
     private final SignalAccount account;
     private final SignalDependencies dependencies;
     private final UnidentifiedAccessHelper unidentifiedAccessHelper;
@@ -46,6 +63,8 @@ public class SendHelper {
     private final IdentityFailureHandler identityFailureHandler;
     private final GroupProvider groupProvider;
     private final RecipientRegistrationRefresher recipientRegistrationRefresher;
+    private final ProfileProvider profileProvider;
+    private final SendRateLimiter rateLimiter;
 
     public SendHelper(
             final SignalAccount account,
@@ -55,7 +74,9 @@ public class SendHelper {
             final RecipientResolver recipientResolver,
             final IdentityFailureHandler identityFailureHandler,
             final GroupProvider groupProvider,
-            final RecipientRegistrationRefresher recipientRegistrationRefresher
+            final RecipientRegistrationRefresher recipientRegistrationRefresher,
+            final ProfileProvider profileProvider,
+            final SendRateLimiter rateLimiter
     ) {
         this.account = account;
         this.dependencies = dependencies;
@@ -65,21 +86,27 @@ public class SendHelper {
         this.identityFailureHandler = identityFailureHandler;
         this.groupProvider = groupProvider;
         this.recipientRegistrationRefresher = recipientRegistrationRefresher;
+        this.profileProvider = profileProvider;
+        this.rateLimiter = rateLimiter;
     }
 
     /**
      * Send a single message to one or multiple recipients.
      * The message is extended with the current expiration timer for each recipient.
+     * Can be called concurrently with the same message builder for different recipients.
      */
     public SendMessageResult sendMessage(
             final SignalServiceDataMessage.Builder messageBuilder, final RecipientId recipientId
     ) throws IOException {
         final var contact = account.getContactStore().getContact(recipientId);
         final var expirationTime = contact != null ? contact.getMessageExpirationTime() : 0;
-        messageBuilder.withExpiration(expirationTime);
-        messageBuilder.withProfileKey(account.getProfileKey().serialize());
-
-        final var message = messageBuilder.build();
+        final SignalServiceDataMessage message;
+        // The builder may be shared by concurrent sends to multiple recipients
+        synchronized (messageBuilder) {
+            messageBuilder.withExpiration(expirationTime);
+            messageBuilder.withProfileKey(account.getProfileKey().serialize());
+            message = messageBuilder.build();
+        }
         final var result = sendMessage(message, recipientId);
         handlePossibleIdentityFailure(result);
         return result;
@@ -116,7 +143,46 @@ public class SendHelper {
             }
         }
 
-        return sendGroupMessage(message, recipients);
+        final var distributionId = g instanceof GroupInfoV2 ? ((GroupInfoV2) g).getDistributionId() : null;
+        return sendGroupMessage(message, recipients, distributionId);
+    }
+
+    /**
+     * Send a group message again to some of the group members, e.g. after it failed due to a network error.
+     * Recipients that aren't members of the group anymore are skipped.
+     */
+    public List<SendMessageResult> resendGroupMessage(
+            final SignalServiceDataMessage.Builder messageBuilder,
+            final GroupId groupId,
+            final Set<RecipientId> recipientIds
+    ) throws IOException, GroupNotFoundException, NotAGroupMemberException {
+        final var g = getGroupForSending(groupId);
+        GroupUtils.setGroupContext(messageBuilder, g);
+        messageBuilder.withExpiration(g.getMessageExpirationTime());
+
+        final var message = messageBuilder.build();
+        final var members = g.getMembersWithout(account.getSelfRecipientId());
+        final var recipients = recipientIds.stream().filter(members::contains).collect(Collectors.toSet());
+        if (recipients.isEmpty()) {
+            return List.of();
+        }
+
+        final var rejectedResults = new ArrayList<SendMessageResult>();
+        final var permittedRecipients = acquireSendPermits(recipients, rejectedResults);
+        if (!permittedRecipients.isEmpty()
+                && !acquireAccountPermits(permittedRecipients.size(), permittedRecipients, rejectedResults)) {
+            permittedRecipients.clear();
+        }
+        final var results = new ArrayList<SendMessageResult>();
+        if (!permittedRecipients.isEmpty()) {
+            results.addAll(sendGroupMessageLegacy(message, permittedRecipients, true));
+            handleRateLimitResults(results);
+        }
+        for (var r : results) {
+            handlePossibleIdentityFailure(r);
+        }
+        results.addAll(rejectedResults);
+        return results;
     }
 
     /**
@@ -126,7 +192,21 @@ public class SendHelper {
     public List<SendMessageResult> sendGroupMessage(
             final SignalServiceDataMessage message, final Set<RecipientId> recipientIds
     ) throws IOException {
-        List<SendMessageResult> result = sendGroupMessageInternal(message, recipientIds);
+        return sendGroupMessage(message, recipientIds, null);
+    }
+
+    /**
+     * Send a group message to the given recipients, using the group's sender key for the recipients that support it.
+     *
+     * @param distributionId the sender key distribution id of the group, or null to encrypt the message for every
+     *                       recipient separately
+     */
+    public List<SendMessageResult> sendGroupMessage(
+            final SignalServiceDataMessage message,
+            final Set<RecipientId> recipientIds,
+            final DistributionId distributionId
+    ) throws IOException {
+        List<SendMessageResult> result = sendGroupMessageInternal(message, recipientIds, distributionId);
 
         for (var r : result) {
             handlePossibleIdentityFailure(r);
@@ -199,9 +279,11 @@ public class SendHelper {
         final var recipientId = account.getSelfRecipientId();
         final var contact = account.getContactStore().getContact(recipientId);
         final var expirationTime = contact != null ? contact.getMessageExpirationTime() : 0;
-        messageBuilder.withExpiration(expirationTime);
-
-        var message = messageBuilder.build();
+        final SignalServiceDataMessage message;
+        synchronized (messageBuilder) {
+            messageBuilder.withExpiration(expirationTime);
+            message = messageBuilder.build();
+        }
         return sendSelfMessage(message);
     }
 
@@ -260,12 +342,125 @@ public class SendHelper {
     }
 
     private List<SendMessageResult> sendGroupMessageInternal(
-            final SignalServiceDataMessage message, final Set<RecipientId> recipientIds
+            final SignalServiceDataMessage message,
+            final Set<RecipientId> recipientIds,
+            final DistributionId distributionId
+    ) throws IOException {
+        // isRecipientUpdate is true if we've already sent this message to some recipients in the past, otherwise false.
+        final var isRecipientUpdate = false;
+        final var results = new ArrayList<SendMessageResult>(recipientIds.size());
+
+        final var rejectedResults = new ArrayList<SendMessageResult>();
+        final var permittedRecipients = acquireSendPermits(recipientIds, rejectedResults);
+        if (permittedRecipients.isEmpty() && !recipientIds.isEmpty()) {
+            return rejectedResults;
+        }
+
+        final var senderKeyTargets = distributionId == null
+                ? new HashMap<RecipientId, UnidentifiedAccess>()
+                : getSenderKeyTargets(permittedRecipients);
+        // One request for the sender key message, one for each recipient that is sent to separately and at least one
+        // for the sync message
+        final var requests = (senderKeyTargets.isEmpty() ? 0 : 1)
+                + permittedRecipients.size()
+                - senderKeyTargets.size();
+        if (!acquireAccountPermits(Math.max(1, requests), permittedRecipients, rejectedResults)) {
+            return rejectedResults;
+        }
+        if (!senderKeyTargets.isEmpty()) {
+            final var senderKeyResults = sendGroupMessageWithSenderKey(message,
+                    recipientIds,
+                    senderKeyTargets,
+                    distributionId,
+                    isRecipientUpdate);
+            if (senderKeyResults == null) {
+                senderKeyTargets.clear();
+            } else {
+                for (var r : senderKeyResults) {
+                    if (r.isSuccess()) {
+                        results.add(r);
+                    } else {
+                        // Retry the failed recipients with a separately encrypted message
+                        senderKeyTargets.remove(recipientResolver.resolveRecipient(r.getAddress()));
+                    }
+                }
+            }
+        }
+
+        final var legacyTargets = new HashSet<>(permittedRecipients);
+        legacyTargets.removeAll(senderKeyTargets.keySet());
+        // Without recipients, the message still needs to be sent as sync message to our other devices
+        if (!legacyTargets.isEmpty() || results.isEmpty()) {
+            if (!senderKeyTargets.isEmpty()) {
+                logger.debug("Sending group message separately to {} recipients", legacyTargets.size());
+            }
+            results.addAll(sendGroupMessageLegacy(message, legacyTargets, isRecipientUpdate || !results.isEmpty()));
+        }
+        handleRateLimitResults(results);
+        results.addAll(rejectedResults);
+        return results;
+    }
+
+    /**
+     * Takes a send permit for each recipient, the recipients that don't get one receive a network failure result,
+     * so they can be retried later. The account permits are taken separately per request.
+     *
+     * @return the recipients that may be sent to now
+     */
+    private Set<RecipientId> acquireSendPermits(
+            final Set<RecipientId> recipientIds, final List<SendMessageResult> rejectedResults
+    ) {
+        final var permittedRecipients = new HashSet<RecipientId>();
+        for (var recipientId : recipientIds) {
+            if (rateLimiter.acquire(recipientId, 0)) {
+                permittedRecipients.add(recipientId);
+            } else {
+                rejectedResults.add(SendMessageResult.networkFailure(addressResolver.resolveSignalServiceAddress(
+                        recipientId)));
+            }
+        }
+        if (!rejectedResults.isEmpty()) {
+            logger.debug("Send rate limit reached, not sending to {} recipients", rejectedResults.size());
+        }
+        return permittedRecipients;
+    }
+
+    /**
+     * Takes the account permits for the requests to the server, if they aren't available all recipients receive a
+     * network failure result.
+     *
+     * @return true if the message may be sent now
+     */
+    private boolean acquireAccountPermits(
+            final int requests, final Set<RecipientId> recipientIds, final List<SendMessageResult> rejectedResults
+    ) {
+        if (rateLimiter.acquire(null, requests)) {
+            return true;
+        }
+        logger.debug("Send rate limit reached, not sending to {} recipients", recipientIds.size());
+        for (var recipientId : recipientIds) {
+            rejectedResults.add(SendMessageResult.networkFailure(addressResolver.resolveSignalServiceAddress(
+                    recipientId)));
+        }
+        return false;
+    }
+
+    private void handleRateLimitResults(final List<SendMessageResult> results) {
+        for (var r : results) {
+            if (r.isSuccess()) {
+                rateLimiter.handleSuccess(recipientResolver.resolveRecipient(r.getAddress()));
+            } else if (r.getProofRequiredFailure() != null) {
+                rateLimiter.handleRateLimited(recipientResolver.resolveRecipient(r.getAddress()),
+                        TimeUnit.SECONDS.toMillis(r.getProofRequiredFailure().getRetryAfterSeconds()));
+            }
+        }
+    }
+
+    private List<SendMessageResult> sendGroupMessageLegacy(
+            final SignalServiceDataMessage message, final Set<RecipientId> recipientIds, final boolean isRecipientUpdate
     ) throws IOException {
         try {
             var messageSender = dependencies.getMessageSender();
-            // isRecipientUpdate is true if we've already sent this message to some recipients in the past, otherwise false.
-            final var isRecipientUpdate = false;
             final var recipientIdList = new ArrayList<>(recipientIds);
             final var addresses = recipientIdList.stream()
                     .map(addressResolver::resolveSignalServiceAddress)
@@ -283,12 +478,136 @@ public class SendHelper {
         }
     }
 
+    /**
+     * Sends the message encrypted once with our sender key, as multi-recipient sealed sender message.
+     * The sender key is distributed first to the recipients that don't have it yet.
+     *
+     * @return the results or null, if sending with sender key failed and all recipients need to be sent separately
+     */
+    private List<SendMessageResult> sendGroupMessageWithSenderKey(
+            final SignalServiceDataMessage message,
+            final Set<RecipientId> members,
+            final Map<RecipientId, UnidentifiedAccess> targets,
+            final DistributionId distributionId,
+            final boolean isRecipientUpdate
+    ) throws IOException {
+        final var selfRecipientId = account.getSelfRecipientId();
+        final var senderKeyStore = account.getSenderKeyStore();
+        final var keyCreateTime = senderKeyStore.getCreateTimeForOurKey(selfRecipientId,
+                account.getDeviceId(),
+                distributionId);
+        if (keyCreateTime != -1 && System.currentTimeMillis() - keyCreateTime > SENDER_KEY_MAX_AGE) {
+            logger.debug("Sender key for distribution id {} is too old, rotating", distributionId.asUuid());
+            senderKeyStore.deleteOurKey(selfRecipientId, distributionId);
+        } else if (senderKeyStore.getSenderKeySharedWith(distributionId)
+                .stream()
+                .anyMatch(a -> !members.contains(recipientResolver.resolveRecipient(a.getName())))) {
+            // Former members must not be able to decrypt new messages
+            logger.debug("Sender key for distribution id {} was shared with former members, rotating",
+                    distributionId.asUuid());
+            senderKeyStore.deleteOurKey(selfRecipientId, distributionId);
+        }
+
+        final var recipientIdList = new ArrayList<>(targets.keySet());
+        final var addresses = recipientIdList.stream()
+                .map(addressResolver::resolveSignalServiceAddress)
+                .collect(Collectors.toList());
+        final var unidentifiedAccesses = recipientIdList.stream().map(targets::get).collect(Collectors.toList());
+
+        try {
+            final var results = dependencies.getMessageSender()
+                    .sendGroupDataMessage(distributionId,
+                            addresses,
+                            unidentifiedAccesses,
+                            isRecipientUpdate,
+                            ContentHint.DEFAULT,
+                            message,
+                            SignalServiceMessageSender.SenderKeyGroupEvents.EMPTY);
+            // The sender key is created by the first send, store its create time for the rotation
+            senderKeyStore.markOurKeyCreated(selfRecipientId, account.getDeviceId(), distributionId);
+            logger.debug("Sent group message with sender key to {}/{} recipients",
+                    results.stream().filter(SendMessageResult::isSuccess).count(),
+                    addresses.size());
+            return results;
+        } catch (org.whispersystems.libsignal.UntrustedIdentityException e) {
+            logger.debug("Untrusted identity for sender key send, sending separately: {}", e.getMessage());
+            return null;
+        } catch (InvalidUnidentifiedAccessHeaderException e) {
+            logger.warn("Invalid unidentified access header for sender key send, sending separately");
+            return null;
+        } catch (NotFoundException e) {
+            logger.warn("Unregistered recipient in sender key send, sending separately");
+            return null;
+        } catch (RateLimitException e) {
+            rateLimiter.handleRateLimited(null, 0);
+            throw e;
+        } catch (NoSessionException | InvalidKeyException e) {
+            logger.warn("Failed to send with sender key, sending separately: {}", e.getMessage());
+            senderKeyStore.deleteOurKey(selfRecipientId, distributionId);
+            return null;
+        } catch (InvalidRegistrationIdException e) {
+            logger.warn("Invalid registration id for sender key send, sending separately");
+            return null;
+        }
+    }
+
+    /**
+     * @return the recipients that can receive messages encrypted with sender key, with their unidentified access,
+     * or an empty map if too few recipients support it
+     */
+    private Map<RecipientId, UnidentifiedAccess> getSenderKeyTargets(final Set<RecipientId> recipientIds) {
+        final var selfProfile = profileProvider.getProfile(account.getSelfRecipientId());
+        if (selfProfile == null || !selfProfile.getCapabilities().contains(Profile.Capability.senderKey)) {
+            logger.debug("Not all of our devices support sender key, sending separately");
+            return new HashMap<>();
+        }
+
+        final var targets = new HashMap<RecipientId, UnidentifiedAccess>();
+        for (var recipientId : recipientIds) {
+            final var profile = profileProvider.getProfile(recipientId);
+            if (profile == null || !profile.getCapabilities().contains(Profile.Capability.senderKey)) {
+                continue;
+            }
+
+            final var access = unidentifiedAccessHelper.getAccessFor(recipientId);
+            if (!access.isPresent() || !access.get().getTargetUnidentifiedAccess().isPresent()) {
+                continue;
+            }
+
+            final var identity = account.getIdentityKeyStore().getIdentity(recipientId);
+            if (identity == null || !identity.isTrusted()) {
+                continue;
+            }
+
+            targets.put(recipientId, access.get().getTargetUnidentifiedAccess().get());
+        }
+
+        if (targets.size() < MIN_SENDER_KEY_TARGETS) {
+            logger.debug("Only {} recipients support sender key, sending separately", targets.size());
+            return new HashMap<>();
+        }
+        return targets;
+    }
+
     private SendMessageResult sendMessage(
             SignalServiceDataMessage message, RecipientId recipientId
+    ) throws IOException {
+        final var address = addressResolver.resolveSignalServiceAddress(recipientId);
+        if (!rateLimiter.acquire(recipientId)) {
+            logger.debug("Send rate limit reached, not sending message to {}", recipientId);
+            return SendMessageResult.networkFailure(address);
+        }
+
+        final var result = sendMessage(message, recipientId, address);
+        handleRateLimitResults(List.of(result));
+        return result;
+    }
+
+    private SendMessageResult sendMessage(
+            SignalServiceDataMessage message, RecipientId recipientId, SignalServiceAddress address
     ) throws IOException {
         var messageSender = dependencies.getMessageSender();
 
-        final var address = addressResolver.resolveSignalServiceAddress(recipientId);
         try {
             try {
                 return messageSender.sendDataMessage(address,
@@ -308,6 +627,7 @@ public class SendHelper {
             return SendMessageResult.proofRequiredFailure(address, e);
         } catch (RateLimitException e) {
             logger.warn("Sending failed due to rate limiting from the signal server: {}", e.getMessage());
+            rateLimiter.handleRateLimited(recipientId, 0);
             return SendMessageResult.networkFailure(address);
         } catch (org.whispersystems.signalservice.api.crypto.UntrustedIdentityException e) {
             return SendMessageResult.identityFailure(address, e.getIdentityKey());
@@ -0,0 +1,205 @@
+package org.asamk.signal.manager.helper;
+
+import org.asamk.signal.manager.SignalDependencies;
+import org.asamk.signal.manager.storage.SignalAccount;
+import org.asamk.signal.manager.storage.credentials.SenderCertificateStore;
+import org.signal.libsignal.metadata.InvalidCertificateException;
+import org.signal.libsignal.metadata.certificate.SenderCertificate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Provides the sender certificates for sealed sender messages from the persistent cache.
+ * <p>
+ * Both certificate variants are refreshed in the background, once half of the validity of the cached certificate has
+ * passed. Sending only waits for a certificate if there's no valid cached one, e.g. after linking or registering.
+ * If fetching it fails, messages are sent without sealed sender until the background retry succeeded.
+ */
+public class SenderCertificateHelper implements UnidentifiedAccessSenderCertificateProvider {
+
+    private final static Logger logger = LoggerFactory.getLogger(SenderCertificateHelper.class);
+
+    private static final long RETRY_DELAY = TimeUnit.MINUTES.toMillis(5);
+
+    private final SignalAccount account;
+    private final SignalDependencies dependencies;
+    private final SenderCertificateStore store;
+    private final ScheduledExecutorService scheduler;
+
+    private final Object fetchLock = new Object();
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private ScheduledFuture<?> scheduledRefresh;
+    private long scheduledRefreshTime;
+    private long lastFailedFetchTime;
+
+    public SenderCertificateHelper(final SignalAccount account, final SignalDependencies dependencies) {
+        this.account = account;
+        this.dependencies = dependencies;
+        this.store = account.getSenderCertificateStore();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final var thread = new Thread(r, "sender-certificate-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public byte[] getSenderCertificate() {
+        start();
+        final var phoneNumberPrivacy = !account.isPhoneNumberShared();
+        final var entry = getCertificate(phoneNumberPrivacy);
+        if (entry != null && entry.isValid(System.currentTimeMillis())) {
+            scheduleRefresh(getRefreshTime(entry));
+            return entry.certificate;
+        }
+
+        final var fetchedEntry = fetchCertificate(phoneNumberPrivacy);
+        if (fetchedEntry == null) {
+            return null;
+        }
+        scheduleRefresh(getRefreshTime(fetchedEntry));
+        return fetchedEntry.certificate;
+    }
+
+    /**
+     * Schedules the next refresh based on the cached certificates, without waiting for it.
+     * Only the first call has an effect, it's called when sending or receiving starts.
+     */
+    public void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        scheduleRefresh(getNextRefreshTime());
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Fetches the certificate synchronously, unless a fetch failed recently, then only the background retry is left.
+     *
+     * @return the valid certificate or null, if it couldn't be fetched
+     */
+    private SenderCertificateStore.CertificateEntry fetchCertificate(final boolean phoneNumberPrivacy) {
+        synchronized (fetchLock) {
+            final var now = System.currentTimeMillis();
+            // Another sender may have fetched it while waiting for the lock
+            final var entry = getCertificate(phoneNumberPrivacy);
+            if (entry != null && entry.isValid(now)) {
+                return entry;
+            }
+            if (now - lastFailedFetchTime < RETRY_DELAY) {
+                return null;
+            }
+            try {
+                refreshCertificate(phoneNumberPrivacy, now);
+            } catch (IOException | InvalidCertificateException e) {
+                logger.warn("Failed to fetch sender certificate, sending without sealed sender: {}", e.getMessage());
+                lastFailedFetchTime = now;
+                scheduleRefresh(now + RETRY_DELAY);
+                return null;
+            }
+            return getCertificate(phoneNumberPrivacy);
+        }
+    }
+
+    private SenderCertificateStore.CertificateEntry getCertificate(final boolean phoneNumberPrivacy) {
+        return store.getCertificate(phoneNumberPrivacy,
+                account.getUuid(),
+                account.getUsername(),
+                account.getDeviceId());
+    }
+
+    private long getNextRefreshTime() {
+        final var entry = getCertificate(false);
+        final var entryForPhoneNumberPrivacy = getCertificate(true);
+        if (entry == null || entryForPhoneNumberPrivacy == null) {
+            return System.currentTimeMillis();
+        }
+        return Math.min(getRefreshTime(entry), getRefreshTime(entryForPhoneNumberPrivacy));
+    }
+
+    private static long getRefreshTime(final SenderCertificateStore.CertificateEntry entry) {
+        return entry.received + (entry.expiration - entry.received) / 2;
+    }
+
+    /**
+     * Makes sure a refresh is scheduled no later than the given time.
+     */
+    private synchronized void scheduleRefresh(final long refreshTime) {
+        if (scheduledRefresh != null && !scheduledRefresh.isDone() && scheduledRefreshTime <= refreshTime) {
+            return;
+        }
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+        }
+        final var delay = Math.max(0, refreshTime - System.currentTimeMillis());
+        try {
+            scheduledRefresh = scheduler.schedule(this::refresh, delay, TimeUnit.MILLISECONDS);
+            scheduledRefreshTime = refreshTime;
+        } catch (RejectedExecutionException e) {
+            logger.debug("Sender certificate refresh already stopped");
+        }
+    }
+
+    private void refresh() {
+        try {
+            // Don't fetch the same certificate as a concurrent foreground fetch
+            synchronized (fetchLock) {
+                final var now = System.currentTimeMillis();
+                refreshCertificate(false, now);
+                refreshCertificate(true, now);
+            }
+        } catch (IOException | InvalidCertificateException e) {
+            logger.warn("Failed to refresh sender certificate, retrying later: {}", e.getMessage());
+            synchronized (this) {
+                scheduledRefresh = null;
+            }
+            scheduleRefresh(System.currentTimeMillis() + RETRY_DELAY);
+            return;
+        }
+        synchronized (this) {
+            scheduledRefresh = null;
+        }
+        scheduleRefresh(getNextRefreshTime());
+    }
+
+    private void refreshCertificate(
+            final boolean phoneNumberPrivacy, final long now
+    ) throws IOException, InvalidCertificateException {
+        final var entry = getCertificate(phoneNumberPrivacy);
+        if (entry != null && entry.isValid(now) && getRefreshTime(entry) > now) {
+            return;
+        }
+        final var uuid = account.getUuid();
+        if (uuid == null) {
+            throw new IOException("Account is not registered");
+        }
+
+        final var certificate = phoneNumberPrivacy
+                ? dependencies.getAccountManager().getSenderCertificateForPhoneNumberPrivacy()
+                : dependencies.getAccountManager().getSenderCertificate();
+        final var expiration = new SenderCertificate(certificate).getExpiration();
+        if (expiration <= now) {
+            throw new InvalidCertificateException("Received expired sender certificate");
+        }
+        store.storeCertificate(phoneNumberPrivacy,
+                new SenderCertificateStore.CertificateEntry(certificate,
+                        expiration,
+                        now,
+                        uuid,
+                        account.getUsername(),
+                        account.getDeviceId()));
+        logger.debug("Refreshed sender certificate, valid until {}", expiration);
+    }
+}
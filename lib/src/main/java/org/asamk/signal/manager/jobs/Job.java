@@ -1,6 +1,27 @@
 package org.asamk.signal.manager.jobs;
 
+import java.io.IOException;
+import java.util.Map;
+
 public interface Job {
 
-    void run(Context context);
+    /**
+     * Identifies the kind of job, used to recreate persisted jobs and for per type concurrency limits.
+     */
+    String getType();
+
+    /**
+     * Only one job with the same type and key is queued at a time, may be null to disable deduplication.
+     */
+    String getKey();
+
+    /**
+     * Parameters of this job, from which it can be recreated with {@link JobFactory}.
+     */
+    Map<String, String> serialize();
+
+    /**
+     * @throws IOException if the job failed due to a temporary error and should be retried later
+     */
+    void run(Context context) throws IOException;
 }
@@ -0,0 +1,21 @@
+package org.asamk.signal.manager.jobs;
+
+import java.util.Map;
+
+public class JobFactory {
+
+    private JobFactory() {
+    }
+
+    /**
+     * @return the recreated job or null, if the job type is unknown
+     */
+    public static Job create(final String type, final Map<String, String> data) {
+        switch (type) {
+            case RetrieveStickerPackJob.TYPE:
+                return RetrieveStickerPackJob.deserialize(data);
+            default:
+                return null;
+        }
+    }
+}
@@ -9,13 +9,17 @@ import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.signalservice.internal.util.Hex;
 
 import java.io.IOException;
+import java.util.Base64;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 public class RetrieveStickerPackJob implements Job {
 
     private final static Logger logger = LoggerFactory.getLogger(RetrieveStickerPackJob.class);
 
+    public static final String TYPE = "RetrieveStickerPack";
+
     private final StickerPackId packId;
     private final byte[] packKey;
 
@@ -24,8 +28,31 @@ public class RetrieveStickerPackJob implements Job {
         this.packKey = packKey;
     }
 
+    static RetrieveStickerPackJob deserialize(Map<String, String> data) {
+        return new RetrieveStickerPackJob(StickerPackId.deserialize(Base64.getDecoder().decode(data.get("packId"))),
+                Base64.getDecoder().decode(data.get("packKey")));
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    @Override
+    public String getKey() {
+        return Hex.toStringCondensed(packId.serialize());
+    }
+
+    @Override
+    public Map<String, String> serialize() {
+        return Map.of("packId",
+                Base64.getEncoder().encodeToString(packId.serialize()),
+                "packKey",
+                Base64.getEncoder().encodeToString(packKey));
+    }
+
     @Override
-    public void run(Context context) {
+    public void run(Context context) throws IOException {
         if (context.getStickerPackStore().existsStickerPack(packId)) {
             logger.debug("Sticker pack {} already downloaded.", Hex.toStringCondensed(packId.serialize()));
             return;
@@ -45,10 +72,15 @@ public class RetrieveStickerPackJob implements Job {
             }
 
             for (var id : stickerIds) {
-                final var inputStream = context.getDependencies()
+                if (context.getStickerPackStore().existsSticker(packId, id)) {
+                    // Already downloaded by a previous, interrupted run of this job
+                    continue;
+                }
+                try (final var inputStream = context.getDependencies()
                         .getMessageReceiver()
-                        .retrieveSticker(packId.serialize(), packKey, id);
-                context.getStickerPackStore().storeSticker(packId, id, o -> IOUtils.copyStream(inputStream, o));
+                        .retrieveSticker(packId.serialize(), packKey, id)) {
+                    context.getStickerPackStore().storeSticker(packId, id, o -> IOUtils.copyStream(inputStream, o));
+                }
             }
 
             final var jsonManifest = new JsonStickerPack(manifest.getTitle().orNull(),
@@ -69,6 +101,7 @@ public class RetrieveStickerPackJob implements Job {
             logger.warn("Failed to retrieve sticker pack {}: {}",
                     Hex.toStringCondensed(packId.serialize()),
                     e.getMessage());
+            throw e;
         } catch (InvalidMessageException e) {
             logger.warn("Failed to retrieve sticker pack {}, invalid pack data: {}",
                     Hex.toStringCondensed(packId.serialize()),
@@ -0,0 +1,157 @@
+package org.asamk.signal.manager.storage;
+
+import org.asamk.signal.manager.groups.GroupId;
+import org.asamk.signal.manager.groups.GroupIdV1;
+import org.asamk.signal.manager.groups.GroupIdV2;
+import org.asamk.signal.manager.groups.GroupUtils;
+import org.asamk.signal.manager.storage.groups.GroupInfo;
+import org.asamk.signal.manager.storage.groups.GroupInfoV1;
+import org.asamk.signal.manager.storage.groups.GroupInfoV2;
+import org.asamk.signal.manager.storage.recipients.Contact;
+import org.asamk.signal.manager.storage.recipients.RecipientId;
+import org.asamk.signal.manager.util.Pair;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Precomputed view of the blocked recipients and groups and the group members and admins.
+ * <p>
+ * It is updated when contacts or groups are stored, so checking the permissions of a received message doesn't need to
+ * lock the recipient and group stores. Groups are found by their V1 and V2 id after a migration, like in the group
+ * store.
+ */
+public class AuthorizationView {
+
+    private final Set<RecipientId> blockedRecipients = ConcurrentHashMap.newKeySet();
+    private final Map<GroupId, GroupPermissions> groups = new ConcurrentHashMap<>();
+    // V1 groups that haven't been migrated locally yet, by their expected V2 id
+    private final Map<GroupIdV2, GroupIdV1> v1GroupIds = new ConcurrentHashMap<>();
+
+    public void rebuild(final Collection<Pair<RecipientId, Contact>> contacts, final Collection<GroupInfo> groups) {
+        final var blocked = contacts.stream()
+                .filter(p -> p.second().isBlocked())
+                .map(Pair::first)
+                .collect(Collectors.toSet());
+        // Add the new entries before removing the old ones, so a blocked recipient is never missing in between
+        blockedRecipients.addAll(blocked);
+        blockedRecipients.retainAll(blocked);
+
+        final var groupPermissions = groups.stream()
+                .collect(Collectors.toMap(GroupInfo::getGroupId, GroupPermissions::of));
+        this.groups.putAll(groupPermissions);
+        this.groups.keySet().retainAll(groupPermissions.keySet());
+
+        final var expectedV2Ids = groups.stream()
+                .filter(g -> g instanceof GroupInfoV1)
+                .map(g -> (GroupInfoV1) g)
+                .collect(Collectors.toMap(GroupInfoV1::getExpectedV2Id, GroupInfoV1::getGroupId, (a, b) -> a));
+        v1GroupIds.putAll(expectedV2Ids);
+        v1GroupIds.keySet().retainAll(expectedV2Ids.keySet());
+    }
+
+    public void updateContact(final RecipientId recipientId, final Contact contact) {
+        if (contact != null && contact.isBlocked()) {
+            blockedRecipients.add(recipientId);
+        } else {
+            blockedRecipients.remove(recipientId);
+        }
+    }
+
+    /**
+     * @param group the updated group or null, if the group has been deleted
+     */
+    public void updateGroup(final GroupId groupId, final GroupInfo group) {
+        if (group == null) {
+            groups.remove(groupId);
+        } else {
+            groups.put(groupId, GroupPermissions.of(group));
+        }
+        v1GroupIds.values().remove(groupId);
+        if (group instanceof GroupInfoV1) {
+            v1GroupIds.put(((GroupInfoV1) group).getExpectedV2Id(), (GroupIdV1) groupId);
+        }
+    }
+
+    public boolean isBlocked(final RecipientId recipientId) {
+        return blockedRecipients.contains(recipientId);
+    }
+
+    public boolean isGroupBlocked(final GroupId groupId) {
+        final var group = getGroup(groupId);
+        return group != null && group.isBlocked();
+    }
+
+    /**
+     * @return the permissions of the group, or null if the group members aren't known locally
+     */
+    public GroupPermissions getGroupPermissions(final GroupId groupId) {
+        final var group = getGroup(groupId);
+        return group == null || !group.complete ? null : group;
+    }
+
+    private GroupPermissions getGroup(final GroupId groupId) {
+        final var group = groups.get(groupId);
+        if (group != null) {
+            return group;
+        }
+        if (groupId instanceof GroupIdV1) {
+            return groups.get(GroupUtils.getGroupIdV2((GroupIdV1) groupId));
+        } else if (groupId instanceof GroupIdV2) {
+            final var groupIdV1 = v1GroupIds.get(groupId);
+            return groupIdV1 == null ? null : groups.get(groupIdV1);
+        }
+        return null;
+    }
+
+    public static final class GroupPermissions {
+
+        private final Set<RecipientId> members;
+        private final Set<RecipientId> admins;
+        private final boolean announcementGroup;
+        private final boolean blocked;
+        private final boolean complete;
+
+        private GroupPermissions(
+                final Set<RecipientId> members,
+                final Set<RecipientId> admins,
+                final boolean announcementGroup,
+                final boolean blocked,
+                final boolean complete
+        ) {
+            this.members = members;
+            this.admins = admins;
+            this.announcementGroup = announcementGroup;
+            this.blocked = blocked;
+            this.complete = complete;
+        }
+
+        public static GroupPermissions of(final GroupInfo group) {
+            final var complete = !(group instanceof GroupInfoV2) || ((GroupInfoV2) group).getGroup() != null;
+            return new GroupPermissions(Set.copyOf(group.getMembers()),
+                    Set.copyOf(group.getAdminMembers()),
+                    group.isAnnouncementGroup(),
+                    group.isBlocked(),
+                    complete);
+        }
+
+        public boolean isMember(final RecipientId recipientId) {
+            return members.contains(recipientId);
+        }
+
+        public boolean isAdmin(final RecipientId recipientId) {
+            return admins.contains(recipientId);
+        }
+
+        public boolean isAnnouncementGroup() {
+            return announcementGroup;
+        }
+
+        public boolean isBlocked() {
+            return blocked;
+        }
+    }
+}
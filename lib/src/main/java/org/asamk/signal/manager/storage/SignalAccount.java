@@ -5,13 +5,21 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.asamk.signal.manager.TrustLevel;
 import org.asamk.signal.manager.groups.GroupId;
+import org.asamk.signal.manager.storage.attachments.AttachmentUploadStore;
+import org.asamk.signal.manager.storage.attachments.ResumableUploadStore;
+import org.asamk.signal.manager.storage.broadcasts.BroadcastStore;
 import org.asamk.signal.manager.storage.contacts.ContactsStore;
 import org.asamk.signal.manager.storage.contacts.LegacyJsonContactsStore;
+import org.asamk.signal.manager.storage.credentials.GroupCredentialStore;
+import org.asamk.signal.manager.storage.credentials.SenderCertificateStore;
 import org.asamk.signal.manager.storage.groups.GroupInfoV1;
 import org.asamk.signal.manager.storage.groups.GroupStore;
 import org.asamk.signal.manager.storage.identities.IdentityKeyStore;
 import org.asamk.signal.manager.storage.identities.TrustNewIdentity;
+import org.asamk.signal.manager.storage.jobs.JobStore;
 import org.asamk.signal.manager.storage.messageCache.MessageCache;
+import org.asamk.signal.manager.storage.messageCache.ServerGuidStore;
+import org.asamk.signal.manager.storage.outbox.OutboxStore;
 import org.asamk.signal.manager.storage.prekeys.PreKeyStore;
 import org.asamk.signal.manager.storage.prekeys.SignedPreKeyStore;
 import org.asamk.signal.manager.storage.profiles.LegacyProfileStore;
@@ -57,6 +65,7 @@ import java.nio.channels.Channels;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.file.Files;
 import java.util.Base64;
 import java.util.Date;
 import java.util.HashSet;
@@ -105,6 +114,15 @@ public class SignalAccount implements Closeable {
     private StickerStore.Storage stickerStoreStorage;
 
     private MessageCache messageCache;
+    private ServerGuidStore serverGuidStore;
+    private JobStore jobStore;
+    private SenderCertificateStore senderCertificateStore;
+    private GroupCredentialStore groupCredentialStore;
+    private BroadcastStore broadcastStore;
+    private OutboxStore outboxStore;
+    private AttachmentUploadStore attachmentUploadStore;
+    private ResumableUploadStore resumableUploadStore;
+    private volatile AuthorizationView authorizationView;
 
     private SignalAccount(final FileChannel fileChannel, final FileLock lock) {
         this.fileChannel = fileChannel;
@@ -195,7 +213,16 @@ public class SignalAccount implements Closeable {
                 senderKeyStore,
                 this::isMultiDevice);
 
-        messageCache = new MessageCache(getMessageCachePath(dataPath, username));
+        messageCache = new MessageCache(getMessageCachePath(dataPath, username),
+                getMessageCacheQuarantinePath(dataPath, username));
+        serverGuidStore = ServerGuidStore.load(getServerGuidStoreFile(dataPath, username));
+        jobStore = JobStore.load(getJobStoreFile(dataPath, username));
+        senderCertificateStore = SenderCertificateStore.load(getSenderCertificateStoreFile(dataPath, username));
+        groupCredentialStore = GroupCredentialStore.load(getGroupCredentialStoreFile(dataPath, username));
+        broadcastStore = new BroadcastStore(getBroadcastsPath(dataPath, username));
+        outboxStore = OutboxStore.load(getOutboxStoreFile(dataPath, username));
+        attachmentUploadStore = AttachmentUploadStore.load(getAttachmentUploadStoreFile(dataPath, username));
+        resumableUploadStore = ResumableUploadStore.load(getResumableUploadStoreFile(dataPath, username));
     }
 
     public static SignalAccount createOrUpdateLinkedAccount(
@@ -316,12 +343,29 @@ public class SignalAccount implements Closeable {
         messageCache.mergeRecipients(recipientId, toBeMergedRecipientId);
         groupStore.mergeRecipients(recipientId, toBeMergedRecipientId);
         senderKeyStore.mergeRecipients(recipientId, toBeMergedRecipientId);
+        final var view = authorizationView;
+        if (view != null) {
+            // Group members may resolve to the merged recipient now
+            view.rebuild(recipientStore.getContacts(), groupStore.getGroups());
+        }
     }
 
     public static File getFileName(File dataPath, String username) {
         return new File(dataPath, username);
     }
 
+    /**
+     * Copies the account file and the account's data directory, the account must not be modified meanwhile.
+     */
+    public static void copyAccountData(File dataPath, File targetDataPath, String username) throws IOException {
+        IOUtils.createPrivateDirectories(targetDataPath);
+        Files.copy(getFileName(dataPath, username).toPath(), getFileName(targetDataPath, username).toPath());
+        final var userPath = new File(dataPath, username + ".d");
+        if (userPath.exists()) {
+            IOUtils.copyRecursively(userPath.toPath(), new File(targetDataPath, username + ".d").toPath());
+        }
+    }
+
     private static File getUserPath(final File dataPath, final String username) {
         final var path = new File(dataPath, username + ".d");
         try {
@@ -336,6 +380,14 @@ public class SignalAccount implements Closeable {
         return new File(getUserPath(dataPath, username), "msg-cache");
     }
 
+    private static File getMessageCacheQuarantinePath(File dataPath, String username) {
+        return new File(getUserPath(dataPath, username), "msg-cache-quarantine");
+    }
+
+    private static File getBroadcastsPath(File dataPath, String username) {
+        return new File(getUserPath(dataPath, username), "broadcasts");
+    }
+
     private static File getGroupCachePath(File dataPath, String username) {
         return new File(getUserPath(dataPath, username), "group-cache");
     }
@@ -368,6 +420,34 @@ public class SignalAccount implements Closeable {
         return new File(getUserPath(dataPath, username), "recipients-store");
     }
 
+    private static File getServerGuidStoreFile(File dataPath, String username) {
+        return new File(getUserPath(dataPath, username), "server-guid-store");
+    }
+
+    private static File getJobStoreFile(File dataPath, String username) {
+        return new File(getUserPath(dataPath, username), "jobs-store");
+    }
+
+    private static File getOutboxStoreFile(File dataPath, String username) {
+        return new File(getUserPath(dataPath, username), "outbox-store");
+    }
+
+    private static File getAttachmentUploadStoreFile(File dataPath, String username) {
+        return new File(getUserPath(dataPath, username), "attachment-upload-store");
+    }
+
+    private static File getResumableUploadStoreFile(File dataPath, String username) {
+        return new File(getUserPath(dataPath, username), "resumable-upload-store");
+    }
+
+    private static File getSenderCertificateStoreFile(File dataPath, String username) {
+        return new File(getUserPath(dataPath, username), "sender-certificate-store");
+    }
+
+    private static File getGroupCredentialStoreFile(File dataPath, String username) {
+        return new File(getUserPath(dataPath, username), "group-credential-store");
+    }
+
     public static boolean userExists(File dataPath, String username) {
         if (username == null) {
             return false;
@@ -801,6 +881,58 @@ public class SignalAccount implements Closeable {
         return messageCache;
     }
 
+    public ServerGuidStore getServerGuidStore() {
+        return serverGuidStore;
+    }
+
+    public JobStore getJobStore() {
+        return jobStore;
+    }
+
+    public SenderCertificateStore getSenderCertificateStore() {
+        return senderCertificateStore;
+    }
+
+    public GroupCredentialStore getGroupCredentialStore() {
+        return groupCredentialStore;
+    }
+
+    public BroadcastStore getBroadcastStore() {
+        return broadcastStore;
+    }
+
+    public OutboxStore getOutboxStore() {
+        return outboxStore;
+    }
+
+    public AttachmentUploadStore getAttachmentUploadStore() {
+        return attachmentUploadStore;
+    }
+
+    public ResumableUploadStore getResumableUploadStore() {
+        return resumableUploadStore;
+    }
+
+    /**
+     * @return the view of blocked recipients and group permissions, which is kept up to date with the stores
+     */
+    public AuthorizationView getAuthorizationView() {
+        var view = authorizationView;
+        if (view != null) {
+            return view;
+        }
+        synchronized (this) {
+            if (authorizationView == null) {
+                view = new AuthorizationView();
+                recipientStore.setContactChangeListener(view::updateContact);
+                groupStore.setGroupChangeListener(view::updateGroup);
+                view.rebuild(recipientStore.getContacts(), groupStore.getGroups());
+                authorizationView = view;
+            }
+            return authorizationView;
+        }
+    }
+
     public String getUsername() {
         return username;
     }
@@ -989,6 +1121,12 @@ public class SignalAccount implements Closeable {
 
     @Override
     public void close() throws IOException {
+        if (serverGuidStore != null) {
+            serverGuidStore.flush();
+        }
+        if (broadcastStore != null) {
+            broadcastStore.close();
+        }
         synchronized (fileChannel) {
             try {
                 lock.close();
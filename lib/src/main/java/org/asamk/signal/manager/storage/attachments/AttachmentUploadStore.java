@@ -0,0 +1,161 @@
+package org.asamk.signal.manager.storage.attachments;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.asamk.signal.manager.storage.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Stores the pointers of recently uploaded attachments, keyed by their content, so identical attachments don't have
+ * to be uploaded again.
+ * <p>
+ * The CDN deletes attachments 30 days after the upload. A pointer is only reused for 7 days after the upload, so the
+ * recipients of the last message using it still have more than three weeks to download the attachment. The least
+ * recently used pointers are evicted when the store is full.
+ */
+public class AttachmentUploadStore {
+
+    private final static Logger logger = LoggerFactory.getLogger(AttachmentUploadStore.class);
+
+    private static final long MAX_AGE = TimeUnit.DAYS.toMillis(7);
+    private static final int MAX_ENTRIES = 500;
+
+    private final ObjectMapper objectMapper;
+    private final File file;
+
+    private final LinkedHashMap<String, Entry> entries;
+
+    public static AttachmentUploadStore load(final File file) throws IOException {
+        final var objectMapper = Utils.createStorageObjectMapper();
+        final var entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        try (var inputStream = new FileInputStream(file)) {
+            final var storage = objectMapper.readValue(inputStream, Storage.class);
+            if (storage.entries != null) {
+                // Stored from least to most recently used, so the access order is restored
+                for (var entry : storage.entries) {
+                    entries.put(entry.key, new Entry(entry.pointer, entry.uploadTimestamp));
+                }
+            }
+        } catch (FileNotFoundException e) {
+            logger.debug("Creating new attachment upload store.");
+        }
+        return new AttachmentUploadStore(objectMapper, file, entries);
+    }
+
+    private AttachmentUploadStore(
+            final ObjectMapper objectMapper, final File file, final LinkedHashMap<String, Entry> entries
+    ) {
+        this.objectMapper = objectMapper;
+        this.file = file;
+        this.entries = entries;
+    }
+
+    /**
+     * @param key the content hash, size and content type of the attachment
+     * @return the serialized attachment pointer, or null if the attachment hasn't been uploaded recently enough
+     */
+    public synchronized byte[] getPointer(final String key) {
+        final var entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.uploadTimestamp > MAX_AGE) {
+            entries.remove(key);
+            save();
+            return null;
+        }
+        // Persist the new access order
+        save();
+        return entry.pointer;
+    }
+
+    public synchronized void storePointer(final String key, final byte[] pointer, final long uploadTimestamp) {
+        entries.put(key, new Entry(pointer, uploadTimestamp));
+        final var now = System.currentTimeMillis();
+        entries.values().removeIf(e -> now - e.uploadTimestamp > MAX_AGE);
+        final var iterator = entries.keySet().iterator();
+        while (entries.size() > MAX_ENTRIES && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        save();
+    }
+
+    public synchronized void deleteAll() {
+        entries.clear();
+        save();
+    }
+
+    private void save() {
+        final var storage = new Storage(entries.entrySet()
+                .stream()
+                .map(e -> new Storage.Entry(e.getKey(), e.getValue().pointer, e.getValue().uploadTimestamp))
+                .collect(Collectors.toList()));
+
+        // Write to memory first to prevent corrupting the file in case of serialization errors
+        try (var inMemoryOutput = new ByteArrayOutputStream()) {
+            objectMapper.writeValue(inMemoryOutput, storage);
+
+            var input = new ByteArrayInputStream(inMemoryOutput.toByteArray());
+            try (var outputStream = new FileOutputStream(file)) {
+                input.transferTo(outputStream);
+            }
+        } catch (Exception e) {
+            logger.error("Error saving attachment upload store file: {}", e.getMessage());
+        }
+    }
+
+    private static final class Entry {
+
+        private final byte[] pointer;
+        private final long uploadTimestamp;
+
+        private Entry(final byte[] pointer, final long uploadTimestamp) {
+            this.pointer = pointer;
+            this.uploadTimestamp = uploadTimestamp;
+        }
+    }
+
+    private static class Storage {
+
+        public List<Entry> entries;
+
+        // For deserialization
+        private Storage() {
+        }
+
+        public Storage(final List<Entry> entries) {
+            this.entries = entries;
+        }
+
+        private static class Entry {
+
+            public String key;
+            public byte[] pointer;
+            public long uploadTimestamp;
+
+            // For deserialization
+            private Entry() {
+            }
+
+            public Entry(final String key, final byte[] pointer, final long uploadTimestamp) {
+                this.key = key;
+                this.pointer = pointer;
+                this.uploadTimestamp = uploadTimestamp;
+            }
+        }
+    }
+}
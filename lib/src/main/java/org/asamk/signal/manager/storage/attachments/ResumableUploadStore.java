@@ -0,0 +1,129 @@
+package org.asamk.signal.manager.storage.attachments;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.asamk.signal.manager.storage.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores the state of unfinished resumable attachment uploads, so an interrupted upload can be continued from the
+ * last offset acknowledged by the CDN, even after a restart.
+ * <p>
+ * The upload spec contains the upload location and the attachment key and IV, so the resumed upload produces the same
+ * encrypted bytes. Uploads are removed when they have finished or their upload location has expired.
+ */
+public class ResumableUploadStore {
+
+    private final static Logger logger = LoggerFactory.getLogger(ResumableUploadStore.class);
+
+    private final ObjectMapper objectMapper;
+    private final File file;
+
+    private final Map<String, Storage.Upload> uploads;
+
+    public static ResumableUploadStore load(final File file) throws IOException {
+        final var objectMapper = Utils.createStorageObjectMapper();
+        try (var inputStream = new FileInputStream(file)) {
+            final var storage = objectMapper.readValue(inputStream, Storage.class);
+            return new ResumableUploadStore(objectMapper,
+                    file,
+                    storage.uploads == null ? new HashMap<>() : new HashMap<>(storage.uploads));
+        } catch (FileNotFoundException e) {
+            logger.debug("Creating new resumable upload store.");
+            return new ResumableUploadStore(objectMapper, file, new HashMap<>());
+        }
+    }
+
+    private ResumableUploadStore(
+            final ObjectMapper objectMapper, final File file, final Map<String, Storage.Upload> uploads
+    ) {
+        this.objectMapper = objectMapper;
+        this.file = file;
+        this.uploads = uploads;
+    }
+
+    /**
+     * @param key identifies the uploaded file
+     * @return the serialized upload spec, or null if there's no unfinished upload with a valid upload location
+     */
+    public synchronized String getUploadSpec(final String key) {
+        final var upload = uploads.get(key);
+        if (upload == null) {
+            return null;
+        }
+        if (upload.expirationTimestamp <= System.currentTimeMillis()) {
+            uploads.remove(key);
+            save();
+            return null;
+        }
+        return upload.spec;
+    }
+
+    public synchronized void storeUploadSpec(final String key, final String spec, final long expirationTimestamp) {
+        final var now = System.currentTimeMillis();
+        uploads.values().removeIf(u -> u.expirationTimestamp <= now);
+        uploads.put(key, new Storage.Upload(spec, expirationTimestamp));
+        save();
+    }
+
+    public synchronized void deleteUploadSpec(final String key) {
+        if (uploads.remove(key) != null) {
+            save();
+        }
+    }
+
+    private void save() {
+        final var storage = new Storage(new HashMap<>(uploads));
+
+        // Write to memory first to prevent corrupting the file in case of serialization errors
+        try (var inMemoryOutput = new ByteArrayOutputStream()) {
+            objectMapper.writeValue(inMemoryOutput, storage);
+
+            var input = new ByteArrayInputStream(inMemoryOutput.toByteArray());
+            try (var outputStream = new FileOutputStream(file)) {
+                input.transferTo(outputStream);
+            }
+        } catch (Exception e) {
+            logger.error("Error saving resumable upload store file: {}", e.getMessage());
+        }
+    }
+
+    private static class Storage {
+
+        public Map<String, Upload> uploads;
+
+        // For deserialization
+        private Storage() {
+        }
+
+        public Storage(final Map<String, Upload> uploads) {
+            this.uploads = uploads;
+        }
+
+        private static class Upload {
+
+            public String spec;
+            public long expirationTimestamp;
+
+            // For deserialization
+            private Upload() {
+            }
+
+            public Upload(final String spec, final long expirationTimestamp) {
+                this.spec = spec;
+                this.expirationTimestamp = expirationTimestamp;
+            }
+        }
+    }
+}
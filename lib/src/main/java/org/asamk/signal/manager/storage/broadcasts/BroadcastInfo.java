@@ -0,0 +1,56 @@
+package org.asamk.signal.manager.storage.broadcasts;
+
+import java.util.List;
+import java.util.Map;
+
+public class BroadcastInfo {
+
+    private final long id;
+    private final String messageText;
+    private final List<byte[]> attachments;
+    private final List<String> recipients;
+    private final Map<Integer, String> results;
+
+    public BroadcastInfo(
+            final long id,
+            final String messageText,
+            final List<byte[]> attachments,
+            final List<String> recipients,
+            final Map<Integer, String> results
+    ) {
+        this.id = id;
+        this.messageText = messageText;
+        this.attachments = attachments;
+        this.recipients = recipients;
+        this.results = results;
+    }
+
+    /**
+     * @return the id of the broadcast, which is also the timestamp of the message
+     */
+    public long getId() {
+        return id;
+    }
+
+    public String getMessageText() {
+        return messageText;
+    }
+
+    /**
+     * @return the serialized pointers of the already uploaded attachments
+     */
+    public List<byte[]> getAttachments() {
+        return attachments;
+    }
+
+    public List<String> getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * @return the last recorded result status for each recipient index
+     */
+    public Map<Integer, String> getResults() {
+        return results;
+    }
+}
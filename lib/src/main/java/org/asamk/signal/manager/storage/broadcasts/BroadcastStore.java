@@ -0,0 +1,249 @@
+package org.asamk.signal.manager.storage.broadcasts;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.asamk.signal.manager.api.BroadcastResult;
+import org.asamk.signal.manager.storage.Utils;
+import org.asamk.signal.manager.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Stores the broadcasts that haven't finished yet.
+ * <p>
+ * Each broadcast has a job file with the message and recipients, which is written once, and a progress file to which
+ * the result for each recipient is appended. So recording a result doesn't need to rewrite the whole recipient list
+ * and a broadcast can be resumed after a crash from the last recorded result.
+ */
+public class BroadcastStore {
+
+    private final static Logger logger = LoggerFactory.getLogger(BroadcastStore.class);
+
+    private static final String JOB_SUFFIX = ".json";
+    private static final String PROGRESS_SUFFIX = ".progress";
+
+    private final File broadcastsPath;
+    private final ObjectMapper objectMapper = Utils.createStorageObjectMapper();
+    private final Map<Long, Writer> progressWriters = new HashMap<>();
+
+    public BroadcastStore(final File broadcastsPath) {
+        this.broadcastsPath = broadcastsPath;
+    }
+
+    /**
+     * @param timestamp the timestamp of the message, it is increased if another broadcast has the same timestamp
+     */
+    public BroadcastInfo createBroadcast(
+            final long timestamp,
+            final String messageText,
+            final List<byte[]> attachments,
+            final List<String> recipients
+    ) throws IOException {
+        IOUtils.createPrivateDirectories(broadcastsPath);
+        final var base64 = Base64.getEncoder();
+        final var storage = new Storage(messageText,
+                attachments.stream().map(base64::encodeToString).collect(Collectors.toList()),
+                recipients);
+        synchronized (progressWriters) {
+            var id = timestamp;
+            while (getJobFile(id).exists()) {
+                id++;
+            }
+            final var file = getJobFile(id);
+            final var tmpFile = new File(broadcastsPath, id + JOB_SUFFIX + ".tmp");
+            try (var outputStream = new FileOutputStream(tmpFile)) {
+                objectMapper.writeValue(outputStream, storage);
+            }
+            Files.move(tmpFile.toPath(), file.toPath());
+            return new BroadcastInfo(id, messageText, attachments, recipients, new HashMap<>());
+        }
+    }
+
+    public List<Long> getBroadcastIds() {
+        final var files = broadcastsPath.listFiles((dir, name) -> name.endsWith(JOB_SUFFIX));
+        if (files == null) {
+            return List.of();
+        }
+        return Arrays.stream(files)
+                .map(f -> parseId(f.getName()))
+                .filter(Objects::nonNull)
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the broadcast with the results recorded so far, or null if it doesn't exist
+     */
+    public BroadcastInfo getBroadcast(final long id) throws IOException {
+        final Storage storage;
+        try (var inputStream = new FileInputStream(getJobFile(id))) {
+            storage = objectMapper.readValue(inputStream, Storage.class);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        final var base64 = Base64.getDecoder();
+        return new BroadcastInfo(id,
+                storage.messageText,
+                storage.attachments == null
+                        ? List.of()
+                        : storage.attachments.stream().map(base64::decode).collect(Collectors.toList()),
+                storage.recipients == null ? List.of() : storage.recipients,
+                readResults(id));
+    }
+
+    /**
+     * Appends the result for the recipient with the given index, a later result replaces an earlier one.
+     */
+    public void recordResult(final long id, final int index, final String status) {
+        synchronized (progressWriters) {
+            try {
+                var writer = progressWriters.get(id);
+                if (writer == null) {
+                    final var progressFile = getProgressFile(id);
+                    final var terminated = isTerminated(progressFile);
+                    writer = new OutputStreamWriter(new FileOutputStream(progressFile, true), StandardCharsets.UTF_8);
+                    progressWriters.put(id, writer);
+                    if (!terminated) {
+                        // Finish the incomplete line written while crashing, so it isn't joined with the next result
+                        writer.write("\n");
+                    }
+                }
+                writer.write(index + "\t" + status + "\n");
+                writer.flush();
+            } catch (IOException e) {
+                logger.warn("Failed to record broadcast result, ignoring: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Closes the progress file of the broadcast, it's opened again when the next result is recorded.
+     */
+    public void closeBroadcast(final long id) {
+        synchronized (progressWriters) {
+            closeProgressWriter(id);
+        }
+    }
+
+    public void deleteBroadcast(final long id) {
+        synchronized (progressWriters) {
+            closeProgressWriter(id);
+            try {
+                Files.deleteIfExists(getJobFile(id).toPath());
+                Files.deleteIfExists(getProgressFile(id).toPath());
+            } catch (IOException e) {
+                logger.warn("Failed to delete broadcast {}, ignoring: {}", id, e.getMessage());
+            }
+        }
+    }
+
+    public void close() {
+        synchronized (progressWriters) {
+            for (var id : new ArrayList<>(progressWriters.keySet())) {
+                closeProgressWriter(id);
+            }
+        }
+    }
+
+    private void closeProgressWriter(final long id) {
+        final var writer = progressWriters.remove(id);
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close broadcast progress file, ignoring: {}", e.getMessage());
+        }
+    }
+
+    private Map<Integer, String> readResults(final long id) throws IOException {
+        final var results = new HashMap<Integer, String>();
+        try (var reader = new BufferedReader(new FileReader(getProgressFile(id), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final var parts = line.split("\t", 2);
+                try {
+                    if (parts.length != 2) {
+                        throw new IllegalArgumentException("Missing status");
+                    }
+                    final var index = Integer.parseInt(parts[0]);
+                    // Also fails for a status that was cut off while crashing
+                    results.put(index, BroadcastResult.Status.valueOf(parts[1]).name());
+                } catch (IllegalArgumentException e) {
+                    logger.debug("Ignoring invalid broadcast progress line: {}", line);
+                }
+            }
+        } catch (FileNotFoundException ignored) {
+        }
+        return results;
+    }
+
+    /**
+     * @return false if the file doesn't end with a line break
+     */
+    private static boolean isTerminated(final File file) throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return true;
+        }
+        try (var randomAccessFile = new RandomAccessFile(file, "r")) {
+            randomAccessFile.seek(randomAccessFile.length() - 1);
+            return randomAccessFile.read() == '\n';
+        }
+    }
+
+    private File getJobFile(final long id) {
+        return new File(broadcastsPath, id + JOB_SUFFIX);
+    }
+
+    private File getProgressFile(final long id) {
+        return new File(broadcastsPath, id + PROGRESS_SUFFIX);
+    }
+
+    private static Long parseId(final String fileName) {
+        try {
+            return Long.parseLong(fileName.substring(0, fileName.length() - JOB_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static class Storage {
+
+        public String messageText;
+        public List<String> attachments;
+        public List<String> recipients;
+
+        // For deserialization
+        private Storage() {
+        }
+
+        public Storage(final String messageText, final List<String> attachments, final List<String> recipients) {
+            this.messageText = messageText;
+            this.attachments = attachments;
+            this.recipients = recipients;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.asamk.signal.manager.storage.credentials;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.asamk.signal.manager.storage.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Stores the groups v2 auth credential responses of the account, keyed by their redemption day.
+ * <p>
+ * Credentials are only valid for the uuid they were issued to, all credentials are dropped when the uuid changes.
+ */
+public class GroupCredentialStore {
+
+    private final static Logger logger = LoggerFactory.getLogger(GroupCredentialStore.class);
+
+    private final ObjectMapper objectMapper;
+    private final File file;
+
+    private UUID uuid;
+    private final Map<Integer, byte[]> credentials;
+
+    public static GroupCredentialStore load(final File file) throws IOException {
+        final var objectMapper = Utils.createStorageObjectMapper();
+        try (var inputStream = new FileInputStream(file)) {
+            final var storage = objectMapper.readValue(inputStream, Storage.class);
+            return new GroupCredentialStore(objectMapper,
+                    file,
+                    storage.uuid == null ? null : UUID.fromString(storage.uuid),
+                    storage.credentials == null ? new HashMap<>() : new HashMap<>(storage.credentials));
+        } catch (FileNotFoundException e) {
+            logger.debug("Creating new group credential store.");
+            return new GroupCredentialStore(objectMapper, file, null, new HashMap<>());
+        }
+    }
+
+    private GroupCredentialStore(
+            final ObjectMapper objectMapper,
+            final File file,
+            final UUID uuid,
+            final Map<Integer, byte[]> credentials
+    ) {
+        this.objectMapper = objectMapper;
+        this.file = file;
+        this.uuid = uuid;
+        this.credentials = credentials;
+    }
+
+    /**
+     * @return the serialized auth credential response or null, if there's none for this uuid and day
+     */
+    public synchronized byte[] getCredential(final UUID uuid, final int redemptionDay) {
+        return uuid.equals(this.uuid) ? credentials.get(redemptionDay) : null;
+    }
+
+    /**
+     * @return the last redemption day with a stored credential for this uuid, or -1 if there is none
+     */
+    public synchronized int getLastRedemptionDay(final UUID uuid) {
+        if (!uuid.equals(this.uuid)) {
+            return -1;
+        }
+        return credentials.keySet().stream().mapToInt(Integer::intValue).max().orElse(-1);
+    }
+
+    /**
+     * Adds the new credentials and removes the credentials for days before the given day.
+     */
+    public synchronized void storeCredentials(
+            final UUID uuid, final Map<Integer, byte[]> newCredentials, final int today
+    ) {
+        if (!uuid.equals(this.uuid)) {
+            this.uuid = uuid;
+            credentials.clear();
+        }
+        credentials.putAll(newCredentials);
+        credentials.keySet().removeIf(day -> day < today);
+        save();
+    }
+
+    public synchronized void deleteAll() {
+        credentials.clear();
+        save();
+    }
+
+    private void save() {
+        final var storage = new Storage(uuid == null ? null : uuid.toString(), new HashMap<>(credentials));
+
+        // Write to memory first to prevent corrupting the file in case of serialization errors
+        try (var inMemoryOutput = new ByteArrayOutputStream()) {
+            objectMapper.writeValue(inMemoryOutput, storage);
+
+            var input = new ByteArrayInputStream(inMemoryOutput.toByteArray());
+            try (var outputStream = new FileOutputStream(file)) {
+                input.transferTo(outputStream);
+            }
+        } catch (Exception e) {
+            logger.error("Error saving group credential store file: {}", e.getMessage());
+        }
+    }
+
+    private static class Storage {
+
+        public String uuid;
+        public Map<Integer, byte[]> credentials;
+
+        // For deserialization
+        private Storage() {
+        }
+
+        public Storage(final String uuid, final Map<Integer, byte[]> credentials) {
+            this.uuid = uuid;
+            this.credentials = credentials;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.asamk.signal.manager.storage.credentials;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.asamk.signal.manager.storage.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Stores the sender certificates for sealed sender messages, with and without the phone number.
+ * <p>
+ * A certificate contains the uuid, number and device id it was issued to, so it is only returned for the same
+ * account. Certificates from before a relink or a new registration are ignored.
+ */
+public class SenderCertificateStore {
+
+    private final static Logger logger = LoggerFactory.getLogger(SenderCertificateStore.class);
+
+    private final ObjectMapper objectMapper;
+    private final File file;
+
+    private CertificateEntry certificate;
+    private CertificateEntry certificateForPhoneNumberPrivacy;
+
+    public static SenderCertificateStore load(final File file) throws IOException {
+        final var objectMapper = Utils.createStorageObjectMapper();
+        try (var inputStream = new FileInputStream(file)) {
+            final var storage = objectMapper.readValue(inputStream, Storage.class);
+            return new SenderCertificateStore(objectMapper,
+                    file,
+                    storage.certificate,
+                    storage.certificateForPhoneNumberPrivacy);
+        } catch (FileNotFoundException e) {
+            logger.debug("Creating new sender certificate store.");
+            return new SenderCertificateStore(objectMapper, file, null, null);
+        }
+    }
+
+    private SenderCertificateStore(
+            final ObjectMapper objectMapper,
+            final File file,
+            final CertificateEntry certificate,
+            final CertificateEntry certificateForPhoneNumberPrivacy
+    ) {
+        this.objectMapper = objectMapper;
+        this.file = file;
+        this.certificate = certificate;
+        this.certificateForPhoneNumberPrivacy = certificateForPhoneNumberPrivacy;
+    }
+
+    /**
+     * @param phoneNumberPrivacy true for the certificate without the phone number
+     * @return the stored certificate or null, if none has been stored yet for this account and device
+     */
+    public synchronized CertificateEntry getCertificate(
+            final boolean phoneNumberPrivacy, final UUID uuid, final String number, final int deviceId
+    ) {
+        final var entry = phoneNumberPrivacy ? certificateForPhoneNumberPrivacy : certificate;
+        return entry != null && entry.isIssuedTo(uuid, number, deviceId) ? entry : null;
+    }
+
+    public synchronized void storeCertificate(final boolean phoneNumberPrivacy, final CertificateEntry entry) {
+        if (phoneNumberPrivacy) {
+            certificateForPhoneNumberPrivacy = entry;
+        } else {
+            certificate = entry;
+        }
+        save();
+    }
+
+    private void save() {
+        final var storage = new Storage(certificate, certificateForPhoneNumberPrivacy);
+
+        // Write to memory first to prevent corrupting the file in case of serialization errors
+        try (var inMemoryOutput = new ByteArrayOutputStream()) {
+            objectMapper.writeValue(inMemoryOutput, storage);
+
+            var input = new ByteArrayInputStream(inMemoryOutput.toByteArray());
+            try (var outputStream = new FileOutputStream(file)) {
+                input.transferTo(outputStream);
+            }
+        } catch (Exception e) {
+            logger.error("Error saving sender certificate store file: {}", e.getMessage());
+        }
+    }
+
+    public static class CertificateEntry {
+
+        public byte[] certificate;
+        public long expiration;
+        public long received;
+        public String uuid;
+        public String number;
+        public int deviceId;
+
+        // For deserialization
+        private CertificateEntry() {
+        }
+
+        public CertificateEntry(
+                final byte[] certificate,
+                final long expiration,
+                final long received,
+                final UUID uuid,
+                final String number,
+                final int deviceId
+        ) {
+            this.certificate = certificate;
+            this.expiration = expiration;
+            this.received = received;
+            this.uuid = uuid.toString();
+            this.number = number;
+            this.deviceId = deviceId;
+        }
+
+        public boolean isValid(final long now) {
+            return now < expiration;
+        }
+
+        private boolean isIssuedTo(final UUID uuid, final String number, final int deviceId) {
+            return uuid != null
+                    && uuid.toString().equals(this.uuid)
+                    && Objects.equals(number, this.number)
+                    && deviceId == this.deviceId;
+        }
+    }
+
+    private static class Storage {
+
+        public CertificateEntry certificate;
+        public CertificateEntry certificateForPhoneNumberPrivacy;
+
+        // For deserialization
+        private Storage() {
+        }
+
+        public Storage(
+                final CertificateEntry certificate, final CertificateEntry certificateForPhoneNumberPrivacy
+        ) {
+            this.certificate = certificate;
+            this.certificateForPhoneNumberPrivacy = certificateForPhoneNumberPrivacy;
+        }
+    }
+}
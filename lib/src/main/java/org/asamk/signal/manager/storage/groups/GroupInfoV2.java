@@ -9,6 +9,7 @@ import org.signal.storageservice.protos.groups.Member;
 import org.signal.storageservice.protos.groups.local.DecryptedGroup;
 import org.signal.storageservice.protos.groups.local.EnabledState;
 import org.signal.zkgroup.groups.GroupMasterKey;
+import org.whispersystems.signalservice.api.push.DistributionId;
 import org.whispersystems.signalservice.api.util.UuidUtil;
 
 import java.util.Set;
@@ -18,6 +19,7 @@ public class GroupInfoV2 extends GroupInfo {
 
     private final GroupIdV2 groupId;
     private final GroupMasterKey masterKey;
+    private final DistributionId distributionId;
 
     private boolean blocked;
     private DecryptedGroup group; // stored as a file with hexadecimal groupId as name
@@ -26,11 +28,18 @@ public class GroupInfoV2 extends GroupInfo {
     public GroupInfoV2(final GroupIdV2 groupId, final GroupMasterKey masterKey) {
         this.groupId = groupId;
         this.masterKey = masterKey;
+        this.distributionId = DistributionId.create();
     }
 
-    public GroupInfoV2(final GroupIdV2 groupId, final GroupMasterKey masterKey, final boolean blocked) {
+    public GroupInfoV2(
+            final GroupIdV2 groupId,
+            final GroupMasterKey masterKey,
+            final DistributionId distributionId,
+            final boolean blocked
+    ) {
         this.groupId = groupId;
         this.masterKey = masterKey;
+        this.distributionId = distributionId;
         this.blocked = blocked;
     }
 
@@ -43,6 +52,13 @@ public class GroupInfoV2 extends GroupInfo {
         return masterKey;
     }
 
+    /**
+     * @return the id of the sender key used to send messages to this group
+     */
+    public DistributionId getDistributionId() {
+        return distributionId;
+    }
+
     public void setGroup(final DecryptedGroup group, final RecipientResolver recipientResolver) {
         this.group = group;
         this.recipientResolver = recipientResolver;
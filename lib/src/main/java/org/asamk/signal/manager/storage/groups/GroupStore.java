@@ -23,6 +23,7 @@ import org.signal.zkgroup.InvalidInputException;
 import org.signal.zkgroup.groups.GroupMasterKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.whispersystems.signalservice.api.push.DistributionId;
 import org.whispersystems.signalservice.api.util.UuidUtil;
 import org.whispersystems.signalservice.internal.util.Hex;
 
@@ -45,6 +46,7 @@ public class GroupStore {
     private final Map<GroupId, GroupInfo> groups;
     private final RecipientResolver recipientResolver;
     private final Saver saver;
+    private volatile GroupChangeListener groupChangeListener;
 
     private GroupStore(
             final File groupCachePath,
@@ -104,12 +106,21 @@ public class GroupStore {
                 throw new AssertionError("Invalid master key for group " + groupId.toBase64());
             }
 
-            return new GroupInfoV2(groupId, masterKey, g2.blocked);
+            final var distributionUuid = g2.distributionId == null ? null : UuidUtil.parseOrNull(g2.distributionId);
+            final var distributionId = distributionUuid == null
+                    ? DistributionId.create()
+                    : DistributionId.from(distributionUuid);
+
+            return new GroupInfoV2(groupId, masterKey, distributionId, g2.blocked);
         }).collect(Collectors.toMap(GroupInfo::getGroupId, g -> g));
 
         return new GroupStore(groupCachePath, groups, recipientResolver, saver);
     }
 
+    public void setGroupChangeListener(final GroupChangeListener groupChangeListener) {
+        this.groupChangeListener = groupChangeListener;
+    }
+
     public void updateGroup(GroupInfo group) {
         final Storage storage;
         synchronized (groups) {
@@ -131,6 +142,7 @@ public class GroupStore {
             storage = toStorageLocked();
         }
         saver.save(storage);
+        notifyGroupChanged(group.getGroupId(), group);
     }
 
     public void deleteGroupV1(GroupIdV1 groupIdV1) {
@@ -144,6 +156,7 @@ public class GroupStore {
             storage = toStorageLocked();
         }
         saver.save(storage);
+        notifyGroupChanged(groupId, null);
     }
 
     public GroupInfo getGroup(GroupId groupId) {
@@ -196,6 +209,13 @@ public class GroupStore {
         }
     }
 
+    private void notifyGroupChanged(final GroupId groupId, final GroupInfo group) {
+        final var listener = groupChangeListener;
+        if (listener != null) {
+            listener.onGroupChanged(groupId, group);
+        }
+    }
+
     private GroupInfo getGroupLocked(final GroupId groupId) {
         var group = groups.get(groupId);
         if (group == null) {
@@ -268,6 +288,7 @@ public class GroupStore {
             final var g2 = (GroupInfoV2) g;
             return new Storage.GroupV2(g2.getGroupId().toBase64(),
                     Base64.getEncoder().encodeToString(g2.getMasterKey().serialize()),
+                    g2.getDistributionId().asUuid().toString(),
                     g2.isBlocked());
         }).collect(Collectors.toList()));
     }
@@ -407,15 +428,19 @@ public class GroupStore {
 
             public String groupId;
             public String masterKey;
+            public String distributionId;
             public boolean blocked;
 
             // For deserialization
             private GroupV2() {
             }
 
-            public GroupV2(final String groupId, final String masterKey, final boolean blocked) {
+            public GroupV2(
+                    final String groupId, final String masterKey, final String distributionId, final boolean blocked
+            ) {
                 this.groupId = groupId;
                 this.masterKey = masterKey;
+                this.distributionId = distributionId;
                 this.blocked = blocked;
             }
         }
@@ -475,4 +500,12 @@ public class GroupStore {
 
         void save(Storage storage);
     }
+
+    public interface GroupChangeListener {
+
+        /**
+         * @param group the updated group or null, if the group has been deleted
+         */
+        void onGroupChanged(GroupId groupId, GroupInfo group);
+    }
 }
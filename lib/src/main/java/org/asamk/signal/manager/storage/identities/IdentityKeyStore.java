@@ -57,6 +57,10 @@ public class IdentityKeyStore implements org.whispersystems.libsignal.state.Iden
         this.trustNewIdentity = trustNewIdentity;
     }
 
+    public TrustNewIdentity getTrustNewIdentity() {
+        return trustNewIdentity;
+    }
+
     @Override
     public IdentityKeyPair getIdentityKeyPair() {
         return identityKeyPair;
@@ -0,0 +1,57 @@
+package org.asamk.signal.manager.storage.jobs;
+
+import java.util.Map;
+
+public final class JobInfo {
+
+    private final long id;
+    private final String type;
+    private final String key;
+    private final Map<String, String> data;
+    private final int attempts;
+    private final long nextAttemptTimestamp;
+
+    public JobInfo(
+            final long id,
+            final String type,
+            final String key,
+            final Map<String, String> data,
+            final int attempts,
+            final long nextAttemptTimestamp
+    ) {
+        this.id = id;
+        this.type = type;
+        this.key = key;
+        this.data = data;
+        this.attempts = attempts;
+        this.nextAttemptTimestamp = nextAttemptTimestamp;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Map<String, String> getData() {
+        return data;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public long getNextAttemptTimestamp() {
+        return nextAttemptTimestamp;
+    }
+
+    public JobInfo withNextAttempt(final long nextAttemptTimestamp) {
+        return new JobInfo(id, type, key, data, attempts + 1, nextAttemptTimestamp);
+    }
+}
@@ -0,0 +1,181 @@
+package org.asamk.signal.manager.storage.jobs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.asamk.signal.manager.storage.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Durable queue of jobs that haven't finished yet.
+ * A job stays in the store until it has completed, so jobs interrupted by a shutdown are resumed on the next start.
+ */
+public class JobStore {
+
+    private final static Logger logger = LoggerFactory.getLogger(JobStore.class);
+
+    private final ObjectMapper objectMapper;
+    private final File file;
+
+    private final Map<Long, JobInfo> jobs;
+    private long lastId;
+
+    public static JobStore load(final File file) throws IOException {
+        final var objectMapper = Utils.createStorageObjectMapper();
+        try (var inputStream = new FileInputStream(file)) {
+            final var storage = objectMapper.readValue(inputStream, Storage.class);
+            final var jobs = new HashMap<Long, JobInfo>();
+            for (final var job : storage.jobs) {
+                jobs.put(job.id,
+                        new JobInfo(job.id,
+                                job.type,
+                                job.key,
+                                job.data == null ? Map.of() : job.data,
+                                job.attempts,
+                                job.nextAttemptTimestamp));
+            }
+            return new JobStore(objectMapper, file, jobs, storage.lastId);
+        } catch (FileNotFoundException e) {
+            logger.debug("Creating new job store.");
+            return new JobStore(objectMapper, file, new HashMap<>(), 0);
+        }
+    }
+
+    private JobStore(
+            final ObjectMapper objectMapper, final File file, final Map<Long, JobInfo> jobs, final long lastId
+    ) {
+        this.objectMapper = objectMapper;
+        this.file = file;
+        this.jobs = jobs;
+        this.lastId = lastId;
+    }
+
+    /**
+     * Adds a new job to the store, unless a job with the same type and key is already queued.
+     *
+     * @return the stored job or null, if an equivalent job already exists
+     */
+    public JobInfo addJob(final String type, final String key, final Map<String, String> data) {
+        synchronized (jobs) {
+            if (key != null) {
+                final var exists = jobs.values()
+                        .stream()
+                        .anyMatch(j -> j.getType().equals(type) && key.equals(j.getKey()));
+                if (exists) {
+                    return null;
+                }
+            }
+            final var job = new JobInfo(++lastId, type, key, data, 0, 0);
+            jobs.put(job.getId(), job);
+            saveLocked();
+            return job;
+        }
+    }
+
+    public void updateJob(final JobInfo job) {
+        synchronized (jobs) {
+            if (!jobs.containsKey(job.getId())) {
+                return;
+            }
+            jobs.put(job.getId(), job);
+            saveLocked();
+        }
+    }
+
+    public void deleteJob(final long id) {
+        synchronized (jobs) {
+            if (jobs.remove(id) != null) {
+                saveLocked();
+            }
+        }
+    }
+
+    public List<JobInfo> getJobs() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs.values());
+        }
+    }
+
+    private void saveLocked() {
+        final var storage = new Storage(lastId,
+                jobs.values()
+                        .stream()
+                        .map(j -> new Storage.Job(j.getId(),
+                                j.getType(),
+                                j.getKey(),
+                                j.getData(),
+                                j.getAttempts(),
+                                j.getNextAttemptTimestamp()))
+                        .collect(Collectors.toList()));
+
+        // Write to memory first to prevent corrupting the file in case of serialization errors
+        try (var inMemoryOutput = new ByteArrayOutputStream()) {
+            objectMapper.writeValue(inMemoryOutput, storage);
+
+            var input = new ByteArrayInputStream(inMemoryOutput.toByteArray());
+            try (var outputStream = new FileOutputStream(file)) {
+                input.transferTo(outputStream);
+            }
+        } catch (Exception e) {
+            logger.error("Error saving job store file: {}", e.getMessage());
+        }
+    }
+
+    private static class Storage {
+
+        public long lastId;
+        public List<Job> jobs;
+
+        // For deserialization
+        private Storage() {
+        }
+
+        public Storage(final long lastId, final List<Job> jobs) {
+            this.lastId = lastId;
+            this.jobs = jobs;
+        }
+
+        private static class Job {
+
+            public long id;
+            public String type;
+            public String key;
+            public Map<String, String> data;
+            public int attempts;
+            public long nextAttemptTimestamp;
+
+            // For deserialization
+            private Job() {
+            }
+
+            public Job(
+                    final long id,
+                    final String type,
+                    final String key,
+                    final Map<String, String> data,
+                    final int attempts,
+                    final long nextAttemptTimestamp
+            ) {
+                this.id = id;
+                this.type = type;
+                this.key = key;
+                this.data = data;
+                this.attempts = attempts;
+                this.nextAttemptTimestamp = nextAttemptTimestamp;
+            }
+        }
+    }
+}
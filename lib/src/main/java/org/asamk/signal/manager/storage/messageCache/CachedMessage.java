@@ -13,6 +13,8 @@ public final class CachedMessage {
 
     private final static Logger logger = LoggerFactory.getLogger(CachedMessage.class);
 
+    static final String RETRY_INFO_SUFFIX = ".retry";
+
     private final File file;
 
     CachedMessage(final File file) {
@@ -23,6 +25,23 @@ public final class CachedMessage {
         return file;
     }
 
+    File getRetryInfoFile() {
+        return new File(file.getPath() + RETRY_INFO_SUFFIX);
+    }
+
+    /**
+     * @return the time the message was received from the server
+     */
+    public long getReceivedTimestamp() {
+        final var name = file.getName();
+        final var separator = name.indexOf('_');
+        try {
+            return Long.parseLong(separator == -1 ? name : name.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     public SignalServiceEnvelope loadEnvelope() {
         try {
             return MessageCacheUtils.loadEnvelope(file);
@@ -38,10 +57,30 @@ public final class CachedMessage {
         } catch (IOException e) {
             logger.warn("Failed to delete cached message file “{}”, ignoring: {}", file, e.getMessage());
         }
+        try {
+            Files.deleteIfExists(getRetryInfoFile().toPath());
+        } catch (IOException e) {
+            logger.warn("Failed to delete cached message retry info “{}”, ignoring: {}", file, e.getMessage());
+        }
         // Delete parent directory, if empty
         try {
             Files.delete(file.toPath().getParent());
         } catch (IOException ignored) {
         }
     }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final CachedMessage that = (CachedMessage) o;
+
+        return file.equals(that.file);
+    }
+
+    @Override
+    public int hashCode() {
+        return file.hashCode();
+    }
 }
@@ -1,5 +1,8 @@
 package org.asamk.signal.manager.storage.messageCache;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.asamk.signal.manager.storage.Utils;
 import org.asamk.signal.manager.storage.recipients.RecipientId;
 import org.asamk.signal.manager.util.IOUtils;
 import org.asamk.signal.manager.util.MessageCacheUtils;
@@ -8,45 +11,126 @@ import org.slf4j.LoggerFactory;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class MessageCache {
 
     private final static Logger logger = LoggerFactory.getLogger(MessageCache.class);
 
+    private static final int MAX_RETRY_ATTEMPTS = 10;
+    private static final long INITIAL_RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+    private static final long MAX_RETRY_DELAY = TimeUnit.DAYS.toMillis(1);
+
     private final File messageCachePath;
+    private final File quarantinePath;
+    private final ObjectMapper objectMapper = Utils.createStorageObjectMapper();
 
-    public MessageCache(final File messageCachePath) {
+    public MessageCache(final File messageCachePath, final File quarantinePath) {
         this.messageCachePath = messageCachePath;
+        this.quarantinePath = quarantinePath;
+    }
+
+    /**
+     * Returns the cached messages grouped by sender, each group ordered by the time the messages were received.
+     * Messages with unknown sender, i.e. sealed sender messages that couldn't be decrypted, are grouped under the key
+     * null.
+     */
+    public Map<RecipientId, List<CachedMessage>> getCachedMessagesBySender() {
+        return getMessagesBySender(messageCachePath);
+    }
+
+    /**
+     * Returns the messages that exceeded the retry budget, grouped by sender like
+     * {@link #getCachedMessagesBySender()}. They are not retried automatically.
+     */
+    public Map<RecipientId, List<CachedMessage>> getQuarantinedMessagesBySender() {
+        return getMessagesBySender(quarantinePath);
+    }
+
+    /**
+     * Returns the cached messages of one sender, ordered by the time the messages were received.
+     */
+    public List<CachedMessage> getCachedMessages(RecipientId sender) {
+        return getMessages(getMessageCachePath(sender));
     }
 
-    public Iterable<CachedMessage> getCachedMessages() {
-        if (!messageCachePath.exists()) {
-            return Collections.emptyList();
+    public List<CachedMessage> getQuarantinedMessages(RecipientId sender) {
+        return getMessages(sender == null ? quarantinePath : new File(quarantinePath, String.valueOf(sender.getId())));
+    }
+
+    private List<CachedMessage> getMessages(final File path) {
+        final var files = path.listFiles();
+        if (files == null) {
+            return List.of();
+        }
+        return Arrays.stream(files)
+                .filter(MessageCache::isMessageFile)
+                .map(CachedMessage::new)
+                .sorted(Comparator.comparingLong(CachedMessage::getReceivedTimestamp)
+                        .thenComparing(m -> m.getFile().getName()))
+                .collect(Collectors.toList());
+    }
+
+    private Map<RecipientId, List<CachedMessage>> getMessagesBySender(final File basePath) {
+        final var messages = new HashMap<RecipientId, List<CachedMessage>>();
+        if (!basePath.exists()) {
+            return messages;
         }
 
-        return Arrays.stream(Objects.requireNonNull(messageCachePath.listFiles())).flatMap(dir -> {
-            if (dir.isFile()) {
-                return Stream.of(dir);
+        for (var file : Objects.requireNonNull(basePath.listFiles())) {
+            if (file.isFile()) {
+                if (!isMessageFile(file)) {
+                    continue;
+                }
+                messages.computeIfAbsent(null, r -> new ArrayList<>()).add(new CachedMessage(file));
+                continue;
             }
 
-            final var files = Objects.requireNonNull(dir.listFiles());
+            final RecipientId recipientId;
+            try {
+                recipientId = RecipientId.of(Long.parseLong(file.getName()));
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring invalid cache dir “{}”", file);
+                continue;
+            }
+            final var files = Objects.requireNonNull(file.listFiles());
             if (files.length == 0) {
                 try {
-                    Files.delete(dir.toPath());
+                    Files.delete(file.toPath());
                 } catch (IOException e) {
-                    logger.warn("Failed to delete cache dir “{}”, ignoring: {}", dir, e.getMessage());
+                    logger.warn("Failed to delete cache dir “{}”, ignoring: {}", file, e.getMessage());
                 }
-                return Stream.empty();
+                continue;
             }
-            return Arrays.stream(files).filter(File::isFile);
-        }).map(CachedMessage::new).collect(Collectors.toList());
+            messages.put(recipientId,
+                    Arrays.stream(files)
+                            .filter(MessageCache::isMessageFile)
+                            .map(CachedMessage::new)
+                            .collect(Collectors.toList()));
+        }
+
+        for (var list : messages.values()) {
+            list.sort(Comparator.comparingLong(CachedMessage::getReceivedTimestamp)
+                    .thenComparing(m -> m.getFile().getName()));
+        }
+        return messages;
+    }
+
+    private static boolean isMessageFile(File file) {
+        return file.isFile() && !file.getName().endsWith(CachedMessage.RETRY_INFO_SUFFIX);
     }
 
     public CachedMessage cacheMessage(SignalServiceEnvelope envelope, RecipientId recipientId) {
@@ -67,8 +151,116 @@ public class MessageCache {
         if (cacheFile.equals(cachedMessage.getFile())) {
             return cachedMessage;
         }
-        Files.move(cachedMessage.getFile().toPath(), cacheFile.toPath());
-        return new CachedMessage(cacheFile);
+        return moveMessage(cachedMessage, cacheFile);
+    }
+
+    public RetryInfo getRetryInfo(CachedMessage cachedMessage) {
+        try (var inputStream = new FileInputStream(cachedMessage.getRetryInfoFile())) {
+            final var storage = objectMapper.readValue(inputStream, RetryInfoStorage.class);
+            return new RetryInfo(storage.attempts,
+                    storage.lastError,
+                    storage.lastAttemptTimestamp,
+                    storage.nextAttemptTimestamp);
+        } catch (FileNotFoundException e) {
+            return RetryInfo.NONE;
+        } catch (IOException e) {
+            logger.warn("Failed to read retry info of cached message “{}”, ignoring: {}",
+                    cachedMessage.getFile(),
+                    e.getMessage());
+            return RetryInfo.NONE;
+        }
+    }
+
+    /**
+     * Resets the backoff and the retry budget of the cached message.
+     */
+    public void resetRetryInfo(CachedMessage cachedMessage) {
+        try {
+            Files.deleteIfExists(cachedMessage.getRetryInfoFile().toPath());
+        } catch (IOException e) {
+            logger.warn("Failed to delete retry info of cached message “{}”, ignoring: {}",
+                    cachedMessage.getFile(),
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * @return true, if the backoff of the previous failed attempts has expired
+     */
+    public boolean isDueForRetry(CachedMessage cachedMessage) {
+        return getRetryInfo(cachedMessage).getNextAttemptTimestamp() <= System.currentTimeMillis();
+    }
+
+    /**
+     * Records a failed attempt to process the cached message and schedules the next attempt with exponential backoff.
+     * If the retry budget is exhausted, the message is moved to the quarantine.
+     *
+     * @return true, if the message has been quarantined
+     */
+    public boolean recordFailedAttempt(CachedMessage cachedMessage, Exception error) {
+        final var previous = getRetryInfo(cachedMessage);
+        final var now = System.currentTimeMillis();
+        final var attempts = previous.getAttempts() + 1;
+        final var delay = Math.min(INITIAL_RETRY_DELAY << Math.min(attempts - 1, 30), MAX_RETRY_DELAY);
+        final var storage = new RetryInfoStorage(attempts,
+                error == null ? null : error.getClass().getSimpleName() + ": " + error.getMessage(),
+                now,
+                now + delay);
+        try (var outputStream = new FileOutputStream(cachedMessage.getRetryInfoFile())) {
+            objectMapper.writeValue(outputStream, storage);
+        } catch (IOException e) {
+            logger.warn("Failed to store retry info of cached message “{}”, ignoring: {}",
+                    cachedMessage.getFile(),
+                    e.getMessage());
+        }
+
+        if (attempts < MAX_RETRY_ATTEMPTS) {
+            return false;
+        }
+        try {
+            final var parent = cachedMessage.getFile().getParentFile();
+            final var targetPath = parent.equals(messageCachePath)
+                    ? quarantinePath
+                    : new File(quarantinePath, parent.getName());
+            IOUtils.createPrivateDirectories(targetPath);
+            moveMessage(cachedMessage, new File(targetPath, cachedMessage.getFile().getName()));
+            logger.debug("Cached message “{}” failed {} times, moved to quarantine",
+                    cachedMessage.getFile(),
+                    attempts);
+            return true;
+        } catch (IOException e) {
+            logger.warn("Failed to move cached message “{}” to quarantine, ignoring: {}",
+                    cachedMessage.getFile(),
+                    e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Moves a quarantined message back to the message cache and resets its retry budget.
+     */
+    public CachedMessage restoreFromQuarantine(CachedMessage cachedMessage) throws IOException {
+        final var parent = cachedMessage.getFile().getParentFile();
+        final var targetPath = parent.equals(quarantinePath)
+                ? messageCachePath
+                : new File(messageCachePath, parent.getName());
+        IOUtils.createPrivateDirectories(targetPath);
+        Files.deleteIfExists(cachedMessage.getRetryInfoFile().toPath());
+        return moveMessage(cachedMessage, new File(targetPath, cachedMessage.getFile().getName()));
+    }
+
+    private CachedMessage moveMessage(CachedMessage cachedMessage, File target) throws IOException {
+        Files.move(cachedMessage.getFile().toPath(), target.toPath());
+        final var movedMessage = new CachedMessage(target);
+        if (cachedMessage.getRetryInfoFile().exists()) {
+            Files.move(cachedMessage.getRetryInfoFile().toPath(), movedMessage.getRetryInfoFile().toPath());
+        }
+        // Delete parent directory, if empty
+        try {
+            Files.delete(cachedMessage.getFile().toPath().getParent());
+        } catch (IOException ignored) {
+        }
+        return movedMessage;
     }
 
     private File getMessageCachePath(RecipientId recipientId) {
@@ -93,22 +285,58 @@ public class MessageCache {
     }
 
     public void mergeRecipients(final RecipientId recipientId, final RecipientId toBeMergedRecipientId) {
-        final var toBeMergedMessageCachePath = getMessageCachePath(toBeMergedRecipientId);
-        if (!toBeMergedMessageCachePath.exists()) {
+        mergeDirectory(getMessageCachePath(toBeMergedRecipientId), getMessageCachePath(recipientId));
+        mergeDirectory(new File(quarantinePath, String.valueOf(toBeMergedRecipientId.getId())),
+                new File(quarantinePath, String.valueOf(recipientId.getId())));
+    }
+
+    private void mergeDirectory(final File sourcePath, final File targetPath) {
+        final var files = sourcePath.listFiles();
+        if (files == null) {
             return;
         }
 
-        for (var file : Objects.requireNonNull(toBeMergedMessageCachePath.listFiles())) {
+        for (var file : files) {
             if (!file.isFile()) {
                 continue;
             }
 
+            // Retry info files are moved like the message files, so they keep their message's name
             try {
-                final var cacheFile = getMessageCacheFile(recipientId, file.getName());
-                Files.move(file.toPath(), cacheFile.toPath());
+                IOUtils.createPrivateDirectories(targetPath);
+                Files.move(file.toPath(), new File(targetPath, file.getName()).toPath());
             } catch (IOException e) {
                 logger.warn("Failed to move cache file “{}”, ignoring: {}", file, e.getMessage());
             }
         }
+        // Delete directory, if empty
+        try {
+            Files.delete(sourcePath.toPath());
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static class RetryInfoStorage {
+
+        public int attempts;
+        public String lastError;
+        public long lastAttemptTimestamp;
+        public long nextAttemptTimestamp;
+
+        // For deserialization
+        private RetryInfoStorage() {
+        }
+
+        public RetryInfoStorage(
+                final int attempts,
+                final String lastError,
+                final long lastAttemptTimestamp,
+                final long nextAttemptTimestamp
+        ) {
+            this.attempts = attempts;
+            this.lastError = lastError;
+            this.lastAttemptTimestamp = lastAttemptTimestamp;
+            this.nextAttemptTimestamp = nextAttemptTimestamp;
+        }
     }
 }
@@ -0,0 +1,42 @@
+package org.asamk.signal.manager.storage.messageCache;
+
+/**
+ * Retry metadata of a cached message that couldn't be processed yet.
+ */
+public class RetryInfo {
+
+    public static final RetryInfo NONE = new RetryInfo(0, null, 0, 0);
+
+    private final int attempts;
+    private final String lastError;
+    private final long lastAttemptTimestamp;
+    private final long nextAttemptTimestamp;
+
+    public RetryInfo(
+            final int attempts,
+            final String lastError,
+            final long lastAttemptTimestamp,
+            final long nextAttemptTimestamp
+    ) {
+        this.attempts = attempts;
+        this.lastError = lastError;
+        this.lastAttemptTimestamp = lastAttemptTimestamp;
+        this.nextAttemptTimestamp = nextAttemptTimestamp;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public long getLastAttemptTimestamp() {
+        return lastAttemptTimestamp;
+    }
+
+    public long getNextAttemptTimestamp() {
+        return nextAttemptTimestamp;
+    }
+}
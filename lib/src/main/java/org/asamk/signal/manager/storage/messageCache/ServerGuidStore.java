@@ -0,0 +1,298 @@
+package org.asamk.signal.manager.storage.messageCache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.asamk.signal.manager.storage.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Remembers the server GUIDs of envelopes that have already been processed, so an envelope delivered a second time,
+ * e.g. after a crash before the server acknowledgement, can be dropped before it is decrypted.
+ * <p>
+ * The most recent GUIDs are kept in an exact LRU set, older ones in two rotating bloom filters. The filters are sized
+ * for a false positive probability in the order of 1e-9, so the memory and file size stay bounded regardless of the
+ * number of received messages.
+ * <p>
+ * Every processed GUID is appended to a journal file right away, the complete store is only written periodically.
+ * So no GUID is lost on a crash, even if the envelope's cached copy has already been deleted.
+ */
+public class ServerGuidStore {
+
+    private final static Logger logger = LoggerFactory.getLogger(ServerGuidStore.class);
+
+    private static final int RECENT_CAPACITY = 2000;
+    private static final int GENERATION_CAPACITY = 25_000;
+    private static final int FILTER_BITS = 1 << 20;
+    private static final int HASH_COUNT = 29;
+    private static final int SAVE_INTERVAL = 500;
+
+    private final ObjectMapper objectMapper;
+    private final File file;
+    private final File journalFile;
+
+    private final Map<String, Boolean> recent = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+            return size() > RECENT_CAPACITY;
+        }
+    };
+    private BitSet currentGeneration;
+    private BitSet previousGeneration;
+    private int currentGenerationCount;
+    private int unsavedCount;
+
+    public static ServerGuidStore load(final File file) throws IOException {
+        final var objectMapper = Utils.createStorageObjectMapper();
+        Storage storage = null;
+        try (var inputStream = new FileInputStream(file)) {
+            storage = objectMapper.readValue(inputStream, Storage.class);
+        } catch (FileNotFoundException e) {
+            logger.debug("Creating new server guid store.");
+        } catch (IOException e) {
+            // Without the store, redelivered envelopes are just not dropped before decryption
+            logger.warn("Failed to read server guid store file, starting with an empty store: {}", e.getMessage());
+        }
+
+        final ServerGuidStore store;
+        if (storage == null) {
+            store = new ServerGuidStore(objectMapper, file, new BitSet(FILTER_BITS), new BitSet(FILTER_BITS), 0);
+        } else {
+            store = new ServerGuidStore(objectMapper,
+                    file,
+                    storage.currentGeneration == null
+                            ? new BitSet(FILTER_BITS)
+                            : BitSet.valueOf(storage.currentGeneration),
+                    storage.previousGeneration == null
+                            ? new BitSet(FILTER_BITS)
+                            : BitSet.valueOf(storage.previousGeneration),
+                    storage.currentGenerationCount);
+            if (storage.recent != null) {
+                for (var guid : storage.recent) {
+                    store.recent.put(guid, Boolean.TRUE);
+                }
+            }
+        }
+        store.replayJournal();
+        return store;
+    }
+
+    private ServerGuidStore(
+            final ObjectMapper objectMapper,
+            final File file,
+            final BitSet currentGeneration,
+            final BitSet previousGeneration,
+            final int currentGenerationCount
+    ) {
+        this.objectMapper = objectMapper;
+        this.file = file;
+        this.journalFile = new File(file.getParentFile(), file.getName() + ".journal");
+        this.currentGeneration = currentGeneration;
+        this.previousGeneration = previousGeneration;
+        this.currentGenerationCount = currentGenerationCount;
+    }
+
+    /**
+     * @return true, if an envelope with this server guid has already been processed
+     */
+    public boolean isProcessed(final String serverGuid) {
+        if (serverGuid == null) {
+            return false;
+        }
+        final var indexes = getIndexes(serverGuid);
+        synchronized (recent) {
+            if (recent.containsKey(serverGuid)) {
+                return true;
+            }
+            return containsAll(currentGeneration, indexes) || containsAll(previousGeneration, indexes);
+        }
+    }
+
+    /**
+     * Marks the envelope as processed. The GUID is persisted before this method returns.
+     */
+    public void markProcessed(final String serverGuid) {
+        if (serverGuid == null) {
+            return;
+        }
+        final var indexes = getIndexes(serverGuid);
+        synchronized (recent) {
+            if (!addLocked(serverGuid, indexes)) {
+                return;
+            }
+            if (++unsavedCount >= SAVE_INTERVAL) {
+                saveLocked();
+            } else {
+                appendToJournalLocked(serverGuid);
+            }
+        }
+    }
+
+    /**
+     * Writes the store to disk, if there are unsaved changes.
+     */
+    public void flush() {
+        synchronized (recent) {
+            if (unsavedCount > 0) {
+                saveLocked();
+            }
+        }
+    }
+
+    private boolean addLocked(final String serverGuid, final int[] indexes) {
+        if (recent.put(serverGuid, Boolean.TRUE) != null) {
+            return false;
+        }
+        for (var index : indexes) {
+            currentGeneration.set(index);
+        }
+        if (++currentGenerationCount >= GENERATION_CAPACITY) {
+            previousGeneration = currentGeneration;
+            currentGeneration = new BitSet(FILTER_BITS);
+            currentGenerationCount = 0;
+        }
+        return true;
+    }
+
+    private void appendToJournalLocked(final String serverGuid) {
+        try {
+            Files.writeString(journalFile.toPath(),
+                    serverGuid + "\n",
+                    StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            logger.warn("Failed to append to server guid journal, saving store: {}", e.getMessage());
+            saveLocked();
+        }
+    }
+
+    /**
+     * Adds the GUIDs that were processed after the store was last saved.
+     */
+    private void replayJournal() throws IOException {
+        final List<String> guids;
+        try {
+            guids = Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        synchronized (recent) {
+            for (var guid : guids) {
+                if (!guid.isEmpty() && addLocked(guid, getIndexes(guid))) {
+                    unsavedCount++;
+                }
+            }
+            if (unsavedCount > 0) {
+                logger.debug("Restored {} server guids from journal", unsavedCount);
+                saveLocked();
+            }
+        }
+    }
+
+    private static boolean containsAll(final BitSet filter, final int[] indexes) {
+        for (var index : indexes) {
+            if (!filter.get(index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] getIndexes(final String serverGuid) {
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(serverGuid);
+        } catch (IllegalArgumentException e) {
+            uuid = UUID.nameUUIDFromBytes(serverGuid.getBytes(StandardCharsets.UTF_8));
+        }
+        // Double hashing, see Kirsch and Mitzenmacher, "Less Hashing, Same Performance"
+        final var h1 = mix(uuid.getMostSignificantBits());
+        final var h2 = mix(uuid.getLeastSignificantBits()) | 1;
+        final var indexes = new int[HASH_COUNT];
+        for (var i = 0; i < HASH_COUNT; i++) {
+            indexes[i] = (int) Math.floorMod(h1 + i * h2, (long) FILTER_BITS);
+        }
+        return indexes;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private void saveLocked() {
+        final var storage = new Storage(currentGeneration.toByteArray(),
+                previousGeneration.toByteArray(),
+                currentGenerationCount,
+                new ArrayList<>(recent.keySet()));
+
+        // Write to memory first to prevent corrupting the file in case of serialization errors
+        try (var inMemoryOutput = new ByteArrayOutputStream()) {
+            objectMapper.writeValue(inMemoryOutput, storage);
+
+            // Replace the file atomically, so a crash while writing doesn't leave a truncated store
+            final var tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+            var input = new ByteArrayInputStream(inMemoryOutput.toByteArray());
+            try (var outputStream = new FileOutputStream(tmpFile)) {
+                input.transferTo(outputStream);
+            }
+            Files.move(tmpFile.toPath(),
+                    file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            unsavedCount = 0;
+            // The journal's entries are contained in the saved store now
+            Files.deleteIfExists(journalFile.toPath());
+        } catch (Exception e) {
+            logger.error("Error saving server guid store file: {}", e.getMessage());
+        }
+    }
+
+    private static class Storage {
+
+        public byte[] currentGeneration;
+        public byte[] previousGeneration;
+        public int currentGenerationCount;
+        public List<String> recent;
+
+        // For deserialization
+        private Storage() {
+        }
+
+        public Storage(
+                final byte[] currentGeneration,
+                final byte[] previousGeneration,
+                final int currentGenerationCount,
+                final List<String> recent
+        ) {
+            this.currentGeneration = currentGeneration;
+            this.previousGeneration = previousGeneration;
+            this.currentGenerationCount = currentGenerationCount;
+            this.recent = recent;
+        }
+    }
+}
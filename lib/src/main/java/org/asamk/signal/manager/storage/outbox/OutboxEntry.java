@@ -0,0 +1,111 @@
+package org.asamk.signal.manager.storage.outbox;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sent message with the recipients that haven't received it yet.
+ */
+public final class OutboxEntry {
+
+    private final long id;
+    private final long timestamp;
+    private final String messageText;
+    private final List<byte[]> attachments;
+    private final List<String> recipients;
+    private final List<String> groups;
+    private final Map<String, List<String>> groupMembers;
+    private final int attempts;
+    private final long nextAttemptTimestamp;
+
+    public OutboxEntry(
+            final long id,
+            final long timestamp,
+            final String messageText,
+            final List<byte[]> attachments,
+            final List<String> recipients,
+            final List<String> groups,
+            final Map<String, List<String>> groupMembers,
+            final int attempts,
+            final long nextAttemptTimestamp
+    ) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.messageText = messageText;
+        this.attachments = attachments;
+        this.recipients = recipients;
+        this.groups = groups;
+        this.groupMembers = groupMembers;
+        this.attempts = attempts;
+        this.nextAttemptTimestamp = nextAttemptTimestamp;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getMessageText() {
+        return messageText;
+    }
+
+    /**
+     * @return the serialized pointers of the already uploaded attachments
+     */
+    public List<byte[]> getAttachments() {
+        return attachments;
+    }
+
+    /**
+     * @return the pending individual recipients, as uuid or number
+     */
+    public List<String> getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * @return the base64 encoded ids of the groups, to whose members the message hasn't been sent at all
+     */
+    public List<String> getGroups() {
+        return groups;
+    }
+
+    /**
+     * @return the pending member uuids of groups, to which the message has already been sent partially
+     */
+    public Map<String, List<String>> getGroupMembers() {
+        return groupMembers;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public long getNextAttemptTimestamp() {
+        return nextAttemptTimestamp;
+    }
+
+    public boolean isEmpty() {
+        return recipients.isEmpty() && groups.isEmpty() && groupMembers.isEmpty();
+    }
+
+    public OutboxEntry withPending(
+            final List<String> recipients,
+            final List<String> groups,
+            final Map<String, List<String>> groupMembers,
+            final long nextAttemptTimestamp
+    ) {
+        return new OutboxEntry(id,
+                timestamp,
+                messageText,
+                attachments,
+                recipients,
+                groups,
+                groupMembers,
+                attempts + 1,
+                nextAttemptTimestamp);
+    }
+}
@@ -0,0 +1,210 @@
+package org.asamk.signal.manager.storage.outbox;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.asamk.signal.manager.storage.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Durable list of sent messages that haven't reached all recipients yet.
+ * A message is added before it is sent and only removed once all recipients have received it or it has been given up.
+ */
+public class OutboxStore {
+
+    private final static Logger logger = LoggerFactory.getLogger(OutboxStore.class);
+
+    private final ObjectMapper objectMapper;
+    private final File file;
+
+    private final Map<Long, OutboxEntry> entries;
+    private long lastId;
+
+    public static OutboxStore load(final File file) throws IOException {
+        final var objectMapper = Utils.createStorageObjectMapper();
+        try (var inputStream = new FileInputStream(file)) {
+            final var storage = objectMapper.readValue(inputStream, Storage.class);
+            final var base64 = Base64.getDecoder();
+            final var entries = new HashMap<Long, OutboxEntry>();
+            for (final var entry : storage.entries) {
+                entries.put(entry.id,
+                        new OutboxEntry(entry.id,
+                                entry.timestamp,
+                                entry.messageText,
+                                entry.attachments == null
+                                        ? List.of()
+                                        : entry.attachments.stream()
+                                                .map(base64::decode)
+                                                .collect(Collectors.toList()),
+                                entry.recipients == null ? List.of() : entry.recipients,
+                                entry.groups == null ? List.of() : entry.groups,
+                                entry.groupMembers == null ? Map.of() : entry.groupMembers,
+                                entry.attempts,
+                                entry.nextAttemptTimestamp));
+            }
+            return new OutboxStore(objectMapper, file, entries, storage.lastId);
+        } catch (FileNotFoundException e) {
+            logger.debug("Creating new outbox store.");
+            return new OutboxStore(objectMapper, file, new HashMap<>(), 0);
+        }
+    }
+
+    private OutboxStore(
+            final ObjectMapper objectMapper, final File file, final Map<Long, OutboxEntry> entries, final long lastId
+    ) {
+        this.objectMapper = objectMapper;
+        this.file = file;
+        this.entries = entries;
+        this.lastId = lastId;
+    }
+
+    public OutboxEntry addEntry(
+            final long timestamp,
+            final String messageText,
+            final List<byte[]> attachments,
+            final List<String> recipients,
+            final List<String> groups
+    ) {
+        synchronized (entries) {
+            final var entry = new OutboxEntry(++lastId,
+                    timestamp,
+                    messageText,
+                    attachments,
+                    recipients,
+                    groups,
+                    Map.of(),
+                    0,
+                    0);
+            entries.put(entry.getId(), entry);
+            saveLocked();
+            return entry;
+        }
+    }
+
+    public OutboxEntry getEntry(final long id) {
+        synchronized (entries) {
+            return entries.get(id);
+        }
+    }
+
+    public List<OutboxEntry> getEntries() {
+        synchronized (entries) {
+            return new ArrayList<>(entries.values());
+        }
+    }
+
+    public void updateEntry(final OutboxEntry entry) {
+        synchronized (entries) {
+            if (!entries.containsKey(entry.getId())) {
+                return;
+            }
+            entries.put(entry.getId(), entry);
+            saveLocked();
+        }
+    }
+
+    public void deleteEntry(final long id) {
+        synchronized (entries) {
+            if (entries.remove(id) != null) {
+                saveLocked();
+            }
+        }
+    }
+
+    private void saveLocked() {
+        final var base64 = Base64.getEncoder();
+        final var storage = new Storage(lastId,
+                entries.values()
+                        .stream()
+                        .map(e -> new Storage.Entry(e.getId(),
+                                e.getTimestamp(),
+                                e.getMessageText(),
+                                e.getAttachments().stream().map(base64::encodeToString).collect(Collectors.toList()),
+                                e.getRecipients(),
+                                e.getGroups(),
+                                e.getGroupMembers(),
+                                e.getAttempts(),
+                                e.getNextAttemptTimestamp()))
+                        .collect(Collectors.toList()));
+
+        // Write to memory first to prevent corrupting the file in case of serialization errors
+        try (var inMemoryOutput = new ByteArrayOutputStream()) {
+            objectMapper.writeValue(inMemoryOutput, storage);
+
+            var input = new ByteArrayInputStream(inMemoryOutput.toByteArray());
+            try (var outputStream = new FileOutputStream(file)) {
+                input.transferTo(outputStream);
+            }
+        } catch (Exception e) {
+            logger.error("Error saving outbox store file: {}", e.getMessage());
+        }
+    }
+
+    private static class Storage {
+
+        public long lastId;
+        public List<Entry> entries;
+
+        // For deserialization
+        private Storage() {
+        }
+
+        public Storage(final long lastId, final List<Entry> entries) {
+            this.lastId = lastId;
+            this.entries = entries;
+        }
+
+        private static class Entry {
+
+            public long id;
+            public long timestamp;
+            public String messageText;
+            public List<String> attachments;
+            public List<String> recipients;
+            public List<String> groups;
+            public Map<String, List<String>> groupMembers;
+            public int attempts;
+            public long nextAttemptTimestamp;
+
+            // For deserialization
+            private Entry() {
+            }
+
+            public Entry(
+                    final long id,
+                    final long timestamp,
+                    final String messageText,
+                    final List<String> attachments,
+                    final List<String> recipients,
+                    final List<String> groups,
+                    final Map<String, List<String>> groupMembers,
+                    final int attempts,
+                    final long nextAttemptTimestamp
+            ) {
+                this.id = id;
+                this.timestamp = timestamp;
+                this.messageText = messageText;
+                this.attachments = attachments;
+                this.recipients = recipients;
+                this.groups = groups;
+                this.groupMembers = groupMembers;
+                this.attempts = attempts;
+                this.nextAttemptTimestamp = nextAttemptTimestamp;
+            }
+        }
+    }
+}
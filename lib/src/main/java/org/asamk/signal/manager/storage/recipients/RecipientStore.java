@@ -44,6 +44,7 @@ public class RecipientStore implements RecipientResolver, ContactsStore, Profile
 
     private final Map<RecipientId, Recipient> recipients;
     private final Map<RecipientId, RecipientId> recipientsMerged = new HashMap<>();
+    private volatile ContactChangeListener contactChangeListener;
 
     private long lastId;
 
@@ -198,12 +199,20 @@ public class RecipientStore implements RecipientResolver, ContactsStore, Profile
         return recipientIds;
     }
 
+    public void setContactChangeListener(final ContactChangeListener contactChangeListener) {
+        this.contactChangeListener = contactChangeListener;
+    }
+
     @Override
     public void storeContact(final RecipientId recipientId, final Contact contact) {
         synchronized (recipients) {
             final var recipient = recipients.get(recipientId);
             storeRecipientLocked(recipientId, Recipient.newBuilder(recipient).withContact(contact).build());
         }
+        final var listener = contactChangeListener;
+        if (listener != null) {
+            listener.onContactChanged(recipientId, contact);
+        }
     }
 
     @Override
@@ -590,4 +599,9 @@ public class RecipientStore implements RecipientResolver, ContactsStore, Profile
 
         void mergeRecipients(RecipientId recipientId, RecipientId toBeMergedRecipientId);
     }
+
+    public interface ContactChangeListener {
+
+        void onContactChanged(RecipientId recipientId, Contact contact);
+    }
 }
@@ -87,6 +87,23 @@ public class SenderKeyRecordStore implements org.whispersystems.libsignal.groups
         }
     }
 
+    public boolean hasSenderKey(final RecipientId recipientId, final int deviceId, final UUID distributionId) {
+        final var key = new Key(recipientId, deviceId, distributionId);
+        synchronized (cachedSenderKeys) {
+            return cachedSenderKeys.containsKey(key) || getSenderKeyFile(key).exists();
+        }
+    }
+
+    public void deleteSenderKey(final RecipientId recipientId, final UUID distributionId) {
+        synchronized (cachedSenderKeys) {
+            for (var key : getKeysLocked(recipientId)) {
+                if (key.getDistributionId().equals(distributionId)) {
+                    deleteSenderKeyLocked(key);
+                }
+            }
+        }
+    }
+
     public void mergeRecipients(RecipientId recipientId, RecipientId toBeMergedRecipientId) {
         synchronized (cachedSenderKeys) {
             final var keys = getKeysLocked(toBeMergedRecipientId);
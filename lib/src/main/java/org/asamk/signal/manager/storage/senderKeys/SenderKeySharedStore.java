@@ -32,6 +32,7 @@ public class SenderKeySharedStore {
     private final static Logger logger = LoggerFactory.getLogger(SenderKeySharedStore.class);
 
     private final Map<DistributionId, Set<SenderKeySharedEntry>> sharedSenderKeys;
+    private final Map<DistributionId, Long> ourKeyCreateTimes;
 
     private final ObjectMapper objectMapper;
     private final File file;
@@ -61,22 +62,45 @@ public class SenderKeySharedStore {
                 entries.add(entry);
                 sharedSenderKeys.put(distributionId, entries);
             }
+            final var ourKeyCreateTimes = new HashMap<DistributionId, Long>();
+            if (storage.ourKeyCreateTimes != null) {
+                for (final var createTime : storage.ourKeyCreateTimes.entrySet()) {
+                    final var uuid = UuidUtil.parseOrNull(createTime.getKey());
+                    if (uuid == null) {
+                        logger.warn("Read invalid distribution id from storage {}, ignoring", createTime.getKey());
+                        continue;
+                    }
+                    ourKeyCreateTimes.put(DistributionId.from(uuid), createTime.getValue());
+                }
+            }
 
-            return new SenderKeySharedStore(sharedSenderKeys, objectMapper, file, addressResolver, resolver);
+            return new SenderKeySharedStore(sharedSenderKeys,
+                    ourKeyCreateTimes,
+                    objectMapper,
+                    file,
+                    addressResolver,
+                    resolver);
         } catch (FileNotFoundException e) {
             logger.debug("Creating new shared sender key store.");
-            return new SenderKeySharedStore(new HashMap<>(), objectMapper, file, addressResolver, resolver);
+            return new SenderKeySharedStore(new HashMap<>(),
+                    new HashMap<>(),
+                    objectMapper,
+                    file,
+                    addressResolver,
+                    resolver);
         }
     }
 
     private SenderKeySharedStore(
             final Map<DistributionId, Set<SenderKeySharedEntry>> sharedSenderKeys,
+            final Map<DistributionId, Long> ourKeyCreateTimes,
             final ObjectMapper objectMapper,
             final File file,
             final RecipientAddressResolver addressResolver,
             final RecipientResolver resolver
     ) {
         this.sharedSenderKeys = sharedSenderKeys;
+        this.ourKeyCreateTimes = ourKeyCreateTimes;
         this.objectMapper = objectMapper;
         this.file = file;
         this.addressResolver = addressResolver;
@@ -85,7 +109,7 @@ public class SenderKeySharedStore {
 
     public Set<SignalProtocolAddress> getSenderKeySharedWith(final DistributionId distributionId) {
         synchronized (sharedSenderKeys) {
-            return sharedSenderKeys.get(distributionId)
+            return sharedSenderKeys.getOrDefault(distributionId, Set.of())
                     .stream()
                     .map(k -> new SignalProtocolAddress(addressResolver.resolveRecipientAddress(k.getRecipientId())
                             .getIdentifier(), k.getDeviceId()))
@@ -132,9 +156,25 @@ public class SenderKeySharedStore {
         }
     }
 
+    /**
+     * @return the stored create time of our sender key, or the given time, which is stored if there was none
+     */
+    public long getOrSetOurKeyCreateTime(final DistributionId distributionId, final long createTime) {
+        synchronized (sharedSenderKeys) {
+            final var storedCreateTime = ourKeyCreateTimes.get(distributionId);
+            if (storedCreateTime != null) {
+                return storedCreateTime;
+            }
+            ourKeyCreateTimes.put(distributionId, createTime);
+            saveLocked();
+            return createTime;
+        }
+    }
+
     public void deleteAll() {
         synchronized (sharedSenderKeys) {
             sharedSenderKeys.clear();
+            ourKeyCreateTimes.clear();
             saveLocked();
         }
     }
@@ -154,6 +194,16 @@ public class SenderKeySharedStore {
         }
     }
 
+    public void deleteAllFor(final DistributionId distributionId) {
+        synchronized (sharedSenderKeys) {
+            final var removedSharedWith = sharedSenderKeys.remove(distributionId) != null;
+            final var removedCreateTime = ourKeyCreateTimes.remove(distributionId) != null;
+            if (removedSharedWith || removedCreateTime) {
+                saveLocked();
+            }
+        }
+    }
+
     public void mergeRecipients(RecipientId recipientId, RecipientId toBeMergedRecipientId) {
         synchronized (sharedSenderKeys) {
             for (final var distributionId : sharedSenderKeys.keySet()) {
@@ -178,13 +228,17 @@ public class SenderKeySharedStore {
     }
 
     private void saveLocked() {
-        var storage = new Storage(sharedSenderKeys.entrySet().stream().flatMap(pair -> {
-            final var sharedWith = pair.getValue();
-            return sharedWith.stream()
+        final var sharedWith = sharedSenderKeys.entrySet().stream().flatMap(pair -> {
+            final var entries = pair.getValue();
+            return entries.stream()
                     .map(entry -> new Storage.SharedSenderKey(entry.getRecipientId().getId(),
                             entry.getDeviceId(),
                             pair.getKey().asUuid().toString()));
-        }).collect(Collectors.toList()));
+        }).collect(Collectors.toList());
+        final var createTimes = ourKeyCreateTimes.entrySet()
+                .stream()
+                .collect(Collectors.toMap(e -> e.getKey().asUuid().toString(), Map.Entry::getValue));
+        var storage = new Storage(sharedWith, createTimes);
 
         // Write to memory first to prevent corrupting the file in case of serialization errors
         try (var inMemoryOutput = new ByteArrayOutputStream()) {
@@ -202,13 +256,15 @@ public class SenderKeySharedStore {
     private static class Storage {
 
         public List<SharedSenderKey> sharedSenderKeys;
+        public Map<String, Long> ourKeyCreateTimes;
 
         // For deserialization
         private Storage() {
         }
 
-        public Storage(final List<SharedSenderKey> sharedSenderKeys) {
+        public Storage(final List<SharedSenderKey> sharedSenderKeys, final Map<String, Long> ourKeyCreateTimes) {
             this.sharedSenderKeys = sharedSenderKeys;
+            this.ourKeyCreateTimes = ourKeyCreateTimes;
         }
 
         private static class SharedSenderKey {
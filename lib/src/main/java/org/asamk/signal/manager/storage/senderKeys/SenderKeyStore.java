@@ -68,6 +68,36 @@ public class SenderKeyStore implements SignalServiceSenderKeyStore {
         senderKeyRecordStore.deleteAllFor(recipientId);
     }
 
+    /**
+     * @return the time our sender key for this distribution id was created, or -1 if it doesn't exist yet
+     */
+    public long getCreateTimeForOurKey(
+            final RecipientId selfRecipientId, final int deviceId, final DistributionId distributionId
+    ) {
+        if (!senderKeyRecordStore.hasSenderKey(selfRecipientId, deviceId, distributionId.asUuid())) {
+            return -1;
+        }
+        // Keys without a stored create time, e.g. from older versions, are treated as created now
+        return senderKeySharedStore.getOrSetOurKeyCreateTime(distributionId, System.currentTimeMillis());
+    }
+
+    /**
+     * Stores the current time as create time of our sender key, if it has been created since the last call.
+     */
+    public void markOurKeyCreated(
+            final RecipientId selfRecipientId, final int deviceId, final DistributionId distributionId
+    ) {
+        getCreateTimeForOurKey(selfRecipientId, deviceId, distributionId);
+    }
+
+    /**
+     * Deletes our sender key, so a new one is created and distributed to all recipients with the next message.
+     */
+    public void deleteOurKey(final RecipientId selfRecipientId, final DistributionId distributionId) {
+        senderKeySharedStore.deleteAllFor(distributionId);
+        senderKeyRecordStore.deleteSenderKey(selfRecipientId, distributionId.asUuid());
+    }
+
     public void mergeRecipients(RecipientId recipientId, RecipientId toBeMergedRecipientId) {
         senderKeySharedStore.mergeRecipients(recipientId, toBeMergedRecipientId);
         senderKeyRecordStore.mergeRecipients(recipientId, toBeMergedRecipientId);
@@ -30,19 +30,34 @@ public class AttachmentUtils {
     }
 
     public static SignalServiceAttachmentStream createAttachment(File attachmentFile) throws IOException {
+        return createAttachment(attachmentFile, Optional.absent());
+    }
+
+    /**
+     * @param resumableUploadSpec the upload location and attachment key, to upload the attachment with a resumable
+     *                            upload
+     */
+    public static SignalServiceAttachmentStream createAttachment(
+            File attachmentFile, Optional<ResumableUploadSpec> resumableUploadSpec
+    ) throws IOException {
         final var streamDetails = Utils.createStreamDetailsFromFile(attachmentFile);
-        return createAttachment(streamDetails, Optional.of(attachmentFile.getName()));
+        return createAttachment(streamDetails, Optional.of(attachmentFile.getName()), resumableUploadSpec);
     }
 
     public static SignalServiceAttachmentStream createAttachment(
             StreamDetails streamDetails, Optional<String> name
+    ) {
+        return createAttachment(streamDetails, name, Optional.absent());
+    }
+
+    private static SignalServiceAttachmentStream createAttachment(
+            StreamDetails streamDetails, Optional<String> name, Optional<ResumableUploadSpec> resumableUploadSpec
     ) {
         // TODO mabybe add a parameter to set the voiceNote, borderless, preview, width, height and caption option
         final var uploadTimestamp = System.currentTimeMillis();
         Optional<byte[]> preview = Optional.absent();
         Optional<String> caption = Optional.absent();
         Optional<String> blurHash = Optional.absent();
-        final Optional<ResumableUploadSpec> resumableUploadSpec = Optional.absent();
         return new SignalServiceAttachmentStream(streamDetails.getStream(),
                 streamDetails.getContentType(),
                 streamDetails.getLength(),
@@ -7,10 +7,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static java.nio.file.attribute.PosixFilePermission.OWNER_EXECUTE;
 import static java.nio.file.attribute.PosixFilePermission.OWNER_READ;
@@ -72,4 +77,30 @@ public class IOUtils {
             output.write(buffer, 0, read);
         }
     }
+
+    /**
+     * Copies a file or a directory with all its content, keeping the file permissions.
+     */
+    public static void copyRecursively(Path source, Path target) throws IOException {
+        final List<Path> paths;
+        try (var stream = Files.walk(source)) {
+            paths = stream.collect(Collectors.toList());
+        }
+        for (var path : paths) {
+            Files.copy(path, target.resolve(source.relativize(path)), StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    public static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        final List<Path> paths;
+        try (var stream = Files.walk(path)) {
+            paths = stream.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (var p : paths) {
+            Files.delete(p);
+        }
+    }
 }
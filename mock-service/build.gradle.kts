@@ -0,0 +1,27 @@
+plugins {
+    java
+    application
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+application {
+    mainClass.set("org.asamk.signal.mockservice.MockSignalService")
+}
+
+repositories {
+    mavenLocal()
+    mavenCentral()
+}
+
+dependencies {
+    implementation("org.slf4j:slf4j-simple:1.7.30")
+    implementation(project(":lib"))
+}
+
+tasks.withType<JavaCompile> {
+    options.encoding = "UTF-8"
+}
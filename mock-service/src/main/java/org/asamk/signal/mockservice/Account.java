@@ -0,0 +1,156 @@
+package org.asamk.signal.mockservice;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos;
+
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A registered account of the mock service. Only the primary device is supported.
+ * <p>
+ * Access is synchronized on the account.
+ */
+class Account {
+
+    static final int DEVICE_ID = 1;
+
+    private final UUID uuid;
+    private final String number;
+    private String password;
+    private int registrationId;
+    private byte[] unidentifiedAccessKey;
+    private boolean unrestrictedUnidentifiedAccess;
+
+    private String identityKey;
+    private JsonNode signedPreKey;
+    private final Deque<JsonNode> preKeys = new ArrayDeque<>();
+
+    private final Map<String, JsonNode> profiles = new HashMap<>();
+    private JsonNode latestProfile;
+
+    private final Map<String, SignalServiceProtos.Envelope> messages = new LinkedHashMap<>();
+    private WebSocketConnection connection;
+
+    Account(final UUID uuid, final String number) {
+        this.uuid = uuid;
+        this.number = number;
+    }
+
+    UUID getUuid() {
+        return uuid;
+    }
+
+    String getNumber() {
+        return number;
+    }
+
+    synchronized boolean checkPassword(final String password) {
+        return this.password != null && this.password.equals(password);
+    }
+
+    synchronized void register(final String password, final JsonNode attributes) {
+        this.password = password;
+        setAttributes(attributes);
+        identityKey = null;
+        signedPreKey = null;
+        preKeys.clear();
+    }
+
+    synchronized void setAttributes(final JsonNode attributes) {
+        registrationId = attributes.path("registrationId").asInt();
+        final var accessKey = attributes.path("unidentifiedAccessKey");
+        unidentifiedAccessKey = accessKey.isTextual() ? Base64.getDecoder().decode(accessKey.asText()) : null;
+        unrestrictedUnidentifiedAccess = attributes.path("unrestrictedUnidentifiedAccess").asBoolean();
+    }
+
+    synchronized int getRegistrationId() {
+        return registrationId;
+    }
+
+    synchronized byte[] getUnidentifiedAccessKey() {
+        return unidentifiedAccessKey;
+    }
+
+    synchronized boolean isUnrestrictedUnidentifiedAccess() {
+        return unrestrictedUnidentifiedAccess;
+    }
+
+    synchronized String getIdentityKey() {
+        return identityKey;
+    }
+
+    synchronized void setKeys(final String identityKey, final JsonNode signedPreKey, final List<JsonNode> preKeys) {
+        this.identityKey = identityKey;
+        if (signedPreKey != null && !signedPreKey.isNull()) {
+            this.signedPreKey = signedPreKey;
+        }
+        this.preKeys.addAll(preKeys);
+    }
+
+    synchronized JsonNode getSignedPreKey() {
+        return signedPreKey;
+    }
+
+    synchronized void setSignedPreKey(final JsonNode signedPreKey) {
+        this.signedPreKey = signedPreKey;
+    }
+
+    synchronized int getPreKeyCount() {
+        return preKeys.size();
+    }
+
+    /**
+     * @return a one-time pre key that is removed from the account, or null if none are left
+     */
+    synchronized JsonNode takePreKey() {
+        return preKeys.pollFirst();
+    }
+
+    synchronized void setProfile(final String version, final JsonNode profile) {
+        profiles.put(version, profile);
+        latestProfile = profile;
+    }
+
+    synchronized JsonNode getProfile(final String version) {
+        return version == null ? latestProfile : profiles.get(version);
+    }
+
+    /**
+     * Stores the message and returns the connection it should be delivered to, if the account is online.
+     */
+    synchronized WebSocketConnection addMessage(final String guid, final SignalServiceProtos.Envelope envelope) {
+        messages.put(guid, envelope);
+        return connection;
+    }
+
+    synchronized Map<String, SignalServiceProtos.Envelope> getMessages() {
+        return new LinkedHashMap<>(messages);
+    }
+
+    synchronized void removeMessage(final String guid) {
+        messages.remove(guid);
+    }
+
+    /**
+     * @return the previous connection of the account, which should be closed
+     */
+    synchronized WebSocketConnection setConnection(final WebSocketConnection connection) {
+        final var previous = this.connection;
+        this.connection = connection;
+        return previous;
+    }
+
+    synchronized void removeConnection(final WebSocketConnection connection) {
+        if (this.connection == connection) {
+            this.connection = null;
+        }
+    }
+}
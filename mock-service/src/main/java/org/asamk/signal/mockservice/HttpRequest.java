@@ -0,0 +1,66 @@
+package org.asamk.signal.mockservice;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A request to the mock service, received either over http or as a websocket request message.
+ */
+class HttpRequest {
+
+    private final String method;
+    private final String path;
+    private final Map<String, String> query;
+    private final Map<String, String> headers;
+    private final byte[] body;
+
+    /**
+     * @param target  the request path, optionally with a query string
+     * @param headers the headers with lower case names
+     */
+    HttpRequest(final String method, final String target, final Map<String, String> headers, final byte[] body) {
+        this.method = method;
+        final var queryStart = target.indexOf('?');
+        this.path = queryStart == -1 ? target : target.substring(0, queryStart);
+        this.query = queryStart == -1 ? Map.of() : parseQuery(target.substring(queryStart + 1));
+        this.headers = headers;
+        this.body = body == null ? new byte[0] : body;
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    String getQueryParameter(final String name) {
+        return query.get(name);
+    }
+
+    String getHeader(final String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    private static Map<String, String> parseQuery(final String query) {
+        final var parameters = new HashMap<String, String>();
+        for (var parameter : query.split("&")) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            final var separator = parameter.indexOf('=');
+            final var name = separator == -1 ? parameter : parameter.substring(0, separator);
+            final var value = separator == -1 ? "" : parameter.substring(separator + 1);
+            parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+}
@@ -0,0 +1,116 @@
+package org.asamk.signal.mockservice;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class HttpResponse {
+
+    private final static ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final int DROPPED = -1;
+
+    private final int status;
+    private final String contentType;
+    private final byte[] body;
+    private final Map<String, String> headers;
+
+    private HttpResponse(final int status, final String contentType, final byte[] body) {
+        this(status, contentType, body, Map.of());
+    }
+
+    private HttpResponse(
+            final int status, final String contentType, final byte[] body, final Map<String, String> headers
+    ) {
+        this.status = status;
+        this.contentType = contentType;
+        this.body = body;
+        this.headers = headers;
+    }
+
+    static HttpResponse empty(final int status) {
+        return new HttpResponse(status, null, new byte[0]);
+    }
+
+    /**
+     * Closes the connection without a response, to simulate a network failure.
+     */
+    static HttpResponse drop() {
+        return new HttpResponse(DROPPED, null, new byte[0]);
+    }
+
+    static HttpResponse json(final int status, final Object body) {
+        try {
+            return new HttpResponse(status, "application/json", objectMapper.writeValueAsBytes(body));
+        } catch (JsonProcessingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static HttpResponse json(final Object body) {
+        return json(200, body);
+    }
+
+    static HttpResponse bytes(final byte[] body) {
+        return new HttpResponse(200, "application/octet-stream", body);
+    }
+
+    HttpResponse withHeader(final String name, final String value) {
+        final var newHeaders = new HashMap<>(headers);
+        newHeaders.put(name, value);
+        return new HttpResponse(status, contentType, body, newHeaders);
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    boolean isDropped() {
+        return status == DROPPED;
+    }
+
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    String getReason() {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 201:
+                return "Created";
+            case 204:
+                return "No Content";
+            case 308:
+                return "Resume Incomplete";
+            case 400:
+                return "Bad Request";
+            case 401:
+                return "Unauthorized";
+            case 403:
+                return "Forbidden";
+            case 404:
+                return "Not Found";
+            case 409:
+                return "Conflict";
+            case 410:
+                return "Gone";
+            case 416:
+                return "Range Not Satisfiable";
+            case 500:
+                return "Internal Server Error";
+            default:
+                return "Status " + status;
+        }
+    }
+}
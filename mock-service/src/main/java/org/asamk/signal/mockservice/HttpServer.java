@@ -0,0 +1,197 @@
+package org.asamk.signal.mockservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal HTTP/1.1 server with persistent connections and websocket upgrades.
+ * <p>
+ * The JDK http server can't hand over a connection for a websocket upgrade, so the requests are parsed here.
+ */
+class HttpServer {
+
+    private final static Logger logger = LoggerFactory.getLogger(HttpServer.class);
+
+    private final Router router;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private ServerSocket serverSocket;
+
+    HttpServer(final Router router) {
+        this.router = router;
+    }
+
+    void start(final InetSocketAddress address) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(address, 1024);
+        final var acceptThread = new Thread(this::acceptConnections, "mock-service-accept");
+        acceptThread.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final var socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                executor.execute(() -> handleConnection(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    logger.warn("Failed to accept connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handleConnection(final Socket socket) {
+        try (socket) {
+            final var in = new BufferedInputStream(socket.getInputStream());
+            final var out = new BufferedOutputStream(socket.getOutputStream());
+            while (true) {
+                final var requestLine = readLine(in);
+                if (requestLine == null) {
+                    return;
+                }
+                if (requestLine.isEmpty()) {
+                    continue;
+                }
+                final var parts = requestLine.split(" ");
+                if (parts.length != 3) {
+                    writeResponse(out, HttpResponse.empty(400), true);
+                    return;
+                }
+                final var headers = readHeaders(in);
+
+                if ("websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+                    final var request = new HttpRequest(parts[0], parts[1], headers, null);
+                    router.handleWebSocket(request, in, out);
+                    return;
+                }
+
+                final var request = new HttpRequest(parts[0], parts[1], headers, readBody(in, headers));
+                HttpResponse response;
+                try {
+                    response = router.handle(request, null);
+                } catch (Exception e) {
+                    logger.warn("Failed to handle request {} {}", request.getMethod(), request.getPath(), e);
+                    response = HttpResponse.empty(500);
+                }
+                if (response.isDropped()) {
+                    logger.debug("Dropping connection for {} {}", request.getMethod(), request.getPath());
+                    return;
+                }
+                final var close = "close".equalsIgnoreCase(headers.get("connection"));
+                writeResponse(out, response, close);
+                if (close) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Connection closed: {}", e.getMessage());
+        }
+    }
+
+    private static Map<String, String> readHeaders(final InputStream in) throws IOException {
+        final var headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            final var separator = line.indexOf(':');
+            if (separator > 0) {
+                headers.put(line.substring(0, separator).trim().toLowerCase(), line.substring(separator + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private static byte[] readBody(final InputStream in, final Map<String, String> headers) throws IOException {
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            final var body = new ByteArrayOutputStream();
+            while (true) {
+                final var sizeLine = readLine(in);
+                if (sizeLine == null) {
+                    throw new EOFException();
+                }
+                final var extension = sizeLine.indexOf(';');
+                final var sizeHex = extension == -1 ? sizeLine : sizeLine.substring(0, extension);
+                final var size = Integer.parseInt(sizeHex.trim(), 16);
+                if (size == 0) {
+                    // Skip the trailers
+                    readHeaders(in);
+                    return body.toByteArray();
+                }
+                body.write(readFully(in, size));
+                readLine(in);
+            }
+        }
+        final var contentLength = headers.get("content-length");
+        return contentLength == null ? new byte[0] : readFully(in, Integer.parseInt(contentLength));
+    }
+
+    static byte[] readFully(final InputStream in, final int length) throws IOException {
+        final var bytes = in.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the line without the line terminator, or null at the end of the stream
+     */
+    private static String readLine(final InputStream in) throws IOException {
+        final var line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                final var bytes = line.toByteArray();
+                final var length = bytes.length > 0 && bytes[bytes.length - 1] == '\r'
+                        ? bytes.length - 1
+                        : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            line.write(b);
+        }
+        return line.size() == 0 ? null : line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void writeResponse(
+            final OutputStream out, final HttpResponse response, final boolean close
+    ) throws IOException {
+        final var head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.getStatus()).append(' ').append(response.getReason()).append("\r\n");
+        head.append("Content-Length: ").append(response.getBody().length).append("\r\n");
+        if (response.getContentType() != null) {
+            head.append("Content-Type: ").append(response.getContentType()).append("\r\n");
+        }
+        for (var header : response.getHeaders().entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (close) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.write(response.getBody());
+        out.flush();
+    }
+}
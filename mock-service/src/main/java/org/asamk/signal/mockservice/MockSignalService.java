@@ -0,0 +1,61 @@
+package org.asamk.signal.mockservice;
+
+import org.signal.zkgroup.ServerSecretParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.libsignal.ecc.Curve;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Base64;
+
+/**
+ * Local stand-in for the Signal service, to measure the end-to-end throughput of signal-cli without the rate limits
+ * and latency of the real service.
+ * <p>
+ * Start it and pass the printed variables to signal-cli, which is then used with "--service-environment local".
+ * Accounts can be registered with any verification code. All state is kept in memory.
+ * <pre>
+ * Usage: MockSignalService [--host HOST] [--port PORT] [--upload-drop-after BYTES]
+ * </pre>
+ * With --upload-drop-after, every resumable attachment upload request is cut off after the given number of bytes,
+ * to test that interrupted uploads are resumed.
+ */
+public class MockSignalService {
+
+    private final static Logger logger = LoggerFactory.getLogger(MockSignalService.class);
+
+    public static void main(String[] args) throws IOException {
+        var host = "127.0.0.1";
+        var port = 8080;
+        var uploadDropAfter = 0L;
+        for (var i = 0; i < args.length; i++) {
+            if ("--host".equals(args[i]) && i + 1 < args.length) {
+                host = args[++i];
+            } else if ("--port".equals(args[i]) && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if ("--upload-drop-after".equals(args[i]) && i + 1 < args.length) {
+                uploadDropAfter = Long.parseLong(args[++i]);
+            } else {
+                System.err.println("Usage: MockSignalService [--host HOST] [--port PORT] [--upload-drop-after BYTES]");
+                System.exit(1);
+            }
+        }
+
+        // Only needed by the clients to validate their configuration, the mock service doesn't issue sender
+        // certificates or group credentials
+        final var trustRoot = Curve.generateKeyPair();
+        final var serverSecretParams = ServerSecretParams.generate();
+
+        final var server = new HttpServer(new Router(new ServiceState(), uploadDropAfter));
+        server.start(new InetSocketAddress(host, port));
+        logger.info("Mock Signal service listening on {}:{}", host, server.getPort());
+
+        System.out.println("export SIGNAL_CLI_LOCAL_URL=http://" + host + ":" + server.getPort());
+        System.out.println("export SIGNAL_CLI_LOCAL_TRUST_ROOT=" + Base64.getEncoder()
+                .encodeToString(trustRoot.getPublicKey().serialize()));
+        System.out.println("export SIGNAL_CLI_LOCAL_ZK_PARAMS=" + Base64.getEncoder()
+                .encodeToString(serverSecretParams.getPublicParams().serialize()));
+        System.out.flush();
+    }
+}
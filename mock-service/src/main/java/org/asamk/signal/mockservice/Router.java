@@ -0,0 +1,526 @@
+package org.asamk.signal.mockservice;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.protobuf.ByteString;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Implements the subset of the Signal service API needed to register accounts and exchange messages.
+ * <p>
+ * Unsupported endpoints, e.g. groups v2, sender certificates, contact discovery and the storage service, return 404,
+ * which the clients treat like a temporarily unavailable service.
+ */
+class Router {
+
+    private final static Logger logger = LoggerFactory.getLogger(Router.class);
+
+    private static final Pattern REQUEST_CODE = Pattern.compile("/v1/accounts/(sms|voice)/code/([^/]+)");
+    private static final Pattern VERIFY_CODE = Pattern.compile("/v1/accounts/code/([^/]+)");
+    private static final Pattern KEYS = Pattern.compile("/v2/keys/([^/]+)/([^/]+)");
+    private static final Pattern MESSAGES = Pattern.compile("/v1/messages/([^/]+)");
+    private static final Pattern MESSAGE_ACK = Pattern.compile("/v1/messages/uuid/([^/]+)");
+    private static final Pattern PROFILE = Pattern.compile("/v1/profile/([^/]+)(?:/([^/]+))?(?:/([^/]+))?");
+    private static final Pattern RESUMABLE_UPLOAD = Pattern.compile("/resumable/([^/]+)");
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (?:\\*|(\\d+)-(\\d+))/(\\d+)");
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final SecureRandom random = new SecureRandom();
+    private final ServiceState state;
+    private final long uploadDropAfter;
+
+    /**
+     * @param uploadDropAfter the number of bytes after which each resumable upload request is cut off by dropping
+     *                        the connection, or 0 to accept complete requests
+     */
+    Router(final ServiceState state, final long uploadDropAfter) {
+        this.state = state;
+        this.uploadDropAfter = uploadDropAfter;
+    }
+
+    /**
+     * @param account the account authenticated by the websocket connection or null, if the request has to
+     *                authenticate itself
+     */
+    HttpResponse handle(final HttpRequest request, Account account) throws IOException {
+        final var method = request.getMethod();
+        final var path = request.getPath().length() > 1 && request.getPath().endsWith("/")
+                ? request.getPath().substring(0, request.getPath().length() - 1)
+                : request.getPath();
+        if (account == null) {
+            account = authenticate(request);
+        }
+        logger.debug("{} {}", method, path);
+
+        Matcher matcher;
+        if ("GET".equals(method) && (matcher = REQUEST_CODE.matcher(path)).matches()) {
+            return matcher.group(2).startsWith("+") ? HttpResponse.empty(200) : HttpResponse.empty(400);
+        }
+        if ("PUT".equals(method) && VERIFY_CODE.matcher(path).matches()) {
+            return verifyAccount(request);
+        }
+        if ("GET".equals(method) && "/v1/keepalive".equals(path)) {
+            return HttpResponse.empty(200);
+        }
+        if ("PUT".equals(method) && (matcher = MESSAGES.matcher(path)).matches()) {
+            return sendMessage(request, account, matcher.group(1));
+        }
+        if ("GET".equals(method) && (matcher = PROFILE.matcher(path)).matches()) {
+            return getProfile(matcher.group(1), matcher.group(2));
+        }
+        if ("GET".equals(method) && "/v2/attachments/form/upload".equals(path)) {
+            return getAttachmentUploadForm();
+        }
+        if ("GET".equals(method) && "/v3/attachments/form/upload".equals(path)) {
+            return getResumableUploadForm(request);
+        }
+        if ("POST".equals(method) && (matcher = RESUMABLE_UPLOAD.matcher(path)).matches()) {
+            state.createResumableUpload(matcher.group(1));
+            return HttpResponse.empty(201).withHeader("Location", getResumableUploadUrl(request, matcher.group(1)));
+        }
+        if ("PUT".equals(method) && (matcher = RESUMABLE_UPLOAD.matcher(path)).matches()) {
+            return resumeUpload(request, matcher.group(1));
+        }
+        if ("POST".equals(method) && !path.startsWith("/v")) {
+            return uploadToCdn(request);
+        }
+        if ("GET".equals(method) && !path.startsWith("/v")) {
+            final var data = state.getCdnObject(path.substring(1));
+            return data == null ? HttpResponse.empty(404) : HttpResponse.bytes(data);
+        }
+
+        if (account == null) {
+            return HttpResponse.empty(401);
+        }
+
+        if ("GET".equals(method) && "/v1/accounts/whoami".equals(path)) {
+            final var response = objectMapper.createObjectNode();
+            response.put("uuid", account.getUuid().toString());
+            response.put("number", account.getNumber());
+            return HttpResponse.json(response);
+        }
+        if ("PUT".equals(method) && "/v1/accounts/attributes".equals(path)) {
+            account.setAttributes(objectMapper.readTree(request.getBody()));
+            return HttpResponse.empty(204);
+        }
+        if ("GET".equals(method) && "/v1/config".equals(path)) {
+            final var response = objectMapper.createObjectNode();
+            response.putArray("config");
+            return HttpResponse.json(response);
+        }
+        if ("GET".equals(method) && "/v2/keys".equals(path)) {
+            final var response = objectMapper.createObjectNode();
+            response.put("count", account.getPreKeyCount());
+            return HttpResponse.json(response);
+        }
+        if ("PUT".equals(method) && "/v2/keys".equals(path)) {
+            final var preKeyState = objectMapper.readTree(request.getBody());
+            final var preKeys = new ArrayList<JsonNode>();
+            preKeyState.path("preKeys").forEach(preKeys::add);
+            account.setKeys(preKeyState.path("identityKey").asText(), preKeyState.get("signedPreKey"), preKeys);
+            return HttpResponse.empty(204);
+        }
+        if ("GET".equals(method) && "/v2/keys/signed".equals(path)) {
+            final var signedPreKey = account.getSignedPreKey();
+            return signedPreKey == null ? HttpResponse.empty(404) : HttpResponse.json(signedPreKey);
+        }
+        if ("PUT".equals(method) && "/v2/keys/signed".equals(path)) {
+            account.setSignedPreKey(objectMapper.readTree(request.getBody()));
+            return HttpResponse.empty(204);
+        }
+        if ("GET".equals(method) && (matcher = KEYS.matcher(path)).matches()) {
+            return getPreKeyBundle(matcher.group(1), matcher.group(2));
+        }
+        if ("GET".equals(method) && "/v1/messages".equals(path)) {
+            return getMessages(account);
+        }
+        if ("DELETE".equals(method) && (matcher = MESSAGE_ACK.matcher(path)).matches()) {
+            account.removeMessage(matcher.group(1));
+            return HttpResponse.empty(204);
+        }
+        if ("PUT".equals(method) && "/v1/profile".equals(path)) {
+            return setProfile(request, account);
+        }
+
+        return HttpResponse.empty(404);
+    }
+
+    void handleWebSocket(final HttpRequest request, final InputStream in, final OutputStream out) throws IOException {
+        Account account = null;
+        final var login = request.getQueryParameter("login");
+        if (login != null) {
+            account = getAccount(login, request.getQueryParameter("password"));
+            if (account == null) {
+                out.write("HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(
+                        StandardCharsets.ISO_8859_1));
+                out.flush();
+                return;
+            }
+        }
+        WebSocketConnection.writeHandshake(out, request.getHeader("sec-websocket-key"));
+        new WebSocketConnection(this, account, in, out).run();
+    }
+
+    private HttpResponse verifyAccount(final HttpRequest request) throws IOException {
+        final var credentials = getCredentials(request);
+        if (credentials == null || !credentials[0].startsWith("+")) {
+            return HttpResponse.empty(401);
+        }
+        final var account = state.getOrCreateAccount(credentials[0]);
+        account.register(credentials[1], objectMapper.readTree(request.getBody()));
+        logger.info("Registered {} as {}", account.getNumber(), account.getUuid());
+
+        final var response = objectMapper.createObjectNode();
+        response.put("uuid", account.getUuid().toString());
+        response.put("storageCapable", false);
+        return HttpResponse.json(response);
+    }
+
+    private HttpResponse getPreKeyBundle(final String identifier, final String deviceId) {
+        final var account = state.getAccount(identifier);
+        if (account == null || account.getIdentityKey() == null) {
+            return HttpResponse.empty(404);
+        }
+        if (!"*".equals(deviceId) && !String.valueOf(Account.DEVICE_ID).equals(deviceId)) {
+            return HttpResponse.empty(404);
+        }
+
+        final var response = objectMapper.createObjectNode();
+        response.put("identityKey", account.getIdentityKey());
+        final var device = response.putArray("devices").addObject();
+        device.put("deviceId", Account.DEVICE_ID);
+        device.put("registrationId", account.getRegistrationId());
+        device.set("signedPreKey", account.getSignedPreKey());
+        device.set("preKey", account.takePreKey());
+        return HttpResponse.json(response);
+    }
+
+    private HttpResponse sendMessage(
+            final HttpRequest request, final Account sender, final String destination
+    ) throws IOException {
+        final var recipient = state.getAccount(destination);
+        if (recipient == null) {
+            return HttpResponse.empty(404);
+        }
+        if (sender == null && !isUnidentifiedAccessAllowed(request, recipient)) {
+            return HttpResponse.empty(401);
+        }
+
+        final var messageList = objectMapper.readTree(request.getBody());
+        final var messages = messageList.path("messages");
+        final var deviceIds = new HashSet<Integer>();
+        for (var message : messages) {
+            deviceIds.add(message.path("destinationDeviceId").asInt());
+        }
+        final var missingDevices = deviceIds.contains(Account.DEVICE_ID)
+                ? List.<Integer>of()
+                : List.of(Account.DEVICE_ID);
+        deviceIds.remove(Account.DEVICE_ID);
+        if (!missingDevices.isEmpty() || !deviceIds.isEmpty()) {
+            final var response = objectMapper.createObjectNode();
+            response.set("missingDevices", objectMapper.valueToTree(missingDevices));
+            response.set("extraDevices", objectMapper.valueToTree(deviceIds));
+            return HttpResponse.json(409, response);
+        }
+
+        for (var message : messages) {
+            if (message.path("destinationRegistrationId").asInt() != recipient.getRegistrationId()) {
+                final var response = objectMapper.createObjectNode();
+                response.putArray("staleDevices").add(Account.DEVICE_ID);
+                return HttpResponse.json(410, response);
+            }
+        }
+
+        for (var message : messages) {
+            final var type = SignalServiceProtos.Envelope.Type.forNumber(message.path("type").asInt());
+            if (type == null || (sender == null) != (type == SignalServiceProtos.Envelope.Type.UNIDENTIFIED_SENDER)) {
+                return HttpResponse.empty(400);
+            }
+            final var guid = UUID.randomUUID().toString();
+            final var envelope = SignalServiceProtos.Envelope.newBuilder()
+                    .setType(type)
+                    .setTimestamp(messageList.path("timestamp").asLong())
+                    .setContent(ByteString.copyFrom(Base64.getDecoder().decode(message.path("content").asText())))
+                    .setServerGuid(guid)
+                    .setServerTimestamp(System.currentTimeMillis());
+            if (sender != null) {
+                envelope.setSourceUuid(sender.getUuid().toString())
+                        .setSourceE164(sender.getNumber())
+                        .setSourceDevice(Account.DEVICE_ID);
+            }
+            final var built = envelope.build();
+            final var connection = recipient.addMessage(guid, built);
+            if (connection != null) {
+                connection.deliver(guid, built);
+            }
+        }
+
+        final var response = objectMapper.createObjectNode();
+        response.put("needsSync", false);
+        return HttpResponse.json(response);
+    }
+
+    private boolean isUnidentifiedAccessAllowed(final HttpRequest request, final Account recipient) {
+        if (recipient.isUnrestrictedUnidentifiedAccess()) {
+            return true;
+        }
+        final var accessKeyHeader = request.getHeader("unidentified-access-key");
+        final var accessKey = recipient.getUnidentifiedAccessKey();
+        return accessKeyHeader != null && accessKey != null && MessageDigest.isEqual(Base64.getDecoder()
+                .decode(accessKeyHeader), accessKey);
+    }
+
+    private HttpResponse getMessages(final Account account) {
+        final var response = objectMapper.createObjectNode();
+        final var messages = response.putArray("messages");
+        for (var envelope : account.getMessages().values()) {
+            final var message = messages.addObject();
+            message.put("type", envelope.getType().getNumber());
+            message.put("timestamp", envelope.getTimestamp());
+            if (envelope.hasSourceUuid()) {
+                message.put("source", envelope.getSourceE164());
+                message.put("sourceUuid", envelope.getSourceUuid());
+                message.put("sourceDevice", envelope.getSourceDevice());
+            }
+            message.put("content", Base64.getEncoder().encodeToString(envelope.getContent().toByteArray()));
+            message.put("serverTimestamp", envelope.getServerTimestamp());
+            message.put("guid", envelope.getServerGuid());
+        }
+        response.put("more", false);
+        return HttpResponse.json(response);
+    }
+
+    private HttpResponse setProfile(final HttpRequest request, final Account account) throws IOException {
+        final var profile = (ObjectNode) objectMapper.readTree(request.getBody());
+        if (!profile.path("avatar").asBoolean()) {
+            account.setProfile(profile.path("version").asText(), profile);
+            return HttpResponse.empty(200);
+        }
+
+        final var key = "profiles/" + randomId();
+        profile.put("avatarKey", key);
+        account.setProfile(profile.path("version").asText(), profile);
+        return HttpResponse.json(createUploadForm(key));
+    }
+
+    private HttpResponse getProfile(final String identifier, final String version) {
+        final var account = state.getAccount(identifier);
+        if (account == null) {
+            return HttpResponse.empty(404);
+        }
+        final var profile = account.getProfile(version);
+
+        final var response = objectMapper.createObjectNode();
+        response.put("uuid", account.getUuid().toString());
+        response.put("identityKey", account.getIdentityKey());
+        if (profile != null) {
+            response.set("name", profile.get("name"));
+            response.set("about", profile.get("about"));
+            response.set("aboutEmoji", profile.get("aboutEmoji"));
+            response.set("paymentAddress", profile.get("paymentAddress"));
+            response.set("avatar", profile.get("avatarKey"));
+        }
+        // Without sender certificates, sealed sender isn't possible
+        response.putNull("unidentifiedAccess");
+        response.put("unrestrictedUnidentifiedAccess", false);
+        final var capabilities = response.putObject("capabilities");
+        capabilities.put("gv2", false);
+        capabilities.put("storage", false);
+        capabilities.put("gv1-migration", false);
+        capabilities.put("senderKey", false);
+        capabilities.put("announcementGroup", false);
+        capabilities.put("changeNumber", false);
+        response.putNull("credential");
+        return HttpResponse.json(response);
+    }
+
+    private HttpResponse getAttachmentUploadForm() {
+        final var attachmentId = String.valueOf(random.nextLong() & Long.MAX_VALUE);
+        final var form = createUploadForm("attachments/" + attachmentId);
+        form.put("attachmentId", attachmentId);
+        form.put("attachmentIdString", attachmentId);
+        return HttpResponse.json(form);
+    }
+
+    private HttpResponse getResumableUploadForm(final HttpRequest request) {
+        final var key = String.valueOf(random.nextLong() & Long.MAX_VALUE);
+        final var form = objectMapper.createObjectNode();
+        form.put("cdn", 2);
+        form.put("key", key);
+        form.putObject("headers");
+        form.put("signedUploadLocation", getResumableUploadUrl(request, key));
+        return HttpResponse.json(form);
+    }
+
+    private static String getResumableUploadUrl(final HttpRequest request, final String key) {
+        final var host = request.getHeader("host");
+        return "http://" + (host == null ? "localhost" : host) + "/resumable/" + key;
+    }
+
+    /**
+     * Handles the upload status requests, with a content range without start and end, and the upload of the remaining
+     * bytes, like the resumable uploads of cdn 2.
+     */
+    private HttpResponse resumeUpload(final HttpRequest request, final String key) {
+        final var upload = state.getResumableUpload(key);
+        if (upload == null) {
+            return HttpResponse.empty(404);
+        }
+        final var contentRange = request.getHeader("content-range");
+        final var matcher = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange);
+        if (matcher == null || !matcher.matches()) {
+            return HttpResponse.empty(400);
+        }
+        final var length = Long.parseLong(matcher.group(3));
+
+        synchronized (upload) {
+            if (matcher.group(1) != null) {
+                if (Long.parseLong(matcher.group(1)) != upload.size()) {
+                    return HttpResponse.empty(416);
+                }
+                final var body = request.getBody();
+                if (uploadDropAfter > 0 && body.length > uploadDropAfter) {
+                    upload.write(body, 0, (int) uploadDropAfter);
+                    logger.debug("Dropping upload {} at {}/{} bytes", key, upload.size(), length);
+                    return HttpResponse.drop();
+                }
+                upload.write(body, 0, body.length);
+            }
+
+            if (upload.size() >= length) {
+                state.putCdnObject("attachments/" + key, upload.toByteArray());
+                return HttpResponse.empty(200);
+            }
+            final var response = HttpResponse.empty(308);
+            return upload.size() == 0 ? response : response.withHeader("Range", "bytes=0-" + (upload.size() - 1));
+        }
+    }
+
+    private ObjectNode createUploadForm(final String key) {
+        final var form = objectMapper.createObjectNode();
+        form.put("url", "");
+        form.put("key", key);
+        form.put("credential", "mock");
+        form.put("acl", "private");
+        form.put("algorithm", "AWS4-HMAC-SHA256");
+        form.put("date", "20210101T000000Z");
+        form.put("policy", "mock");
+        form.put("signature", "mock");
+        return form;
+    }
+
+    private HttpResponse uploadToCdn(final HttpRequest request) {
+        final var contentType = request.getHeader("content-type");
+        final var boundaryStart = contentType == null ? -1 : contentType.indexOf("boundary=");
+        if (boundaryStart == -1) {
+            return HttpResponse.empty(400);
+        }
+        final var boundary = contentType.substring(boundaryStart + "boundary=".length()).replace("\"", "");
+        final var parts = parseMultipart(request.getBody(), boundary);
+        final var key = parts.get("key");
+        final var file = parts.get("file");
+        if (key == null || file == null) {
+            return HttpResponse.empty(400);
+        }
+        state.putCdnObject(new String(key, StandardCharsets.UTF_8), file);
+        return HttpResponse.empty(204);
+    }
+
+    /**
+     * @return the parts of a multipart/form-data body by their name
+     */
+    private static Map<String, byte[]> parseMultipart(final byte[] body, final String boundary) {
+        final var delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        final var headerEnd = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        final var parts = new HashMap<String, byte[]>();
+
+        var position = indexOf(body, delimiter, 0);
+        while (position != -1) {
+            final var partStart = position + delimiter.length + 2;
+            final var next = indexOf(body, delimiter, partStart);
+            if (next == -1) {
+                break;
+            }
+            final var contentStart = indexOf(body, headerEnd, partStart);
+            if (contentStart != -1 && contentStart < next) {
+                final var headers = new String(body, partStart, contentStart - partStart, StandardCharsets.ISO_8859_1);
+                final var nameMatcher = Pattern.compile("name=\"([^\"]*)\"").matcher(headers);
+                if (nameMatcher.find()) {
+                    // The content is followed by CRLF before the next delimiter
+                    parts.put(nameMatcher.group(1),
+                            Arrays.copyOfRange(body, contentStart + headerEnd.length, next - 2));
+                }
+            }
+            position = next;
+        }
+        return parts;
+    }
+
+    private static int indexOf(final byte[] data, final byte[] pattern, final int from) {
+        outer:
+        for (var i = from; i <= data.length - pattern.length; i++) {
+            for (var j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private Account authenticate(final HttpRequest request) {
+        final var credentials = getCredentials(request);
+        return credentials == null ? null : getAccount(credentials[0], credentials[1]);
+    }
+
+    private Account getAccount(String username, final String password) {
+        final var deviceSeparator = username.indexOf('.');
+        if (deviceSeparator != -1) {
+            username = username.substring(0, deviceSeparator);
+        }
+        final var account = state.getAccount(username);
+        return account != null && account.checkPassword(password) ? account : null;
+    }
+
+    /**
+     * @return the user name and password of the basic authorization header or null, if the request has none
+     */
+    private static String[] getCredentials(final HttpRequest request) {
+        final var authorization = request.getHeader("authorization");
+        if (authorization == null || !authorization.startsWith("Basic ")) {
+            return null;
+        }
+        final var decoded = new String(Base64.getDecoder().decode(authorization.substring(6).trim()),
+                StandardCharsets.UTF_8);
+        final var separator = decoded.indexOf(':');
+        return separator == -1 ? null : new String[]{decoded.substring(0, separator), decoded.substring(separator + 1)};
+    }
+
+    private String randomId() {
+        final var bytes = new byte[16];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
@@ -0,0 +1,66 @@
+package org.asamk.signal.mockservice;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory state of the mock service, lost when it is stopped.
+ */
+class ServiceState {
+
+    private final Map<String, Account> accountsByNumber = new ConcurrentHashMap<>();
+    private final Map<UUID, Account> accountsByUuid = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> cdnObjects = new ConcurrentHashMap<>();
+    private final Map<String, ByteArrayOutputStream> resumableUploads = new ConcurrentHashMap<>();
+
+    /**
+     * @return the existing account for the number, or a new account
+     */
+    Account getOrCreateAccount(final String number) {
+        return accountsByNumber.computeIfAbsent(number, n -> {
+            final var account = new Account(UUID.randomUUID(), n);
+            accountsByUuid.put(account.getUuid(), account);
+            return account;
+        });
+    }
+
+    /**
+     * @param identifier the phone number or uuid of the account
+     * @return the account or null, if no account is registered for the identifier
+     */
+    Account getAccount(final String identifier) {
+        if (identifier.startsWith("+")) {
+            return accountsByNumber.get(identifier);
+        }
+        try {
+            return accountsByUuid.get(UUID.fromString(identifier));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    int getAccountCount() {
+        return accountsByUuid.size();
+    }
+
+    void putCdnObject(final String key, final byte[] data) {
+        cdnObjects.put(key, data);
+    }
+
+    byte[] getCdnObject(final String key) {
+        return cdnObjects.get(key);
+    }
+
+    void createResumableUpload(final String key) {
+        resumableUploads.putIfAbsent(key, new ByteArrayOutputStream());
+    }
+
+    /**
+     * @return the data received so far or null, if the upload hasn't been created
+     */
+    ByteArrayOutputStream getResumableUpload(final String key) {
+        return resumableUploads.get(key);
+    }
+}
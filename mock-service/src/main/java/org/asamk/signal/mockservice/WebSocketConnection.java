@@ -0,0 +1,277 @@
+package org.asamk.signal.mockservice;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos;
+import org.whispersystems.signalservice.internal.websocket.WebSocketProtos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Websocket connection of a client, speaking the request/response protocol of the Signal service.
+ * <p>
+ * Requests of the client are passed to the router. For authenticated connections the queued messages of the account
+ * are pushed to the client and removed once the client acknowledged them.
+ */
+class WebSocketConnection {
+
+    private final static Logger logger = LoggerFactory.getLogger(WebSocketConnection.class);
+
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    private final Router router;
+    private final Account account;
+    private final DataInputStream in;
+    private final OutputStream out;
+
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private final Map<Long, String> pendingMessages = new ConcurrentHashMap<>();
+    private final Set<String> deliveredMessages = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /**
+     * @param account the authenticated account or null, for an unidentified connection
+     */
+    WebSocketConnection(final Router router, final Account account, final InputStream in, final OutputStream out) {
+        this.router = router;
+        this.account = account;
+        this.in = new DataInputStream(in);
+        this.out = out;
+    }
+
+    static void writeHandshake(final OutputStream out, final String key) throws IOException {
+        final String accept;
+        try {
+            final var digest = MessageDigest.getInstance("SHA-1")
+                    .digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            accept = Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        out.write(("HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: "
+                + accept
+                + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    /**
+     * Handles the connection until it is closed.
+     */
+    void run() {
+        try {
+            if (account != null) {
+                final var previous = account.setConnection(this);
+                if (previous != null) {
+                    previous.close();
+                }
+                for (var entry : account.getMessages().entrySet()) {
+                    deliver(entry.getKey(), entry.getValue());
+                }
+                sendRequest("PUT", "/api/v1/queue/empty", null);
+            }
+            readMessages();
+        } catch (IOException e) {
+            logger.debug("Websocket connection closed: {}", e.getMessage());
+        } finally {
+            closed = true;
+            if (account != null) {
+                account.removeConnection(this);
+            }
+        }
+    }
+
+    /**
+     * Pushes a message to the client, unless it has already been pushed on this connection.
+     */
+    void deliver(final String guid, final SignalServiceProtos.Envelope envelope) {
+        if (closed || !deliveredMessages.add(guid)) {
+            return;
+        }
+        try {
+            final var id = sendRequest("PUT", "/api/v1/message", envelope.toByteString());
+            pendingMessages.put(id, guid);
+        } catch (IOException e) {
+            logger.debug("Failed to deliver message: {}", e.getMessage());
+            close();
+        }
+    }
+
+    void close() {
+        closed = true;
+        try {
+            writeFrame(OPCODE_CLOSE, new byte[0]);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void readMessages() throws IOException {
+        final var message = new ByteArrayOutputStream();
+        while (!closed) {
+            final var header = in.readUnsignedByte();
+            final var opcode = header & 0x0F;
+            final var payload = readPayload();
+            switch (opcode) {
+                case OPCODE_CLOSE:
+                    close();
+                    return;
+                case OPCODE_PING:
+                    writeFrame(OPCODE_PONG, payload);
+                    break;
+                case OPCODE_PONG:
+                    break;
+                default:
+                    if (opcode != OPCODE_CONTINUATION) {
+                        message.reset();
+                    }
+                    message.write(payload);
+                    if ((header & 0x80) != 0) {
+                        handleMessage(message.toByteArray());
+                    }
+            }
+        }
+    }
+
+    private byte[] readPayload() throws IOException {
+        final var lengthByte = in.readUnsignedByte();
+        final var masked = (lengthByte & 0x80) != 0;
+        long length = lengthByte & 0x7F;
+        if (length == 126) {
+            length = in.readUnsignedShort();
+        } else if (length == 127) {
+            length = in.readLong();
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Frame too large");
+        }
+        final var mask = masked ? HttpServer.readFully(in, 4) : null;
+        final var payload = HttpServer.readFully(in, (int) length);
+        if (mask != null) {
+            for (var i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i % 4];
+            }
+        }
+        return payload;
+    }
+
+    private void handleMessage(final byte[] data) throws IOException {
+        final WebSocketProtos.WebSocketMessage message;
+        try {
+            message = WebSocketProtos.WebSocketMessage.parseFrom(data);
+        } catch (InvalidProtocolBufferException e) {
+            logger.warn("Received invalid websocket message: {}", e.getMessage());
+            return;
+        }
+
+        if (message.getType() == WebSocketProtos.WebSocketMessage.Type.RESPONSE) {
+            final var response = message.getResponse();
+            final var guid = pendingMessages.remove(response.getId());
+            if (guid != null && response.getStatus() == 200) {
+                account.removeMessage(guid);
+            }
+        } else if (message.getType() == WebSocketProtos.WebSocketMessage.Type.REQUEST) {
+            handleRequest(message.getRequest());
+        }
+    }
+
+    private void handleRequest(final WebSocketProtos.WebSocketRequestMessage request) throws IOException {
+        final var headers = new HashMap<String, String>();
+        for (var header : request.getHeadersList()) {
+            final var separator = header.indexOf(':');
+            if (separator > 0) {
+                headers.put(header.substring(0, separator).trim().toLowerCase(),
+                        header.substring(separator + 1).trim());
+            }
+        }
+        final var httpRequest = new HttpRequest(request.getVerb(),
+                request.getPath(),
+                headers,
+                request.getBody().toByteArray());
+
+        HttpResponse response;
+        try {
+            response = router.handle(httpRequest, account);
+        } catch (Exception e) {
+            logger.warn("Failed to handle request {} {}", request.getVerb(), request.getPath(), e);
+            response = HttpResponse.empty(500);
+        }
+
+        final var responseMessage = WebSocketProtos.WebSocketResponseMessage.newBuilder()
+                .setId(request.getId())
+                .setStatus(response.getStatus())
+                .setMessage(response.getReason())
+                .setBody(ByteString.copyFrom(response.getBody()));
+        if (response.getContentType() != null) {
+            responseMessage.addHeaders("Content-Type:" + response.getContentType());
+        }
+        writeMessage(WebSocketProtos.WebSocketMessage.newBuilder()
+                .setType(WebSocketProtos.WebSocketMessage.Type.RESPONSE)
+                .setResponse(responseMessage)
+                .build());
+    }
+
+    private long sendRequest(final String verb, final String path, final ByteString body) throws IOException {
+        final var id = nextRequestId.getAndIncrement();
+        final var request = WebSocketProtos.WebSocketRequestMessage.newBuilder()
+                .setId(id)
+                .setVerb(verb)
+                .setPath(path)
+                .addHeaders("X-Signal-Key: false")
+                .addHeaders("X-Signal-Timestamp: " + System.currentTimeMillis());
+        if (body != null) {
+            request.setBody(body);
+        }
+        writeMessage(WebSocketProtos.WebSocketMessage.newBuilder()
+                .setType(WebSocketProtos.WebSocketMessage.Type.REQUEST)
+                .setRequest(request)
+                .build());
+        return id;
+    }
+
+    private void writeMessage(final WebSocketProtos.WebSocketMessage message) throws IOException {
+        writeFrame(OPCODE_BINARY, message.toByteArray());
+    }
+
+    private void writeFrame(final int opcode, final byte[] payload) throws IOException {
+        synchronized (out) {
+            out.write(0x80 | opcode);
+            if (payload.length < 126) {
+                out.write(payload.length);
+            } else if (payload.length <= 0xFFFF) {
+                out.write(126);
+                out.write(payload.length >>> 8);
+                out.write(payload.length);
+            } else {
+                out.write(127);
+                for (var shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int) ((long) payload.length >>> shift));
+                }
+            }
+            out.write(payload);
+            out.flush();
+        }
+    }
+}
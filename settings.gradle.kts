@@ -1,5 +1,6 @@
 rootProject.name = "kx-signalcli"
 include("lib")
+include("mock-service")
 
 
 pluginManagement {
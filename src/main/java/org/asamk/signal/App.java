@@ -22,7 +22,11 @@ import org.asamk.signal.commands.exceptions.UserErrorException;
 import org.asamk.signal.manager.Manager;
 import org.asamk.signal.manager.NotRegisteredException;
 import org.asamk.signal.manager.ProvisioningManager;
+import org.asamk.signal.manager.ReceiveBuffer;
 import org.asamk.signal.manager.RegistrationManager;
+import org.asamk.signal.manager.SendExecutor;
+import org.asamk.signal.manager.api.LoadSheddingPolicy;
+import org.asamk.signal.manager.api.SendRateLimit;
 import org.asamk.signal.manager.config.ServiceConfig;
 import org.asamk.signal.manager.config.ServiceEnvironment;
 import org.asamk.signal.manager.storage.identities.TrustNewIdentity;
@@ -81,6 +85,44 @@ public class App {
                 .type(Arguments.enumStringType(TrustNewIdentityCli.class))
                 .setDefault(TrustNewIdentityCli.ON_FIRST_USE);
 
+        parser.addArgument("--send-concurrency")
+                .help("Maximum number of recipients that are sent to at the same time.")
+                .type(int.class)
+                .setDefault(SendExecutor.DEFAULT_CONCURRENCY);
+        parser.addArgument("--send-rate-limit")
+                .help("Maximum number of messages sent per second by the account (default: no limit).")
+                .type(double.class)
+                .setDefault(0.0);
+        parser.addArgument("--send-rate-limit-per-recipient")
+                .help("Maximum number of messages sent per second to a single recipient (default: no limit).")
+                .type(double.class)
+                .setDefault(0.0);
+        parser.addArgument("--send-rate-limit-fail-fast")
+                .help("Fail sends immediately with a network failure when the send rate limit is reached, instead of waiting.")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--receive-buffer-low-watermark")
+                .help("Number of received messages waiting for processing, below which they are kept in memory again.")
+                .type(int.class)
+                .setDefault(ReceiveBuffer.DEFAULT_LOW_WATERMARK);
+        parser.addArgument("--receive-buffer-high-watermark")
+                .help("Number of received messages waiting for processing, above which they are only kept on disk.")
+                .type(int.class)
+                .setDefault(ReceiveBuffer.DEFAULT_HIGH_WATERMARK);
+        parser.addArgument("--load-shedding")
+                .help("Choose which ephemeral events may be dropped when received messages are processed too slowly.")
+                .type(Arguments.enumStringType(LoadSheddingCli.class))
+                .setDefault(LoadSheddingCli.NONE);
+        parser.addArgument("--load-shedding-lag-threshold")
+                .help("Processing delay in milliseconds, above which events are dropped with --load-shedding.")
+                .type(long.class)
+                .setDefault(LoadSheddingPolicy.DEFAULT.getLagThreshold());
+        parser.addArgument("--cache-attachment-uploads")
+                .help("Reuse recently uploaded attachments with identical content instead of uploading them again.")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--outbox")
+                .help("Persist sent messages and retry recipients that failed due to network errors in the background.")
+                .action(Arguments.storeTrue());
+
         var subparsers = parser.addSubparsers().title("subcommands").dest("command");
 
         Commands.getCommandSubparserAttachers().forEach((key, value) -> {
@@ -142,15 +184,27 @@ public class App {
         }
 
         final var serviceEnvironmentCli = ns.<ServiceEnvironmentCli>get("service-environment");
-        final var serviceEnvironment = serviceEnvironmentCli == ServiceEnvironmentCli.LIVE
-                ? ServiceEnvironment.LIVE
-                : ServiceEnvironment.SANDBOX;
+        final ServiceEnvironment serviceEnvironment;
+        switch (serviceEnvironmentCli) {
+            case SANDBOX:
+                serviceEnvironment = ServiceEnvironment.SANDBOX;
+                break;
+            case LOCAL:
+                serviceEnvironment = ServiceEnvironment.LOCAL;
+                break;
+            default:
+                serviceEnvironment = ServiceEnvironment.LIVE;
+                break;
+        }
 
         final var trustNewIdentityCli = ns.<TrustNewIdentityCli>get("trust-new-identities");
         final var trustNewIdentity = trustNewIdentityCli == TrustNewIdentityCli.ON_FIRST_USE
                 ? TrustNewIdentity.ON_FIRST_USE
                 : trustNewIdentityCli == TrustNewIdentityCli.ALWAYS ? TrustNewIdentity.ALWAYS : TrustNewIdentity.NEVER;
 
+        // Validated once, before any account is loaded
+        validateManagerOptions();
+
         if (command instanceof ProvisioningCommand) {
             if (username != null) {
                 throw new UserErrorException("You cannot specify a username (phone number) when linking");
@@ -309,15 +363,59 @@ public class App {
                     + ")", e);
         }
 
+        var success = false;
         try {
+            manager.setSendConcurrency(ns.getInt("send-concurrency"));
+            manager.setSendRateLimit(new SendRateLimit(ns.getDouble("send-rate-limit"),
+                    ns.getDouble("send-rate-limit-per-recipient"),
+                    ns.getBoolean("send-rate-limit-fail-fast")));
+            manager.setReceiveBufferWatermarks(ns.getInt("receive-buffer-low-watermark"),
+                    ns.getInt("receive-buffer-high-watermark"));
+            final var loadShedding = ns.<LoadSheddingCli>get("load-shedding");
+            manager.setLoadSheddingPolicy(new LoadSheddingPolicy(ns.getLong("load-shedding-lag-threshold"),
+                    loadShedding == LoadSheddingCli.TYPING || loadShedding == LoadSheddingCli.ALL,
+                    loadShedding == LoadSheddingCli.RECEIPTS || loadShedding == LoadSheddingCli.ALL));
+            manager.setAttachmentUploadCacheEnabled(ns.getBoolean("cache-attachment-uploads"));
+            manager.setOutboxEnabled(ns.getBoolean("outbox"));
+
             manager.checkAccountState();
+            success = true;
         } catch (IOException e) {
             throw new IOErrorException("Error while checking account " + username + ": " + e.getMessage(), e);
+        } finally {
+            if (!success) {
+                try {
+                    manager.close();
+                } catch (IOException e) {
+                    logger.warn("Cleanup failed", e);
+                }
+            }
         }
 
         return manager;
     }
 
+    /**
+     * Validates the global options that are applied to every loaded manager.
+     */
+    private void validateManagerOptions() throws UserErrorException {
+        if (ns.getInt("send-concurrency") < 1) {
+            throw new UserErrorException("Send concurrency must be at least 1");
+        }
+        if (ns.getDouble("send-rate-limit") < 0 || ns.getDouble("send-rate-limit-per-recipient") < 0) {
+            throw new UserErrorException("Send rate limit must not be negative");
+        }
+        final var receiveBufferLowWatermark = ns.getInt("receive-buffer-low-watermark");
+        final var receiveBufferHighWatermark = ns.getInt("receive-buffer-high-watermark");
+        if (receiveBufferLowWatermark < 0 || receiveBufferHighWatermark < receiveBufferLowWatermark) {
+            throw new UserErrorException(
+                    "Receive buffer low watermark must not be negative or greater than the high watermark");
+        }
+        if (ns.getLong("load-shedding-lag-threshold") < 0) {
+            throw new UserErrorException("Load shedding lag threshold must not be negative");
+        }
+    }
+
     private void initDbusClient(
             final Command command, final String username, final boolean systemBus, final OutputWriter outputWriter
     ) throws CommandException {
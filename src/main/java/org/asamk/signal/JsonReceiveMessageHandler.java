@@ -1,15 +1,12 @@
 package org.asamk.signal;
 
-import org.asamk.signal.json.JsonError;
-import org.asamk.signal.json.JsonMessageEnvelope;
+import org.asamk.signal.json.JsonReceivedEnvelope;
 import org.asamk.signal.manager.Manager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.signalservice.api.messages.SignalServiceContent;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 
-import java.util.HashMap;
-
 public class JsonReceiveMessageHandler implements Manager.ReceiveMessageHandler {
 
     private final static Logger logger = LoggerFactory.getLogger(JsonReceiveMessageHandler.class);
@@ -24,15 +21,17 @@ public class JsonReceiveMessageHandler implements Manager.ReceiveMessageHandler
 
     @Override
     public void handleMessage(SignalServiceEnvelope envelope, SignalServiceContent content, Throwable exception) {
-        final var object = new HashMap<String, Object>();
-        if (exception != null) {
-            object.put("error", new JsonError(exception));
-        }
+        jsonWriter.write(new JsonReceivedEnvelope(envelope, content, exception, m));
+    }
 
-        if (envelope != null) {
-            object.put("envelope", new JsonMessageEnvelope(envelope, content, exception, m));
-        }
+    @Override
+    public void setCatchingUp(final boolean catchingUp) {
+        // Write the old messages in batches, new messages immediately
+        jsonWriter.setBuffered(catchingUp);
+    }
 
-        jsonWriter.write(object);
+    @Override
+    public void flush() {
+        jsonWriter.flush();
     }
 }
@@ -17,6 +17,8 @@ public class JsonWriterImpl implements JsonWriter {
     private final Writer writer;
     private final ObjectMapper objectMapper;
 
+    private boolean buffered;
+
     public JsonWriterImpl(final OutputStream outputStream) {
         this.writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
 
@@ -32,6 +34,29 @@ public class JsonWriterImpl implements JsonWriter {
                 throw new AssertionError(e);
             }
             writer.write(System.lineSeparator());
+            if (!buffered) {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public synchronized void setBuffered(final boolean buffered) {
+        this.buffered = buffered;
+        if (!buffered) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        try {
             writer.flush();
         } catch (IOException e) {
             throw new AssertionError(e);
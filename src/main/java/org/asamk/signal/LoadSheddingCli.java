@@ -0,0 +1,28 @@
+package org.asamk.signal;
+
+public enum LoadSheddingCli {
+    NONE {
+        @Override
+        public String toString() {
+            return "none";
+        }
+    },
+    TYPING {
+        @Override
+        public String toString() {
+            return "typing";
+        }
+    },
+    RECEIPTS {
+        @Override
+        public String toString() {
+            return "receipts";
+        }
+    },
+    ALL {
+        @Override
+        public String toString() {
+            return "all";
+        }
+    },
+}
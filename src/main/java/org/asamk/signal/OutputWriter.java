@@ -2,4 +2,15 @@ package org.asamk.signal;
 
 public interface OutputWriter {
 
+    /**
+     * While buffered, the output isn't flushed after every write, but only when buffering is disabled again.
+     */
+    default void setBuffered(boolean buffered) {
+    }
+
+    /**
+     * Writes the buffered output.
+     */
+    default void flush() {
+    }
 }
@@ -14,6 +14,8 @@ public final class PlainTextWriterImpl implements PlainTextWriter {
 
     private PlainTextWriter indentedWriter;
 
+    private boolean buffered;
+
     public PlainTextWriterImpl(final OutputStream outputStream) {
         this.writer = new BufferedWriter(new OutputStreamWriter(outputStream));
     }
@@ -25,6 +27,29 @@ public final class PlainTextWriterImpl implements PlainTextWriter {
         try {
             writer.write(message);
             writer.write(System.lineSeparator());
+            if (!buffered) {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public void setBuffered(final boolean buffered) {
+        this.buffered = buffered;
+        if (!buffered) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        try {
             writer.flush();
         } catch (IOException e) {
             throw new AssertionError(e);
@@ -126,6 +126,17 @@ public class ReceiveMessageHandler implements Manager.ReceiveMessageHandler {
         writer.println();
     }
 
+    @Override
+    public void setCatchingUp(final boolean catchingUp) {
+        // Write the old messages in batches, new messages immediately
+        writer.setBuffered(catchingUp);
+    }
+
+    @Override
+    public void flush() {
+        writer.flush();
+    }
+
     private void printDataMessage(
             PlainTextWriter writer, SignalServiceDataMessage message
     ) {
@@ -13,4 +13,10 @@ public enum ServiceEnvironmentCli {
             return "sandbox";
         }
     },
+    LOCAL {
+        @Override
+        public String toString() {
+            return "local";
+        }
+    },
 }
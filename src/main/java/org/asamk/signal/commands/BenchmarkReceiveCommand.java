@@ -0,0 +1,131 @@
+package org.asamk.signal.commands;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+
+import org.asamk.signal.JsonWriter;
+import org.asamk.signal.OutputType;
+import org.asamk.signal.OutputWriter;
+import org.asamk.signal.PlainTextWriter;
+import org.asamk.signal.commands.exceptions.CommandException;
+import org.asamk.signal.commands.exceptions.IOErrorException;
+import org.asamk.signal.manager.Manager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class BenchmarkReceiveCommand implements LocalCommand {
+
+    @Override
+    public String getName() {
+        return "benchmarkReceive";
+    }
+
+    @Override
+    public void attachToSubparser(final Subparser subparser) {
+        subparser.help("Replay envelopes captured with \"receive --capture-envelopes\" and measure the receive "
+                + "performance, with a temporary copy of the account data and without network access.");
+        subparser.addArgument("corpus").help("The directory with the captured envelopes.");
+    }
+
+    @Override
+    public List<OutputType> getSupportedOutputTypes() {
+        return List.of(OutputType.PLAIN_TEXT, OutputType.JSON);
+    }
+
+    @Override
+    public void handleCommand(
+            final Namespace ns, final Manager m, final OutputWriter outputWriter
+    ) throws CommandException {
+        final var corpusDirectory = new File(ns.getString("corpus"));
+        final var result = runBenchmark(m, corpusDirectory);
+
+        if (outputWriter instanceof PlainTextWriter) {
+            final var writer = (PlainTextWriter) outputWriter;
+            writer.println("Envelopes: {} ({} failed)", result.count, result.failed);
+            writer.println("Duration: {}ms", result.durationMillis);
+            writer.println("Throughput: {} envelopes/s", String.format("%.1f", result.envelopesPerSecond));
+            writer.println("Latency p50/p90/p99/max: {}/{}/{}/{}µs",
+                    result.latencyP50,
+                    result.latencyP90,
+                    result.latencyP99,
+                    result.latencyMax);
+            writer.println("Allocated: {} bytes", result.allocatedBytes);
+            writer.println("I/O read/written: {}/{} bytes", result.readBytes, result.writtenBytes);
+            writer.println("Sender certificate cache hits/misses: {}/{}",
+                    result.certificateCacheHits,
+                    result.certificateCacheMisses);
+        } else {
+            ((JsonWriter) outputWriter).write(result);
+        }
+    }
+
+    private JsonBenchmarkResult runBenchmark(final Manager m, final File corpusDirectory) throws IOErrorException {
+        try {
+            final var result = m.benchmarkReceive(corpusDirectory);
+            return new JsonBenchmarkResult(result.getCount(),
+                    result.getFailedCount(),
+                    result.getDurationMillis(),
+                    result.getEnvelopesPerSecond(),
+                    result.getLatencyPercentile(50),
+                    result.getLatencyPercentile(90),
+                    result.getLatencyPercentile(99),
+                    result.getLatencyPercentile(100),
+                    result.getAllocatedBytes(),
+                    result.getReadBytes(),
+                    result.getWrittenBytes(),
+                    result.getCertificateCacheHits(),
+                    result.getCertificateCacheMisses());
+        } catch (IOException e) {
+            throw new IOErrorException("Failed to replay envelopes: " + e.getMessage(), e);
+        }
+    }
+
+    private static final class JsonBenchmarkResult {
+
+        public final int count;
+        public final int failed;
+        public final long durationMillis;
+        public final double envelopesPerSecond;
+        public final long latencyP50;
+        public final long latencyP90;
+        public final long latencyP99;
+        public final long latencyMax;
+        public final long allocatedBytes;
+        public final long readBytes;
+        public final long writtenBytes;
+        public final long certificateCacheHits;
+        public final long certificateCacheMisses;
+
+        private JsonBenchmarkResult(
+                final int count,
+                final int failed,
+                final long durationMillis,
+                final double envelopesPerSecond,
+                final long latencyP50,
+                final long latencyP90,
+                final long latencyP99,
+                final long latencyMax,
+                final long allocatedBytes,
+                final long readBytes,
+                final long writtenBytes,
+                final long certificateCacheHits,
+                final long certificateCacheMisses
+        ) {
+            this.count = count;
+            this.failed = failed;
+            this.durationMillis = durationMillis;
+            this.envelopesPerSecond = envelopesPerSecond;
+            this.latencyP50 = latencyP50;
+            this.latencyP90 = latencyP90;
+            this.latencyP99 = latencyP99;
+            this.latencyMax = latencyMax;
+            this.allocatedBytes = allocatedBytes;
+            this.readBytes = readBytes;
+            this.writtenBytes = writtenBytes;
+            this.certificateCacheHits = certificateCacheHits;
+            this.certificateCacheMisses = certificateCacheMisses;
+        }
+    }
+}
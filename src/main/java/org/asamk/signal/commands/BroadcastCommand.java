@@ -0,0 +1,192 @@
+package org.asamk.signal.commands;
+
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+
+import org.asamk.signal.JsonWriter;
+import org.asamk.signal.OutputWriter;
+import org.asamk.signal.PlainTextWriter;
+import org.asamk.signal.commands.exceptions.CommandException;
+import org.asamk.signal.commands.exceptions.UnexpectedErrorException;
+import org.asamk.signal.commands.exceptions.UserErrorException;
+import org.asamk.signal.json.JsonBroadcastResult;
+import org.asamk.signal.manager.AttachmentInvalidException;
+import org.asamk.signal.manager.Manager;
+import org.asamk.signal.manager.api.BroadcastResult;
+import org.asamk.signal.manager.api.Message;
+import org.asamk.signal.manager.api.RecipientIdentifier;
+import org.asamk.signal.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.signalservice.api.util.InvalidNumberException;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+public class BroadcastCommand implements JsonRpcLocalCommand {
+
+    private final static Logger logger = LoggerFactory.getLogger(BroadcastCommand.class);
+
+    @Override
+    public String getName() {
+        return "broadcast";
+    }
+
+    @Override
+    public void attachToSubparser(final Subparser subparser) {
+        subparser.help(
+                "Send the same message to many individual recipients. The broadcast is resumed with --resume, if it is interrupted.");
+        subparser.addArgument("recipient").help("Specify the recipients' phone numbers or uuids.").nargs("*");
+        subparser.addArgument("--recipients-file")
+                .help("Read the recipients from a file, one phone number or uuid per line.");
+        subparser.addArgument("-m", "--message").help("Specify the message, if missing standard input is used.");
+        subparser.addArgument("-a", "--attachment").nargs("*").help("Add file as attachment");
+        subparser.addArgument("--rate-limit")
+                .type(double.class)
+                .setDefault(0.0)
+                .help("Maximum number of messages sent per second (default: no limit).");
+        subparser.addArgument("--resume")
+                .help("Resume the interrupted broadcasts instead of starting a new one.")
+                .action(Arguments.storeTrue());
+    }
+
+    @Override
+    public void handleCommand(
+            final Namespace ns, final Manager m, final OutputWriter outputWriter
+    ) throws CommandException {
+        final var listener = new Manager.BroadcastListener() {
+            @Override
+            public void handleResult(final BroadcastResult result) {
+                outputResult(outputWriter, result);
+            }
+
+            @Override
+            public void handleBroadcastFinished(final long broadcastId, final int failedCount) {
+                if (failedCount > 0) {
+                    logger.warn("Broadcast {} finished, {} recipients failed due to network errors. "
+                            + "Resume it with --resume to send to them again.", broadcastId, failedCount);
+                }
+            }
+        };
+        m.setBroadcastRateLimit(ns.getDouble("rate-limit"));
+        m.addBroadcastListener(listener);
+        try {
+            final List<Long> broadcastIds;
+            if (ns.getBoolean("resume")) {
+                broadcastIds = m.resumeBroadcasts();
+                if (broadcastIds.isEmpty()) {
+                    logger.info("No interrupted broadcasts found");
+                }
+            } else {
+                broadcastIds = List.of(startBroadcast(ns, m));
+            }
+            for (var broadcastId : broadcastIds) {
+                m.awaitBroadcast(broadcastId);
+            }
+        } catch (InterruptedException e) {
+            throw new UnexpectedErrorException("Broadcast interrupted", e);
+        } finally {
+            m.removeBroadcastListener(listener);
+        }
+    }
+
+    /**
+     * Starts the broadcast without waiting for it to finish, the results are sent as "broadcast" notifications.
+     */
+    @Override
+    public void handleCommand(
+            final Map<String, Object> request, final Manager m, final OutputWriter outputWriter
+    ) throws CommandException {
+        final var ns = new JsonRpcNamespace(request == null ? Map.of() : request);
+        final var rateLimit = ns.<Number>get("rate-limit");
+        if (rateLimit != null) {
+            m.setBroadcastRateLimit(rateLimit.doubleValue());
+        }
+        if (ns.getBoolean("resume")) {
+            ((JsonWriter) outputWriter).write(Map.of("broadcastIds", m.resumeBroadcasts()));
+        } else {
+            ((JsonWriter) outputWriter).write(Map.of("broadcastId", startBroadcast(ns, m)));
+        }
+    }
+
+    private long startBroadcast(final Namespace ns, final Manager m) throws CommandException {
+        final var recipients = getRecipients(ns, m.getUsername());
+        if (recipients.isEmpty()) {
+            throw new UserErrorException("No recipients given");
+        }
+
+        var messageText = ns.getString("message");
+        if (messageText == null) {
+            try {
+                messageText = IOUtils.readAll(System.in, Charset.defaultCharset());
+            } catch (IOException e) {
+                throw new UserErrorException("Failed to read message from stdin: " + e.getMessage());
+            }
+        }
+
+        List<String> attachments = ns.getList("attachment");
+        if (attachments == null) {
+            attachments = List.of();
+        }
+
+        try {
+            return m.startBroadcast(new Message(messageText, attachments), recipients);
+        } catch (AttachmentInvalidException | IOException e) {
+            throw new UnexpectedErrorException("Failed to start broadcast: " + e.getMessage() + " (" + e.getClass()
+                    .getSimpleName() + ")", e);
+        }
+    }
+
+    private List<RecipientIdentifier.Single> getRecipients(
+            final Namespace ns, final String localNumber
+    ) throws UserErrorException {
+        final var recipientStrings = new ArrayList<String>();
+        final var recipientArguments = ns.<String>getList("recipient");
+        if (recipientArguments != null) {
+            recipientStrings.addAll(recipientArguments);
+        }
+        final var recipientsFile = ns.getString("recipients-file");
+        if (recipientsFile != null) {
+            try {
+                recipientStrings.addAll(Files.readAllLines(Path.of(recipientsFile), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UserErrorException("Failed to read recipients file: " + e.getMessage());
+            }
+        }
+
+        // Keep the order of the recipients, so the results can be matched by index
+        final var recipients = new LinkedHashSet<RecipientIdentifier.Single>();
+        for (var recipientString : recipientStrings) {
+            final var identifier = recipientString.trim();
+            if (identifier.isEmpty()) {
+                continue;
+            }
+            try {
+                recipients.add(RecipientIdentifier.Single.fromString(identifier, localNumber));
+            } catch (InvalidNumberException e) {
+                logger.warn("Skipping invalid recipient “{}”: {}", identifier, e.getMessage());
+            }
+        }
+        return new ArrayList<>(recipients);
+    }
+
+    private void outputResult(final OutputWriter outputWriter, final BroadcastResult result) {
+        if (outputWriter instanceof PlainTextWriter) {
+            final var writer = (PlainTextWriter) outputWriter;
+            synchronized (writer) {
+                writer.println("{}: {}", result.getRecipient(), result.getStatus());
+            }
+        } else {
+            final var writer = (JsonWriter) outputWriter;
+            writer.write(new JsonBroadcastResult(result));
+        }
+    }
+}
@@ -11,8 +11,11 @@ public class Commands {
 
     static {
         addCommand(new AddDeviceCommand());
+        addCommand(new BenchmarkReceiveCommand());
         addCommand(new BlockCommand());
+        addCommand(new BroadcastCommand());
         addCommand(new DaemonCommand());
+        addCommand(new GetSendRateLimitStatsCommand());
         addCommand(new GetUserStatusCommand());
         addCommand(new JoinGroupCommand());
         addCommand(new JsonRpcDispatcherCommand());
@@ -21,6 +24,7 @@ public class Commands {
         addCommand(new ListDevicesCommand());
         addCommand(new ListGroupsCommand());
         addCommand(new ListIdentitiesCommand());
+        addCommand(new ListQuarantinedMessagesCommand());
         addCommand(new QuitGroupCommand());
         addCommand(new ReceiveCommand());
         addCommand(new RegisterCommand());
@@ -6,11 +6,12 @@ import net.sourceforge.argparse4j.inf.Subparser;
 
 import org.asamk.signal.DbusConfig;
 import org.asamk.signal.DbusReceiveMessageHandler;
-import org.asamk.signal.JsonDbusReceiveMessageHandler;
+import org.asamk.signal.JsonReceiveMessageHandler;
 import org.asamk.signal.JsonWriter;
 import org.asamk.signal.OutputType;
 import org.asamk.signal.OutputWriter;
 import org.asamk.signal.PlainTextWriter;
+import org.asamk.signal.ReceiveMessageHandler;
 import org.asamk.signal.commands.exceptions.CommandException;
 import org.asamk.signal.commands.exceptions.UnexpectedErrorException;
 import org.asamk.signal.dbus.DbusSignalControlImpl;
@@ -124,12 +125,15 @@ public class DaemonCommand implements MultiLocalCommand {
 
         logger.info("Exported dbus object: " + objectPath);
 
+        // Emit the dbus signals on a separate thread, so a slow dbus doesn't delay the output, unless its queue is full
+        m.addBlockingReceiveHandler(new DbusReceiveMessageHandler(m, conn, objectPath));
+
         final var thread = new Thread(() -> {
             while (!Thread.interrupted()) {
                 try {
                     final var receiveMessageHandler = outputWriter instanceof JsonWriter
-                            ? new JsonDbusReceiveMessageHandler(m, (JsonWriter) outputWriter, conn, objectPath)
-                            : new DbusReceiveMessageHandler(m, (PlainTextWriter) outputWriter, conn, objectPath);
+                            ? new JsonReceiveMessageHandler(m, (JsonWriter) outputWriter)
+                            : new ReceiveMessageHandler(m, (PlainTextWriter) outputWriter);
                     m.receiveMessages(1, TimeUnit.HOURS, false, ignoreAttachments, receiveMessageHandler);
                     break;
                 } catch (IOException e) {
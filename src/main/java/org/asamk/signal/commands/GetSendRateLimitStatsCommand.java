@@ -0,0 +1,96 @@
+package org.asamk.signal.commands;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+
+import org.asamk.signal.JsonWriter;
+import org.asamk.signal.OutputWriter;
+import org.asamk.signal.PlainTextWriter;
+import org.asamk.signal.commands.exceptions.CommandException;
+import org.asamk.signal.manager.Manager;
+
+public class GetSendRateLimitStatsCommand implements JsonRpcLocalCommand {
+
+    @Override
+    public String getName() {
+        return "getSendRateLimitStats";
+    }
+
+    @Override
+    public void attachToSubparser(final Subparser subparser) {
+        subparser.help(
+                "Show the state of the send rate limiter, mostly useful in daemon and jsonRpc mode, where it lives longer than one command.");
+    }
+
+    @Override
+    public void handleCommand(
+            final Namespace ns, final Manager m, final OutputWriter outputWriter
+    ) throws CommandException {
+        final var stats = m.getSendRateLimiterStats();
+
+        if (outputWriter instanceof PlainTextWriter) {
+            final var writer = (PlainTextWriter) outputWriter;
+            writer.println("Account rate: {} messages/s",
+                    stats.getAccountRate() > 0 ? String.format("%.2f", stats.getAccountRate()) : "unlimited");
+            writer.println("Account paused: {}ms", stats.getAccountPauseMillis());
+            writer.println("Recipients tracked/paused: {}/{}",
+                    stats.getTrackedRecipients(),
+                    stats.getPausedRecipients());
+            writer.println("Sends permitted/delayed/rejected: {}/{}/{}",
+                    stats.getPermittedCount(),
+                    stats.getDelayedCount(),
+                    stats.getRejectedCount());
+            writer.println("Total delay: {}ms", stats.getTotalDelayMillis());
+            writer.println("Rate limit responses: {}", stats.getRateLimitedCount());
+        } else {
+            ((JsonWriter) outputWriter).write(new JsonSendRateLimitStats(stats.getAccountRate(),
+                    stats.getAccountTokens(),
+                    stats.getAccountPauseMillis(),
+                    stats.getTrackedRecipients(),
+                    stats.getPausedRecipients(),
+                    stats.getPermittedCount(),
+                    stats.getDelayedCount(),
+                    stats.getRejectedCount(),
+                    stats.getRateLimitedCount(),
+                    stats.getTotalDelayMillis()));
+        }
+    }
+
+    private static final class JsonSendRateLimitStats {
+
+        public final double accountRate;
+        public final double accountTokens;
+        public final long accountPauseMillis;
+        public final int trackedRecipients;
+        public final int pausedRecipients;
+        public final long permitted;
+        public final long delayed;
+        public final long rejected;
+        public final long rateLimited;
+        public final long totalDelayMillis;
+
+        private JsonSendRateLimitStats(
+                final double accountRate,
+                final double accountTokens,
+                final long accountPauseMillis,
+                final int trackedRecipients,
+                final int pausedRecipients,
+                final long permitted,
+                final long delayed,
+                final long rejected,
+                final long rateLimited,
+                final long totalDelayMillis
+        ) {
+            this.accountRate = accountRate;
+            this.accountTokens = accountTokens;
+            this.accountPauseMillis = accountPauseMillis;
+            this.trackedRecipients = trackedRecipients;
+            this.pausedRecipients = pausedRecipients;
+            this.permitted = permitted;
+            this.delayed = delayed;
+            this.rejected = rejected;
+            this.rateLimited = rateLimited;
+            this.totalDelayMillis = totalDelayMillis;
+        }
+    }
+}
@@ -18,12 +18,15 @@ import org.asamk.signal.commands.exceptions.CommandException;
 import org.asamk.signal.commands.exceptions.IOErrorException;
 import org.asamk.signal.commands.exceptions.UntrustedKeyErrorException;
 import org.asamk.signal.commands.exceptions.UserErrorException;
+import org.asamk.signal.json.JsonBroadcastResult;
+import org.asamk.signal.json.JsonOutboxResult;
 import org.asamk.signal.jsonrpc.JsonRpcException;
 import org.asamk.signal.jsonrpc.JsonRpcReader;
 import org.asamk.signal.jsonrpc.JsonRpcRequest;
 import org.asamk.signal.jsonrpc.JsonRpcResponse;
 import org.asamk.signal.jsonrpc.JsonRpcSender;
 import org.asamk.signal.manager.Manager;
+import org.asamk.signal.manager.api.BroadcastResult;
 import org.asamk.signal.util.Util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -70,6 +73,28 @@ public class JsonRpcDispatcherCommand implements LocalCommand {
         final var objectMapper = Util.createJsonObjectMapper();
         final var jsonRpcSender = new JsonRpcSender((JsonWriter) outputWriter);
 
+        final var broadcastListener = new Manager.BroadcastListener() {
+            @Override
+            public void handleResult(final BroadcastResult result) {
+                jsonRpcSender.sendRequest(JsonRpcRequest.forNotification("broadcast",
+                        objectMapper.valueToTree(new JsonBroadcastResult(result)),
+                        null));
+            }
+
+            @Override
+            public void handleBroadcastFinished(final long broadcastId, final int failedCount) {
+                jsonRpcSender.sendRequest(JsonRpcRequest.forNotification("broadcastFinished",
+                        objectMapper.valueToTree(Map.of("broadcastId", broadcastId, "failedCount", failedCount)),
+                        null));
+            }
+        };
+        m.addBroadcastListener(broadcastListener);
+        final Manager.OutboxListener outboxListener = (results, finished) -> jsonRpcSender.sendRequest(
+                JsonRpcRequest.forNotification("outbox",
+                        objectMapper.valueToTree(new JsonOutboxResult(results, finished)),
+                        null));
+        m.addOutboxListener(outboxListener);
+
         final var receiveThread = receiveMessages(s -> jsonRpcSender.sendRequest(JsonRpcRequest.forNotification(
                 "receive",
                 objectMapper.valueToTree(s),
@@ -94,9 +119,13 @@ public class JsonRpcDispatcherCommand implements LocalCommand {
                 throw new AssertionError(e);
             }
         });
+        m.resumeBroadcasts();
+
         jsonRpcReader.readRequests((method, params) -> handleRequest(m, objectMapper, method, params),
                 response -> logger.debug("Received unexpected response for id {}", response.getId()));
 
+        m.removeBroadcastListener(broadcastListener);
+        m.removeOutboxListener(outboxListener);
         receiveThread.interrupt();
         try {
             receiveThread.join();
@@ -0,0 +1,117 @@
+package org.asamk.signal.commands;
+
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+
+import org.asamk.signal.JsonWriter;
+import org.asamk.signal.OutputWriter;
+import org.asamk.signal.PlainTextWriter;
+import org.asamk.signal.commands.exceptions.CommandException;
+import org.asamk.signal.commands.exceptions.IOErrorException;
+import org.asamk.signal.manager.Manager;
+import org.asamk.signal.util.DateUtils;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class ListQuarantinedMessagesCommand implements JsonRpcLocalCommand {
+
+    @Override
+    public String getName() {
+        return "listQuarantinedMessages";
+    }
+
+    @Override
+    public void attachToSubparser(final Subparser subparser) {
+        subparser.help("Show received messages that repeatedly failed to be processed and are no longer retried.");
+        subparser.addArgument("--retry")
+                .help("Move the messages back to the message cache, to retry them with the next receive.")
+                .action(Arguments.storeTrue());
+    }
+
+    @Override
+    public void handleCommand(
+            final Namespace ns, final Manager m, final OutputWriter outputWriter
+    ) throws CommandException {
+        final var messages = m.getQuarantinedMessages();
+
+        if (outputWriter instanceof PlainTextWriter) {
+            final var writer = (PlainTextWriter) outputWriter;
+            for (var message : messages) {
+                writer.println("- Message {} from {}:",
+                        message.getTimestamp(),
+                        message.getSender() == null ? "unknown sender" : message.getSender());
+                writer.indent(w -> {
+                    w.println("Received: {}", DateUtils.formatTimestamp(message.getReceivedTimestamp()));
+                    w.println("Attempts: {}", message.getAttempts());
+                    w.println("Last error: {}", message.getLastError());
+                });
+            }
+        }
+
+        Integer retriedCount = null;
+        if (ns.getBoolean("retry")) {
+            try {
+                retriedCount = m.retryQuarantinedMessages();
+            } catch (IOException e) {
+                throw new IOErrorException("Failed to restore quarantined messages: " + e.getMessage(), e);
+            }
+        }
+
+        if (outputWriter instanceof PlainTextWriter) {
+            if (retriedCount != null) {
+                ((PlainTextWriter) outputWriter).println("{} messages will be retried.", retriedCount);
+            }
+        } else {
+            final var writer = (JsonWriter) outputWriter;
+            final var jsonMessages = messages.stream()
+                    .map(message -> new JsonQuarantinedMessage(message.getSender(),
+                            message.getTimestamp(),
+                            message.getReceivedTimestamp(),
+                            message.getAttempts(),
+                            message.getLastError()))
+                    .collect(Collectors.toList());
+            if (retriedCount == null) {
+                writer.write(jsonMessages);
+            } else {
+                writer.write(new JsonRetryResult(jsonMessages, retriedCount));
+            }
+        }
+    }
+
+    private static final class JsonRetryResult {
+
+        public final List<JsonQuarantinedMessage> messages;
+        public final int retried;
+
+        private JsonRetryResult(final List<JsonQuarantinedMessage> messages, final int retried) {
+            this.messages = messages;
+            this.retried = retried;
+        }
+    }
+
+    private static final class JsonQuarantinedMessage {
+
+        public final String sender;
+        public final long timestamp;
+        public final long receivedTimestamp;
+        public final int attempts;
+        public final String lastError;
+
+        private JsonQuarantinedMessage(
+                final String sender,
+                final long timestamp,
+                final long receivedTimestamp,
+                final int attempts,
+                final String lastError
+        ) {
+            this.sender = sender;
+            this.timestamp = timestamp;
+            this.receivedTimestamp = receivedTimestamp;
+            this.attempts = attempts;
+            this.lastError = lastError;
+        }
+    }
+}
@@ -22,6 +22,7 @@ import org.freedesktop.dbus.exceptions.DBusException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Base64;
 import java.util.List;
@@ -47,6 +48,8 @@ public class ReceiveCommand implements ExtendedDbusCommand, LocalCommand {
         subparser.addArgument("--ignore-attachments")
                 .help("Don’t download attachments of received messages.")
                 .action(Arguments.storeTrue());
+        subparser.addArgument("--capture-envelopes")
+                .help("Store a copy of every received envelope in this directory, to replay them with benchmarkReceive.");
     }
 
     @Override
@@ -148,7 +151,11 @@ public class ReceiveCommand implements ExtendedDbusCommand, LocalCommand {
             timeout = 3600;
         }
         boolean ignoreAttachments = ns.getBoolean("ignore-attachments");
+        final var captureDirectory = ns.getString("capture-envelopes");
         try {
+            if (captureDirectory != null) {
+                m.setEnvelopeCaptureDirectory(new File(captureDirectory));
+            }
             final var handler = outputWriter instanceof JsonWriter ? new JsonReceiveMessageHandler(m,
                     (JsonWriter) outputWriter) : new ReceiveMessageHandler(m, (PlainTextWriter) outputWriter);
             m.receiveMessages((long) (timeout * 1000),
@@ -0,0 +1,51 @@
+package org.asamk.signal.json;
+
+import org.asamk.signal.manager.Manager;
+import org.asamk.signal.manager.api.RecipientIdentifier;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Resolves the addresses and names for the json output of a single envelope.
+ * <p>
+ * The same recipient is often referenced several times by one envelope, e.g. as sender, quote author and in mentions,
+ * but only looked up once in the recipient, contact and profile stores.
+ */
+final class EnvelopeAddressResolver {
+
+    private final Manager m;
+    private final Map<UUID, SignalServiceAddress> addresses = new HashMap<>();
+    private final Map<UUID, String> names = new HashMap<>();
+
+    EnvelopeAddressResolver(final Manager m) {
+        this.m = m;
+    }
+
+    SignalServiceAddress resolveSignalServiceAddress(final UUID uuid) {
+        return addresses.computeIfAbsent(uuid, m::resolveSignalServiceAddress);
+    }
+
+    SignalServiceAddress resolveSignalServiceAddress(final SignalServiceAddress address) {
+        final var uuid = address.getUuid();
+        final var resolved = addresses.get(uuid);
+        if (resolved != null) {
+            return resolved;
+        }
+        final var newAddress = m.resolveSignalServiceAddress(address);
+        addresses.put(uuid, newAddress);
+        return newAddress;
+    }
+
+    String getContactOrProfileName(final SignalServiceAddress address) {
+        final var uuid = address.getUuid();
+        if (names.containsKey(uuid)) {
+            return names.get(uuid);
+        }
+        final var name = m.getContactOrProfileName(RecipientIdentifier.Single.fromAddress(address));
+        names.put(uuid, name);
+        return name;
+    }
+}
@@ -0,0 +1,27 @@
+package org.asamk.signal.json;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import org.asamk.signal.manager.api.BroadcastResult;
+
+public class JsonBroadcastResult {
+
+    @JsonProperty
+    final long broadcastId;
+
+    @JsonProperty
+    final int index;
+
+    @JsonProperty
+    final String recipient;
+
+    @JsonProperty
+    final String status;
+
+    public JsonBroadcastResult(BroadcastResult result) {
+        this.broadcastId = result.getBroadcastId();
+        this.index = result.getIndex();
+        this.recipient = result.getRecipient();
+        this.status = result.getStatus().name();
+    }
+}
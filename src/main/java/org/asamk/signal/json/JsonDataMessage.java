@@ -4,7 +4,6 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import org.asamk.Signal;
-import org.asamk.signal.manager.Manager;
 import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
 
 import java.util.List;
@@ -57,7 +56,7 @@ class JsonDataMessage {
     @JsonInclude(JsonInclude.Include.NON_NULL)
     final JsonGroupInfo groupInfo;
 
-    JsonDataMessage(SignalServiceDataMessage dataMessage, Manager m) {
+    JsonDataMessage(SignalServiceDataMessage dataMessage, EnvelopeAddressResolver addressResolver) {
         this.timestamp = dataMessage.getTimestamp();
         if (dataMessage.getGroupContext().isPresent()) {
             final var groupContext = dataMessage.getGroupContext().get();
@@ -77,14 +76,16 @@ class JsonDataMessage {
         this.expiresInSeconds = dataMessage.getExpiresInSeconds();
         this.viewOnce = dataMessage.isViewOnce();
         this.reaction = dataMessage.getReaction().isPresent()
-                ? new JsonReaction(dataMessage.getReaction().get(), m)
+                ? new JsonReaction(dataMessage.getReaction().get(), addressResolver)
+                : null;
+        this.quote = dataMessage.getQuote().isPresent()
+                ? new JsonQuote(dataMessage.getQuote().get(), addressResolver)
                 : null;
-        this.quote = dataMessage.getQuote().isPresent() ? new JsonQuote(dataMessage.getQuote().get(), m) : null;
         if (dataMessage.getMentions().isPresent()) {
             this.mentions = dataMessage.getMentions()
                     .get()
                     .stream()
-                    .map(mention -> new JsonMention(mention, m))
+                    .map(mention -> new JsonMention(mention, addressResolver))
                     .collect(Collectors.toList());
         } else {
             this.mentions = List.of();
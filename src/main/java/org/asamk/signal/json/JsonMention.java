@@ -2,7 +2,6 @@ package org.asamk.signal.json;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
-import org.asamk.signal.manager.Manager;
 import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
 
 import static org.asamk.signal.util.Util.getLegacyIdentifier;
@@ -25,8 +24,8 @@ public class JsonMention {
     @JsonProperty
     final int length;
 
-    JsonMention(SignalServiceDataMessage.Mention mention, Manager m) {
-        final var address = m.resolveSignalServiceAddress(mention.getUuid());
+    JsonMention(SignalServiceDataMessage.Mention mention, EnvelopeAddressResolver addressResolver) {
+        final var address = addressResolver.resolveSignalServiceAddress(mention.getUuid());
         this.name = getLegacyIdentifier(address);
         this.number = address.getNumber().orNull();
         this.uuid = address.getUuid().toString();
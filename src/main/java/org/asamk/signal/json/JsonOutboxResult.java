@@ -0,0 +1,58 @@
+package org.asamk.signal.json;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import org.asamk.signal.manager.api.SendMessageResults;
+import org.whispersystems.signalservice.api.messages.SendMessageResult;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.asamk.signal.util.Util.getLegacyIdentifier;
+
+public class JsonOutboxResult {
+
+    @JsonProperty
+    final long timestamp;
+
+    @JsonProperty
+    final boolean finished;
+
+    @JsonProperty
+    final List<Recipient> results;
+
+    public JsonOutboxResult(SendMessageResults results, boolean finished) {
+        this.timestamp = results.getTimestamp();
+        this.finished = finished;
+        this.results = results.getResults()
+                .values()
+                .stream()
+                .flatMap(List::stream)
+                .map(Recipient::new)
+                .collect(Collectors.toList());
+    }
+
+    public static class Recipient {
+
+        @JsonProperty
+        final String recipient;
+
+        @JsonProperty
+        final String type;
+
+        Recipient(SendMessageResult result) {
+            this.recipient = getLegacyIdentifier(result.getAddress());
+            this.type = result.isSuccess()
+                    ? "SUCCESS"
+                    : result.isNetworkFailure()
+                            ? "NETWORK_FAILURE"
+                            : result.isUnregisteredFailure()
+                                    ? "UNREGISTERED_FAILURE"
+                                    : result.getIdentityFailure() != null
+                                            ? "IDENTITY_FAILURE"
+                                            : result.getProofRequiredFailure() != null
+                                                    ? "PROOF_REQUIRED_FAILURE"
+                                                    : "UNKNOWN_FAILURE";
+        }
+    }
+}
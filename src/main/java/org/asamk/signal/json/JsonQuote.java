@@ -3,7 +3,6 @@ package org.asamk.signal.json;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
-import org.asamk.signal.manager.Manager;
 import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
 
 import java.util.ArrayList;
@@ -37,9 +36,9 @@ public class JsonQuote {
     @JsonProperty
     final List<JsonQuotedAttachment> attachments;
 
-    JsonQuote(SignalServiceDataMessage.Quote quote, Manager m) {
+    JsonQuote(SignalServiceDataMessage.Quote quote, EnvelopeAddressResolver addressResolver) {
         this.id = quote.getId();
-        final var address = m.resolveSignalServiceAddress(quote.getAuthor());
+        final var address = addressResolver.resolveSignalServiceAddress(quote.getAuthor());
         this.author = getLegacyIdentifier(address);
         this.authorNumber = address.getNumber().orNull();
         this.authorUuid = address.getUuid().toString();
@@ -48,7 +47,7 @@ public class JsonQuote {
         if (quote.getMentions() != null && quote.getMentions().size() > 0) {
             this.mentions = quote.getMentions()
                     .stream()
-                    .map(quotedMention -> new JsonMention(quotedMention, m))
+                    .map(quotedMention -> new JsonMention(quotedMention, addressResolver))
                     .collect(Collectors.toList());
         } else {
             this.mentions = null;
@@ -2,7 +2,6 @@ package org.asamk.signal.json;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
-import org.asamk.signal.manager.Manager;
 import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage.Reaction;
 
 import static org.asamk.signal.util.Util.getLegacyIdentifier;
@@ -28,9 +27,9 @@ public class JsonReaction {
     @JsonProperty
     final boolean isRemove;
 
-    JsonReaction(Reaction reaction, Manager m) {
+    JsonReaction(Reaction reaction, EnvelopeAddressResolver addressResolver) {
         this.emoji = reaction.getEmoji();
-        final var address = m.resolveSignalServiceAddress(reaction.getTargetAuthor());
+        final var address = addressResolver.resolveSignalServiceAddress(reaction.getTargetAuthor());
         this.targetAuthor = getLegacyIdentifier(address);
         this.targetAuthorNumber = address.getNumber().orNull();
         this.targetAuthorUuid = address.getUuid().toString();
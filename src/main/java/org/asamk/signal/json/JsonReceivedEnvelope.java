@@ -0,0 +1,166 @@
+package org.asamk.signal.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import org.asamk.signal.manager.Manager;
+import org.asamk.signal.manager.UntrustedIdentityException;
+import org.whispersystems.signalservice.api.messages.SignalServiceContent;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.api.messages.SignalServiceReceiptMessage;
+import org.whispersystems.signalservice.api.messages.SignalServiceTypingMessage;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+
+import java.io.IOException;
+import java.util.Base64;
+
+import static org.asamk.signal.util.Util.getLegacyIdentifier;
+
+/**
+ * The json output of a received envelope, with the envelope and the error if it couldn't be handled.
+ * <p>
+ * It is written directly to the json generator when it's serialized, instead of building the output models first.
+ * Addresses and names are only resolved at that time, once per recipient. Receipts and typing messages, the most
+ * frequent envelopes, are written without any intermediate objects. The output is the same as for the models.
+ */
+@JsonSerialize(using = JsonReceivedEnvelope.Serializer.class)
+public class JsonReceivedEnvelope {
+
+    private final SignalServiceEnvelope envelope;
+    private final SignalServiceContent content;
+    private final Throwable exception;
+    private final Manager m;
+
+    public JsonReceivedEnvelope(
+            SignalServiceEnvelope envelope, SignalServiceContent content, Throwable exception, Manager m
+    ) {
+        this.envelope = envelope;
+        this.content = content;
+        this.exception = exception;
+        this.m = m;
+    }
+
+    static class Serializer extends JsonSerializer<JsonReceivedEnvelope> {
+
+        @Override
+        public void serialize(
+                final JsonReceivedEnvelope value, final JsonGenerator jgen, final SerializerProvider provider
+        ) throws IOException {
+            jgen.writeStartObject();
+            // Same field order as the previously serialized map
+            if (value.envelope != null) {
+                jgen.writeFieldName("envelope");
+                writeEnvelope(value.envelope, value.content, value.exception, value.m, jgen, provider);
+            }
+            if (value.exception != null) {
+                provider.defaultSerializeField("error", new JsonError(value.exception), jgen);
+            }
+            jgen.writeEndObject();
+        }
+
+        private static void writeEnvelope(
+                final SignalServiceEnvelope envelope,
+                final SignalServiceContent content,
+                final Throwable exception,
+                final Manager m,
+                final JsonGenerator jgen,
+                final SerializerProvider provider
+        ) throws IOException {
+            final var addressResolver = new EnvelopeAddressResolver(m);
+            final SignalServiceAddress source;
+            final Integer sourceDevice;
+            if (!envelope.isUnidentifiedSender() && envelope.hasSourceUuid()) {
+                source = addressResolver.resolveSignalServiceAddress(envelope.getSourceAddress());
+                sourceDevice = envelope.getSourceDevice();
+            } else if (envelope.isUnidentifiedSender() && content != null) {
+                source = addressResolver.resolveSignalServiceAddress(content.getSender());
+                sourceDevice = content.getSenderDevice();
+            } else if (exception instanceof UntrustedIdentityException) {
+                var e = (UntrustedIdentityException) exception;
+                source = addressResolver.resolveSignalServiceAddress(e.getSender());
+                sourceDevice = e.getSenderDevice();
+            } else {
+                source = null;
+                sourceDevice = null;
+            }
+
+            jgen.writeStartObject();
+            if (source == null) {
+                jgen.writeNullField("source");
+                jgen.writeNullField("sourceNumber");
+                jgen.writeNullField("sourceUuid");
+                jgen.writeNullField("sourceName");
+                jgen.writeNullField("sourceDevice");
+            } else {
+                jgen.writeStringField("source", getLegacyIdentifier(source));
+                jgen.writeStringField("sourceNumber", source.getNumber().orNull());
+                jgen.writeStringField("sourceUuid", source.getUuid().toString());
+                jgen.writeStringField("sourceName", addressResolver.getContactOrProfileName(source));
+                jgen.writeNumberField("sourceDevice", sourceDevice);
+            }
+            final var timestamp = envelope.getTimestamp();
+            jgen.writeNumberField("timestamp", timestamp);
+
+            if (content != null && content.getDataMessage().isPresent()) {
+                provider.defaultSerializeField("dataMessage",
+                        new JsonDataMessage(content.getDataMessage().get(), addressResolver),
+                        jgen);
+            }
+            if (content != null && content.getSyncMessage().isPresent()) {
+                provider.defaultSerializeField("syncMessage",
+                        new JsonSyncMessage(content.getSyncMessage().get(), addressResolver),
+                        jgen);
+            }
+            if (content != null && content.getCallMessage().isPresent()) {
+                provider.defaultSerializeField("callMessage",
+                        new JsonCallMessage(content.getCallMessage().get()),
+                        jgen);
+            }
+            if (envelope.isReceipt()) {
+                jgen.writeObjectFieldStart("receiptMessage");
+                jgen.writeNumberField("when", timestamp);
+                jgen.writeBooleanField("isDelivery", true);
+                jgen.writeBooleanField("isRead", false);
+                jgen.writeArrayFieldStart("timestamps");
+                jgen.writeNumber(timestamp);
+                jgen.writeEndArray();
+                jgen.writeEndObject();
+            } else if (content != null && content.getReceiptMessage().isPresent()) {
+                writeReceiptMessage(content.getReceiptMessage().get(), jgen);
+            }
+            if (content != null && content.getTypingMessage().isPresent()) {
+                writeTypingMessage(content.getTypingMessage().get(), jgen);
+            }
+            jgen.writeEndObject();
+        }
+
+        private static void writeReceiptMessage(
+                final SignalServiceReceiptMessage receiptMessage, final JsonGenerator jgen
+        ) throws IOException {
+            jgen.writeObjectFieldStart("receiptMessage");
+            jgen.writeNumberField("when", receiptMessage.getWhen());
+            jgen.writeBooleanField("isDelivery", receiptMessage.isDeliveryReceipt());
+            jgen.writeBooleanField("isRead", receiptMessage.isReadReceipt());
+            jgen.writeArrayFieldStart("timestamps");
+            for (var timestamp : receiptMessage.getTimestamps()) {
+                jgen.writeNumber(timestamp);
+            }
+            jgen.writeEndArray();
+            jgen.writeEndObject();
+        }
+
+        private static void writeTypingMessage(
+                final SignalServiceTypingMessage typingMessage, final JsonGenerator jgen
+        ) throws IOException {
+            jgen.writeObjectFieldStart("typingMessage");
+            jgen.writeStringField("action", typingMessage.getAction().name());
+            jgen.writeNumberField("timestamp", typingMessage.getTimestamp());
+            if (typingMessage.getGroupId().isPresent()) {
+                jgen.writeStringField("groupId", Base64.getEncoder().encodeToString(typingMessage.getGroupId().get()));
+            }
+            jgen.writeEndObject();
+        }
+    }
+}
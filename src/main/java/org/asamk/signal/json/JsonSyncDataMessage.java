@@ -3,7 +3,6 @@ package org.asamk.signal.json;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import org.asamk.Signal;
-import org.asamk.signal.manager.Manager;
 import org.whispersystems.signalservice.api.messages.multidevice.SentTranscriptMessage;
 
 import static org.asamk.signal.util.Util.getLegacyIdentifier;
@@ -20,8 +19,8 @@ class JsonSyncDataMessage extends JsonDataMessage {
     @JsonProperty
     final String destinationUuid;
 
-    JsonSyncDataMessage(SentTranscriptMessage transcriptMessage, Manager m) {
-        super(transcriptMessage.getMessage(), m);
+    JsonSyncDataMessage(SentTranscriptMessage transcriptMessage, EnvelopeAddressResolver addressResolver) {
+        super(transcriptMessage.getMessage(), addressResolver);
 
         if (transcriptMessage.getDestination().isPresent()) {
             final var address = transcriptMessage.getDestination().get();
@@ -4,7 +4,6 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import org.asamk.Signal;
-import org.asamk.signal.manager.Manager;
 import org.asamk.signal.util.Util;
 import org.whispersystems.signalservice.api.messages.multidevice.SignalServiceSyncMessage;
 
@@ -40,9 +39,9 @@ class JsonSyncMessage {
     @JsonInclude(JsonInclude.Include.NON_NULL)
     final JsonSyncMessageType type;
 
-    JsonSyncMessage(SignalServiceSyncMessage syncMessage, Manager m) {
+    JsonSyncMessage(SignalServiceSyncMessage syncMessage, EnvelopeAddressResolver addressResolver) {
         this.sentMessage = syncMessage.getSent().isPresent()
-                ? new JsonSyncDataMessage(syncMessage.getSent().get(), m)
+                ? new JsonSyncDataMessage(syncMessage.getSent().get(), addressResolver)
                 : null;
         if (syncMessage.getBlockedList().isPresent()) {
             final var base64 = Base64.getEncoder();